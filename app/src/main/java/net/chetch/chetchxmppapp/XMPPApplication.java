@@ -2,6 +2,8 @@ package net.chetch.chetchxmppapp;
 
 import android.content.SharedPreferences;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -9,25 +11,20 @@ import net.chetch.appframework.ChetchApplication;
 import net.chetch.utilities.Logger;
 import net.chetch.utilities.Utils;
 import net.chetch.webservices.network.NetworkRepository;
+import net.chetch.xmpp.ChetchTimingWheel;
 
-import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
 
 public class XMPPApplication extends ChetchApplication {
 
     static private final int TIMER_DELAY_IN_MILLIS = 5* Utils.MINUTE_IN_MILLIS;
 
 
-    Handler timerHandler = new Handler();
-    Runnable timerRunnable = new Runnable() {
-        @Override
-        public void run() {
-            onTimer();
+    //runs on the shared timing wheel along with the view model timers
+    ChetchTimingWheel.Task timerTask = new ChetchTimingWheel.Task(this::onTimer);
+    Handler mainHandler = new Handler(Looper.getMainLooper());
 
-            timerHandler.postDelayed(this, TIMER_DELAY_IN_MILLIS);
-        }
-    };
-
-    private Calendar appStarted;
+    private long appStarted; //SystemClock.elapsedRealtime() so time in deep sleep counts towards the up time
     private int restartAfter = 0;
 
     @Override
@@ -51,8 +48,8 @@ public class XMPPApplication extends ChetchApplication {
             restartAfter = Integer.parseInt(sharedPref.getString("restart_after", "12"));
 
             //fire up timer
-            timerHandler.postDelayed(timerRunnable, TIMER_DELAY_IN_MILLIS);
-            appStarted = Calendar.getInstance();
+            appStarted = SystemClock.elapsedRealtime();
+            ChetchTimingWheel.getShared().schedule(timerTask, TIMER_DELAY_IN_MILLIS, TIMER_DELAY_IN_MILLIS);
         } catch (Exception e){
             Log.e("ERApplication", e.getMessage());
         }
@@ -62,10 +59,11 @@ public class XMPPApplication extends ChetchApplication {
         //check how long we've been running for and restart if more than a given time
 
         if(restartAfter <= 0)return;
-        long h = Utils.hoursDiff(Calendar.getInstance(), appStarted);
+        long h = TimeUnit.MILLISECONDS.toHours(getUpTime());
         if(h >= restartAfter){
             Logger.info("Application has been running for " + h + " hours so restarting");
-            restartApp(2);
+            timerTask.cancel();
+            mainHandler.post(() -> restartApp(2));
         }
 
     }
@@ -75,6 +73,6 @@ public class XMPPApplication extends ChetchApplication {
     }
 
     public long getUpTime(){
-        return Calendar.getInstance().getTimeInMillis() - appStarted.getTimeInMillis();
+        return SystemClock.elapsedRealtime() - appStarted;
     }
 }
\ No newline at end of file
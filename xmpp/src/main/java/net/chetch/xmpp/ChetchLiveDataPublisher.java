@@ -0,0 +1,227 @@
+package net.chetch.xmpp;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.lifecycle.MutableLiveData;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BinaryOperator;
+
+/*
+Publishes view model outputs to LiveData from any thread with a policy per channel:
+    LATEST: latest-only conflation ... values published whilst a post is pending replace (or are merged in to) the pending value
+            and posts are at least minInterval apart so a burst costs the main thread one post per interval
+    QUEUED: a bounded lossless queue ... every (non-null) value is delivered (in order) by setValue on the main thread, a whole backlog
+            in a single main thread post, and only if the queue is full is the oldest value dropped (and counted)
+ */
+public class ChetchLiveDataPublisher {
+    public static final long DEFAULT_MIN_INTERVAL = 16; //in millis, roughly a frame
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    public enum Policy{
+        LATEST,
+        QUEUED,
+    }
+
+    //where channel posts run (the main thread unless running headless)
+    public interface IPoster{
+        void post(Runnable runnable, long delayMillis);
+        void remove(Runnable runnable);
+    }
+
+    static public class MainThreadPoster implements IPoster{
+        final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void post(Runnable runnable, long delayMillis) {
+            if(delayMillis > 0) {
+                handler.postDelayed(runnable, delayMillis);
+            } else {
+                handler.post(runnable);
+            }
+        }
+
+        @Override
+        public void remove(Runnable runnable) {
+            handler.removeCallbacks(runnable);
+        }
+    }
+
+    static private IPoster defaultPoster = null;
+    static public synchronized IPoster getDefaultPoster(){
+        if(defaultPoster == null){
+            defaultPoster = new MainThreadPoster();
+        }
+        return defaultPoster;
+    }
+
+    static public synchronized void setDefaultPoster(IPoster poster){
+        defaultPoster = poster;
+    }
+
+    public class Channel<T> implements Runnable{
+        final MutableLiveData<T> liveData;
+        final Policy policy;
+        final BinaryOperator<T> merger;
+        final ArrayDeque<T> queue;
+        final int capacity;
+        long minInterval; //in millis
+        T pending = null;
+        boolean posted = false;
+        long lastPostedOn = 0; //System.nanoTime
+
+        long published = 0;
+        long delivered = 0;
+        long conflated = 0;
+        long dropped = 0;
+
+        Channel(MutableLiveData<T> liveData, Policy policy, long minInterval, int capacity, BinaryOperator<T> merger){
+            this.liveData = liveData;
+            this.policy = policy;
+            this.minInterval = Math.max(0, minInterval);
+            this.capacity = Math.max(1, capacity);
+            this.merger = merger;
+            queue = policy == Policy.QUEUED ? new ArrayDeque<>() : null;
+        }
+
+        public MutableLiveData<T> getLiveData(){ return liveData; }
+        public Policy getPolicy(){ return policy; }
+
+        public synchronized void setMinInterval(long millis){
+            minInterval = Math.max(0, millis);
+        }
+
+        public void publish(T value){
+            long delay = 0;
+            synchronized (this) {
+                published++;
+                if(policy == Policy.QUEUED){
+                    if(value == null)return;
+                    if(queue.size() >= capacity){
+                        queue.poll();
+                        dropped++;
+                    }
+                    queue.add(value);
+                } else if(posted){
+                    pending = merger == null || pending == null ? value : merger.apply(pending, value);
+                    conflated++;
+                } else {
+                    pending = value;
+                }
+                if(posted)return;
+
+                posted = true;
+                if(minInterval > 0 && lastPostedOn != 0){
+                    long sinceLast = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastPostedOn);
+                    delay = Math.max(0, minInterval - sinceLast);
+                }
+            }
+            poster.post(this, delay);
+        }
+
+        //on the main thread
+        @Override
+        public void run() {
+            if(policy == Policy.QUEUED){
+                T value;
+                while(true) {
+                    synchronized (this) {
+                        value = queue.poll();
+                        if(value == null){
+                            posted = false;
+                            lastPostedOn = System.nanoTime();
+                            return;
+                        }
+                        delivered++;
+                    }
+                    liveData.setValue(value);
+                }
+            } else {
+                T value;
+                synchronized (this) {
+                    value = pending;
+                    pending = null;
+                    posted = false;
+                    lastPostedOn = System.nanoTime();
+                    delivered++;
+                }
+                liveData.setValue(value);
+            }
+        }
+
+        public synchronized void clear(){
+            if(queue != null)queue.clear();
+            pending = null;
+            posted = false;
+            poster.remove(this);
+        }
+
+        public synchronized long getPublished(){ return published; }
+        public synchronized long getDelivered(){ return delivered; }
+        public synchronized long getConflated(){ return conflated; }
+        public synchronized long getDropped(){ return dropped; }
+        public synchronized int getQueueDepth(){ return queue == null ? (pending == null ? 0 : 1) : queue.size(); }
+    }
+
+    final private IPoster poster;
+    final private List<Channel<?>> channels = new CopyOnWriteArrayList<>();
+
+    public ChetchLiveDataPublisher(IPoster poster){
+        this.poster = poster;
+    }
+
+    public ChetchLiveDataPublisher(){
+        this(getDefaultPoster());
+    }
+
+    public <T> Channel<T> latest(MutableLiveData<T> liveData, long minInterval, BinaryOperator<T> merger){
+        Channel<T> channel = new Channel<>(liveData, Policy.LATEST, minInterval, 1, merger);
+        channels.add(channel);
+        return channel;
+    }
+
+    public <T> Channel<T> latest(MutableLiveData<T> liveData, long minInterval){
+        return latest(liveData, minInterval, null);
+    }
+
+    public <T> Channel<T> latest(MutableLiveData<T> liveData){
+        return latest(liveData, DEFAULT_MIN_INTERVAL, null);
+    }
+
+    public <T> Channel<T> queued(MutableLiveData<T> liveData, int capacity){
+        Channel<T> channel = new Channel<>(liveData, Policy.QUEUED, 0, capacity, null);
+        channels.add(channel);
+        return channel;
+    }
+
+    public <T> Channel<T> queued(MutableLiveData<T> liveData){
+        return queued(liveData, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public long getConflated(){
+        long n = 0;
+        for(Channel<?> channel : channels)n += channel.getConflated();
+        return n;
+    }
+
+    public long getDropped(){
+        long n = 0;
+        for(Channel<?> channel : channels)n += channel.getDropped();
+        return n;
+    }
+
+    public List<Channel<?>> getChannels(){
+        return channels;
+    }
+
+    //stops anything pending from being delivered (e.g. when the view model is cleared)
+    public void clear(){
+        for(Channel<?> channel : channels){
+            channel.clear();
+        }
+    }
+}
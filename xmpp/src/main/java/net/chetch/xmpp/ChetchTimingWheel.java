@@ -0,0 +1,307 @@
+package net.chetch.xmpp;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Hashed timing wheel on a monotonic clock (System.nanoTime) shared by all view models (and anything else that needs a timer).
+Deadlines are rounded up to the next tick so tasks due within the same tick run in a single wakeup, and the thread sleeps until
+the earliest deadline rather than waking every tick. The earliest deadline is kept as tasks are linked, when a task at
+that deadline is unlinked it is found again by walking forward from it (so the cost is the gap to the next deadline, not
+the size of the wheel). Tasks are intrusive list nodes so scheduling, cancelling and re-arming a task object allocates
+nothing. Tasks run on the wheel thread (never the UI thread) and should be quick.
+ */
+public class ChetchTimingWheel {
+    public static final long DEFAULT_TICK = 100; //in millis
+    public static final int DEFAULT_WHEEL_SIZE = 512; //must be a power of 2
+
+    static public class Task{
+        final Runnable runnable;
+        ChetchTimingWheel wheel = null;
+        long deadlineTick;
+        long periodTicks = 0; //0 for one-shot
+        boolean scheduled = false; //linked in to a slot
+        boolean due = false; //on the expired list waiting to run
+        boolean executing = false;
+        Task next = null;
+        Task prev = null;
+        Task nextDue = null;
+
+        public Task(Runnable runnable){
+            this.runnable = runnable;
+        }
+
+        public boolean isScheduled(){
+            ChetchTimingWheel w = wheel;
+            if(w == null)return false;
+            synchronized (w.lock) {
+                return scheduled;
+            }
+        }
+
+        public boolean isPeriodic(){ return periodTicks > 0; }
+
+        public boolean cancel(){
+            ChetchTimingWheel w = wheel;
+            return w != null && w.cancel(this);
+        }
+    }
+
+    static private ChetchTimingWheel sharedInstance = null;
+    static public synchronized ChetchTimingWheel getShared(){
+        if(sharedInstance == null){
+            sharedInstance = new ChetchTimingWheel(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+        }
+        return sharedInstance;
+    }
+
+    final private Object lock = new Object();
+    final private long tickNanos;
+    final private long startedOn;
+    final private Task[] slots;
+    final private int mask;
+    final private Thread thread;
+    private long processedTick = 0;
+    private int taskCount = 0;
+    private long earliestTick = Long.MAX_VALUE; //the earliest deadline or, if stale, no later than it
+    private boolean earliestStale = false;
+    private boolean running = true;
+    private Task expired = null; //tasks due this wakeup, run outside the lock
+
+    private long wakeups = 0;
+    private long tasksRun = 0;
+
+    public ChetchTimingWheel(long tickMillis, int wheelSize){
+        if(wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0){
+            throw new IllegalArgumentException("ChetchTimingWheel wheel size must be a power of 2");
+        }
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        slots = new Task[wheelSize];
+        mask = wheelSize - 1;
+        startedOn = System.nanoTime();
+
+        thread = new Thread(this::run, "chetch-timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private long currentTick(){
+        return (System.nanoTime() - startedOn) / tickNanos;
+    }
+
+    private long ticksFor(long millis){
+        long nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+        return (nanos + tickNanos - 1) / tickNanos;
+    }
+
+    public long getTickMillis(){
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    //schedules (or re-schedules) a task object ... re-using the object avoids any allocation
+    public void schedule(Task task, long delayMillis, long periodMillis){
+        synchronized (lock) {
+            if(!running)throw new IllegalStateException("ChetchTimingWheel has been shutdown");
+            if(task.wheel != null && task.wheel != this){
+                task.wheel.cancel(task);
+            }
+            unlink(task);
+            task.due = false; //if it's already waiting to run then this supersedes that
+            task.wheel = this;
+            task.periodTicks = periodMillis > 0 ? Math.max(1, ticksFor(periodMillis)) : 0;
+            //a deadline is at least the next tick
+            task.deadlineTick = Math.max(currentTick() + ticksFor(delayMillis), processedTick + 1);
+            link(task);
+            lock.notify();
+        }
+    }
+
+    public void schedule(Task task, long delayMillis){
+        schedule(task, delayMillis, 0);
+    }
+
+    public Task schedule(Runnable runnable, long delayMillis){
+        Task task = new Task(runnable);
+        schedule(task, delayMillis, 0);
+        return task;
+    }
+
+    public Task schedulePeriodic(Runnable runnable, long initialDelayMillis, long periodMillis){
+        Task task = new Task(runnable);
+        schedule(task, initialDelayMillis, periodMillis);
+        return task;
+    }
+
+    public boolean cancel(Task task){
+        synchronized (lock) {
+            if(!task.scheduled && !task.due && !task.executing)return false;
+            unlink(task);
+            task.due = false;
+            task.periodTicks = 0; //stops a periodic task currently running from re-arming
+            return true;
+        }
+    }
+
+    public int getTaskCount(){
+        synchronized (lock) {
+            return taskCount;
+        }
+    }
+
+    public long getWakeups(){
+        synchronized (lock) {
+            return wakeups;
+        }
+    }
+
+    public long getTasksRun(){
+        synchronized (lock) {
+            return tasksRun;
+        }
+    }
+
+    public void shutdown(){
+        synchronized (lock) {
+            running = false;
+            lock.notify();
+        }
+    }
+
+    //called with lock held
+    private void link(Task task){
+        int slot = (int)(task.deadlineTick & mask);
+        task.prev = null;
+        task.next = slots[slot];
+        if(task.next != null)task.next.prev = task;
+        slots[slot] = task;
+        task.scheduled = true;
+        taskCount++;
+        if(task.deadlineTick < earliestTick)earliestTick = task.deadlineTick; //still a lower bound if stale
+    }
+
+    //called with lock held
+    private void unlink(Task task){
+        if(!task.scheduled)return;
+        int slot = (int)(task.deadlineTick & mask);
+        if(task.prev != null){
+            task.prev.next = task.next;
+        } else {
+            slots[slot] = task.next;
+        }
+        if(task.next != null)task.next.prev = task.prev;
+        task.next = null;
+        task.prev = null;
+        task.scheduled = false;
+        taskCount--;
+        if(task.deadlineTick == earliestTick)earliestStale = true;
+    }
+
+    //called with lock held, moves due tasks in the slot for tick to the expired list
+    private void expire(long tick){
+        Task task = slots[(int)(tick & mask)];
+        while(task != null){
+            Task next = task.next;
+            if(task.deadlineTick <= tick){
+                unlink(task);
+                task.due = true;
+                task.nextDue = expired;
+                expired = task;
+            }
+            task = next;
+        }
+    }
+
+    long getNextDeadlineTick(){
+        synchronized (lock) {
+            return nextDeadlineTick();
+        }
+    }
+
+    //called with lock held
+    private long nextDeadlineTick(){
+        if(taskCount == 0){
+            earliestTick = Long.MAX_VALUE;
+            earliestStale = false;
+        } else if(earliestStale){
+            //walk forward from the old earliest (nothing is due before it or before the next tick), the first task found
+            //in the slot for its own deadline is the earliest ... failing that (all over a rotation away) take the lowest seen
+            long tick = Math.max(earliestTick, processedTick + 1);
+            long lowest = Long.MAX_VALUE;
+            for(int i = 0; i < slots.length; i++, tick++){
+                for(Task task = slots[(int)(tick & mask)]; task != null; task = task.next){
+                    if(task.deadlineTick == tick){
+                        lowest = tick;
+                        break;
+                    }
+                    if(task.deadlineTick < lowest)lowest = task.deadlineTick;
+                }
+                if(lowest == tick)break;
+            }
+            earliestTick = lowest;
+            earliestStale = false;
+        }
+        return earliestTick;
+    }
+
+    private void run(){
+        while(true){
+            Task toRun;
+            synchronized (lock) {
+                while(running){
+                    try {
+                        if(taskCount == 0) {
+                            lock.wait(); //until something is scheduled
+                        } else {
+                            long waitNanos = startedOn + nextDeadlineTick() * tickNanos - System.nanoTime();
+                            if(waitNanos <= 0)break;
+                            lock.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos + 999999)));
+                        }
+                    } catch (InterruptedException e){
+                        running = false;
+                    }
+                }
+                if(!running)return;
+
+                //visit each slot passed since the last wakeup (once round the wheel is enough to visit every slot)
+                long now = currentTick();
+                long from = processedTick + 1;
+                if(now - from >= slots.length)from = now - slots.length + 1;
+                for(long tick = from; tick <= now; tick++){
+                    expire(tick);
+                }
+                processedTick = now;
+                wakeups++;
+                toRun = expired;
+                expired = null;
+            }
+
+            while(toRun != null){
+                Task task = toRun;
+                synchronized (lock) {
+                    toRun = task.nextDue;
+                    task.nextDue = null;
+                    if(!task.due)continue; //cancelled or re-scheduled since expiring
+                    task.due = false;
+                    task.executing = true;
+                }
+                try {
+                    task.runnable.run();
+                } catch (Exception e){
+                    Log.e("ChetchTimingWheel", "Task threw " + e.getMessage());
+                    e.printStackTrace();
+                }
+
+                synchronized (lock) {
+                    tasksRun++;
+                    task.executing = false;
+                    //periodic tasks keep a fixed rate unless they have fallen behind (or were re-scheduled whilst running)
+                    if(task.periodTicks > 0 && !task.scheduled && running){
+                        task.deadlineTick = Math.max(task.deadlineTick + task.periodTicks, processedTick + 1);
+                        link(task);
+                    }
+                }
+            }
+        }
+    }
+}
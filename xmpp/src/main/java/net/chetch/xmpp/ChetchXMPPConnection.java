@@ -1,7 +1,13 @@
 package net.chetch.xmpp;
 
 import net.chetch.messaging.MessageType;
+import net.chetch.xmpp.codecs.CborBodyCodec;
+import net.chetch.xmpp.codecs.ChetchEnvelope;
+import net.chetch.xmpp.codecs.IChetchBodyCodec;
+import net.chetch.xmpp.codecs.JsonBodyCodec;
 import net.chetch.xmpp.exceptions.ChetchXMPPException;
+import net.chetch.xmpp.metrics.ChatMetrics;
+import net.chetch.xmpp.metrics.ConnectionMetrics;
 
 import android.content.Context;
 import android.os.AsyncTask;
@@ -33,6 +39,8 @@ import org.jivesoftware.smack.ConnectionListener;
 import org.jivesoftware.smack.ReconnectionManager;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.sm.StreamManagementException;
+import org.jivesoftware.smack.util.StanzaIdUtil;
 import org.jivesoftware.smackx.ping.PingFailedListener;
 import org.jivesoftware.smackx.ping.PingManager;
 import org.jxmpp.jid.BareJid;
@@ -55,59 +63,312 @@ import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ChetchXMPPConnection implements IChetchConnectionListener, ReconnectionListener, IncomingChatMessageListener, OutgoingChatMessageListener, PingFailedListener {
+    public static final int DEFAULT_PORT = 5222;
     public static final String CHETCH_MESSAGE_SUBJECT = "chetch.message";
+    public static final String CHETCH_MESSAGE_BATCH_SUBJECT = "chetch.message.batch"; //body is a batch of chetch messages
+    public static final String CHETCH_SUBJECT_CODEC_SEPARATOR = "+"; //e.g. chetch.message+cbor, no suffix means json
+
+    //body codecs available for negotiation, the json codec is always the default
+    static final private Map<String, IChetchBodyCodec> bodyCodecs = new LinkedHashMap<>();
+    static final public IChetchBodyCodec DEFAULT_BODY_CODEC = new JsonBodyCodec();
+    static {
+        registerBodyCodec(DEFAULT_BODY_CODEC);
+        registerBodyCodec(new CborBodyCodec());
+    }
+
+    static public void registerBodyCodec(IChetchBodyCodec codec){
+        synchronized (bodyCodecs) {
+            bodyCodecs.put(codec.getName(), codec);
+        }
+    }
+
+    static public IChetchBodyCodec getBodyCodec(String name){
+        synchronized (bodyCodecs) {
+            return bodyCodecs.get(name);
+        }
+    }
+
+    static public List<String> getBodyCodecNames(){
+        synchronized (bodyCodecs) {
+            return new ArrayList<>(bodyCodecs.keySet());
+        }
+    }
 
     static private boolean initialised = false;
     static public void initialise(Context context){
-        AndroidSmackInitializer.initialize(context);
+        if(context != null) {
+            AndroidSmackInitializer.initialize(context);
+        }
         initialised = true;
     }
 
+    //headless use (e.g. on the JVM for benchmarks and tests) where Smack initialises itself (e.g. with smack-java8)
+    static public void initialise(){
+        initialise(null);
+    }
+
     static public ChetchXMPPConnection create(Context context) throws Exception{
         initialise(context);
         return create();
     }
 
+    static public ChetchXMPPConnection create(Context context, ChetchXMPPLifecycleExecutor lifecycleExecutor) throws Exception{
+        initialise(context);
+        return create(lifecycleExecutor);
+    }
+
     static public ChetchXMPPConnection create() throws Exception{
+        return create(ChetchXMPPLifecycleExecutor.getShared());
+    }
+
+    static public ChetchXMPPConnection create(ChetchXMPPLifecycleExecutor lifecycleExecutor) throws Exception{
         if(!initialised){
             throw new ChetchXMPPException("ChetchXMPPConnection::create cannot create connection as not yet initialised");
         }
+        if(lifecycleExecutor == null){
+            throw new ChetchXMPPException("ChetchXMPPConnection::create a lifecycle executor is required");
+        }
+
+        return new ChetchXMPPConnection(lifecycleExecutor);
+    }
+
+    /*
+    Shared connections: one authenticated connection per user and server endpoint (host, port and domain) for the whole
+    process, reference counted so the connection is disconnected once the last holder releases it. A shared connection
+    only connects to the endpoint it was acquired for.
+     */
+    static final private Map<String, ChetchXMPPConnection> sharedConnections = new HashMap<>();
+
+    static public ChetchXMPPConnection acquire(Context context, String hostAddress, int port, String xmppDomain, String username) throws Exception{
+        initialise(context);
+        return acquire(hostAddress, port, xmppDomain, username);
+    }
+
+    static public ChetchXMPPConnection acquire(String hostAddress, int port, String xmppDomain, String username) throws Exception{
+        if(username == null || username.isEmpty()){
+            throw new ChetchXMPPException("ChetchXMPPConnection::acquire a username is required");
+        }
+        if(hostAddress == null || hostAddress.isEmpty() || xmppDomain == null || xmppDomain.isEmpty()){
+            throw new ChetchXMPPException("ChetchXMPPConnection::acquire a host and domain are required");
+        }
+
+        String key = getSharedKey(hostAddress, port, xmppDomain, username);
+        synchronized (sharedConnections) {
+            ChetchXMPPConnection cnn = sharedConnections.get(key);
+            if(cnn == null){
+                cnn = create();
+                cnn.sharedKey = key;
+                cnn.sharedHost = hostAddress;
+                cnn.sharedDomain = xmppDomain;
+                cnn.port = port;
+                cnn.setResumable(true);
+                sharedConnections.put(key, cnn);
+            }
+            cnn.referenceCount++;
+            return cnn;
+        }
+    }
+
+    static public ChetchXMPPConnection acquire(String hostAddress, String xmppDomain, String username) throws Exception{
+        return acquire(hostAddress, DEFAULT_PORT, xmppDomain, username);
+    }
+
+    static private String getSharedKey(String hostAddress, int port, String xmppDomain, String username){
+        return username + "@" + xmppDomain + "/" + hostAddress + ":" + port;
+    }
 
-        return new ChetchXMPPConnection();
+    static public int getSharedConnectionCount(){
+        synchronized (sharedConnections) {
+            return sharedConnections.size();
+        }
     }
 
     private class ChatData{
-        Chat chat = null;
-        int messagesSent = 0;
-        int messagesReceived = 0;
+        volatile Chat chat = null;
+        volatile IChetchBodyCodec bodyCodec = DEFAULT_BODY_CODEC;
 
         ChatData(Chat chat){
             this.chat = chat;
         }
     }
 
-    private boolean connecting = false;
-    private boolean connected = false;
-    private boolean authenticating = false;
-    private XMPPTCPConnection connection = null;
-    IChetchConnectionListener connectionListener = null;
-    private ChatManager chatManager = null;
-    final private Map<EntityBareJid, ChatData> chats = new HashMap<>();
-    final private List<IChetchIncomingMessageListener> incomingMessageListeners = new ArrayList<>();
-    final private List<IChetchOutgoingMessageListener> outgoingMessageListeners = new ArrayList<>();
+    //chetch message(s) sent on a stream-managed connection in a stanza that the server has not yet acknowledged
+    private class UnacknowledgedMessage{
+        EntityBareJid to;
+        List<net.chetch.messaging.Message> chetchMessages;
+
+        UnacknowledgedMessage(EntityBareJid to, List<net.chetch.messaging.Message> chetchMessages){
+            this.to = to;
+            this.chetchMessages = chetchMessages;
+        }
+    }
+
+    /*
+    Memory model: state flags and references below are written by the UI/lifecycle threads and read by Smack and
+    pipeline threads so are volatile. Registries are concurrent maps of copy-on-write listener arrays: they are
+    mutated rarely and only ever read by dispatch, which iterates the current array by index without locking.
+     */
+    private volatile boolean connecting = false;
+    private volatile boolean connected = false;
+    private volatile boolean authenticating = false;
+    private volatile boolean resumable = false;
+    private volatile boolean resuming = false;
+    private int preferredResumptionTime = 0; //in seconds, 0 to use the server default
+    private int port = DEFAULT_PORT;
+    private String sharedKey = null; //null if this connection is not shared
+    private String sharedHost = null; //the endpoint a shared connection was acquired for
+    private String sharedDomain = null;
+    private int referenceCount = 0; //guarded by sharedConnections
+    private volatile XMPPTCPConnection connection = null;
+    final private ListenerArray<IChetchConnectionListener> connectionListeners = new ListenerArray<>();
+    private volatile ChatManager chatManager = null;
+    final private Map<EntityBareJid, ChatData> chats = new ConcurrentHashMap<>();
+    static final private Object[] NO_LISTENERS = new Object[0];
+    //message listeners are routed by the jid of the chat partner, wildcard listeners receive messages for all chats
+    final private ConcurrentHashMap<EntityBareJid, ListenerArray<IChetchIncomingMessageListener>> incomingMessageRoutes = new ConcurrentHashMap<>();
+    final private ConcurrentHashMap<EntityBareJid, ListenerArray<IChetchOutgoingMessageListener>> outgoingMessageRoutes = new ConcurrentHashMap<>();
+    final private ListenerArray<IChetchIncomingMessageListener> incomingMessageListeners = new ListenerArray<>();
+    final private ListenerArray<IChetchOutgoingMessageListener> outgoingMessageListeners = new ListenerArray<>();
+    final private Map<String, UnacknowledgedMessage> unacknowledgedMessages = new LinkedHashMap<>(); //keyed by stanza id
+    final private List<UnacknowledgedMessage> messagesToReplay = new ArrayList<>();
+    final private ChetchXMPPLifecycleExecutor lifecycleExecutor;
+    final private ChetchXMPPLifecycleExecutor.Lane lifecycleLane; //this connection's stages run in order on it
+    private volatile ChetchXMPPInboundPipeline inboundPipeline;
+    final private ChetchXMPPOutboundQueue outboundQueue;
+    private volatile boolean batchEnvelopes = false;
+    final private ConnectionMetrics metrics = new ConnectionMetrics();
+
+    private ChetchXMPPConnection(ChetchXMPPLifecycleExecutor lifecycleExecutor){
+        this.lifecycleExecutor = lifecycleExecutor;
+        lifecycleLane = lifecycleExecutor.createLane();
+        inboundPipeline = new ChetchXMPPInboundPipeline(this::decodeChetchMessage, this::dispatchIncomingMessage);
+        outboundQueue = new ChetchXMPPOutboundQueue(this::sendChetchMessages);
+    }
+
+    public ChetchXMPPOutboundQueue getOutboundQueue(){
+        return outboundQueue;
+    }
+
+    public ConnectionMetrics getMetrics(){
+        return metrics;
+    }
+
+    public ChatMetrics getChatMetrics(EntityBareJid jid){
+        return metrics.getChat(jid);
+    }
+
+    //only enable if the services being chatted with understand CHETCH_MESSAGE_BATCH_SUBJECT
+    public void setBatchEnvelopes(boolean batchEnvelopes){
+        this.batchEnvelopes = batchEnvelopes;
+    }
+
+    public boolean isUsingBatchEnvelopes(){ return batchEnvelopes; }
+
+    //workers = 0 decodes and dispatches on the Smack reader thread
+    public void configureInboundPipeline(int workers, int capacity, ChetchXMPPInboundPipeline.OverflowPolicy overflowPolicy){
+        ChetchXMPPInboundPipeline oldPipeline = inboundPipeline;
+        inboundPipeline = new ChetchXMPPInboundPipeline(workers, capacity, overflowPolicy, this::decodeChetchMessage, this::dispatchIncomingMessage);
+        oldPipeline.shutdown(); //a stanza the reader thread has already handed the old pipeline is delivered on the reader thread
+    }
+
+    public ChetchXMPPInboundPipeline getInboundPipeline(){
+        return inboundPipeline;
+    }
+
+    public ChetchXMPPLifecycleExecutor getLifecycleExecutor(){
+        return lifecycleExecutor;
+    }
+
+    //use for any blocking work that must happen after connect/login (e.g. creating chats and subscribing)
+    public void executeStage(ChetchXMPPLifecycleExecutor.Stage stage, Runnable task) throws Exception{
+        lifecycleLane.execute(stage, task);
+    }
+
+    /*
+    Resumable mode keeps the stream management (XEP-0198) state when the connection drops on error so that Smack's
+    reconnection resumes the same stream (no resource bind, no re-subscribe). The chat and listener registry also
+    survives a reset so chats can be rebound to a new connection and unacknowledged chetch messages replayed.
+     */
+    public void setResumable(boolean resumable){
+        this.resumable = resumable;
+    }
+
+    public boolean isResumable(){ return resumable; }
+
+    public void setPreferredResumptionTime(int seconds){
+        preferredResumptionTime = seconds;
+    }
+
+    public boolean isResuming(){ return resuming; }
+
+    //e.g. for a local test server, takes effect on the next connect (a shared connection's port is set by acquire)
+    public void setPort(int port) throws ChetchXMPPException{
+        if(isShared() && port != this.port){
+            throw new ChetchXMPPException("ChetchXMPPConnection::setPort cannot change the port of a shared connection");
+        }
+        this.port = port;
+    }
+
+    public int getPort(){ return port; }
+
+    public boolean isShared(){ return sharedKey != null; }
+
+    //true if this is a shared connection acquired for the endpoint
+    public boolean isSharedFor(String hostAddress, int port, String xmppDomain){
+        return isShared() && sharedHost.equals(hostAddress) && this.port == port && sharedDomain.equals(xmppDomain);
+    }
+
+    public int getReferenceCount(){
+        synchronized (sharedConnections) {
+            return referenceCount;
+        }
+    }
+
+    //release a connection obtained from acquire ... the last release removes it from the registry, disconnects and
+    //shuts down its queues (so the connection can't be used again)
+    public void release(){
+        if(!isShared())return;
+
+        synchronized (sharedConnections) {
+            if(referenceCount > 0)referenceCount--;
+            if(referenceCount > 0)return;
+            sharedConnections.remove(sharedKey);
+        }
+
+        try {
+            if(connection != null && connection.isConnected()){
+                connection.disconnect();
+            }
+            reset(true);
+        } catch (Exception e){
+            Log.e("ChetchXMPPConnection", "Failed to disconnect released connection: " + e.getMessage());
+        } finally {
+            outboundQueue.shutdown();
+            inboundPipeline.shutdown();
+        }
+    }
 
-    private ChetchXMPPConnection(){
+    public void addConnectionListener(IChetchConnectionListener listener){
+        connectionListeners.add(listener);
+    }
 
+    public void removeConnectionListener(IChetchConnectionListener listener){
+        connectionListeners.remove(listener);
     }
 
     public void reset() throws Exception{
+        reset(!resumable);
+    }
+
+    public void reset(boolean clearRegistry) throws Exception{
         if (connecting) {
             throw new ChetchXMPPException("ChetchXMPPConnection::reset: Connection in progress");
         }
@@ -117,12 +378,31 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
         }
         connecting = false;
         connection = null;
-        connectionListener = null;
         authenticating = false;
         chatManager = null;
-        chats.clear();
-        incomingMessageListeners.clear();
-        outgoingMessageListeners.clear();
+        resuming = false;
+
+        //anything not acknowledged by the old stream will never be acknowledged now
+        synchronized (unacknowledgedMessages) {
+            if(clearRegistry){
+                messagesToReplay.clear();
+            } else {
+                messagesToReplay.addAll(unacknowledgedMessages.values());
+            }
+            unacknowledgedMessages.clear();
+        }
+
+        if(clearRegistry) {
+            chats.clear();
+            incomingMessageRoutes.clear();
+            outgoingMessageRoutes.clear();
+            incomingMessageListeners.clear();
+            outgoingMessageListeners.clear();
+        } else {
+            for(ChatData chatData : chats.values()){
+                chatData.chat = null; //to be rebound by createChat once the new connection is authenticated
+            }
+        }
     }
 
     public boolean isConnecting(){ return connecting; }
@@ -147,6 +427,10 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
         if(connection != null && connection.isConnected()){
            return;
         }
+        if(isShared() && !isSharedFor(hostAddress, port, xmppDomain)){
+            //other holders expect the endpoint it was acquired for
+            throw new ChetchXMPPException("ChetchXMPPConnection::connect shared connection " + sharedKey + " cannot connect to " + xmppDomain + " @ " + hostAddress);
+        }
 
         //configure the connection
         XMPPTCPConnectionConfiguration conf = null;
@@ -155,6 +439,7 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
                     .setSecurityMode(ConnectionConfiguration.SecurityMode.disabled)
                     .setXmppDomain(xmppDomain)
                     .setHost(hostAddress)
+                    .setPort(port)
                     //.setUsernameAndPassword("test", "test")
                     .setConnectTimeout(100000)
                     .build();
@@ -165,17 +450,27 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
         XMPPTCPConnection.setUseStreamManagementDefault(true);
         connection = new XMPPTCPConnection(conf);
         connection.setReplyTimeout(5000);
-        connection.addConnectionListener(this);
-        this.connectionListener = connectionListener;
-        if(connectionListener != null){
-            connection.addConnectionListener(connectionListener);
+        connection.setUseStreamManagementResumption(resumable);
+        if(resumable && preferredResumptionTime > 0){
+            connection.setPreferredResumptionTime(preferredResumptionTime);
+        }
+        connection.addConnectionListener(this); //forwards to the chetch connection listeners
+        addConnectionListener(connectionListener);
+
+        //now execute connection (queued on this connection's lifecycle lane so connect -> login -> chat setup stay in order)
+        connecting = true;
+        try {
+            executeConnect(reconnectionListener);
+        } catch (Exception e){
+            connecting = false;
+            throw e;
         }
+    }
 
-        //now execute connection
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(() -> {
+    private void executeConnect(ReconnectionListener reconnectionListener) throws Exception{
+        final XMPPTCPConnection connection = this.connection; //the one being connected, the field may be reset before the stage runs
+        lifecycleLane.execute(ChetchXMPPLifecycleExecutor.Stage.CONNECT, () -> {
             try{
-                connecting = true;
                 connection.connect();
 
                 ReconnectionManager reconnectionManager = ReconnectionManager.getInstanceFor(connection);
@@ -191,17 +486,16 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
                 pingManager.registerPingFailedListener(this);
                 //pingManager.setPingInterval(30);
 
-                chatManager = ChatManager.getInstanceFor(connection);
+                if(connection == this.connection){
+                    chatManager = ChatManager.getInstanceFor(connection);
+                }
             } catch(Exception e){
                 e.printStackTrace();
                 connectFailed(e);
-                if(connectionListener != null){
-                    connectionListener.connectFailed(e);
-                }
             } finally {
                 connecting = false;
             }
-        }); //end executor.execute
+        }); //end lifecycleLane.execute
     }
 
     public void connect(String hostAddress, String xmppDomain) throws Exception{
@@ -222,25 +516,31 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
         if(!connection.isConnected()){
             throw new ChetchXMPPException("ChetchXMPPConnection::login: not connected");
         }
-        if(connection.isAuthenticated()){
-            return;
+        if(connection.isAuthenticated() || authenticating){
+            return; //for shared connections another holder may already have logged in or be logging in
+        }
+
+        authenticating = true;
+        try {
+            executeLogin(username, password);
+        } catch (Exception e){
+            authenticating = false;
+            throw e;
         }
+    }
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(() -> {
+    private void executeLogin(String username, String password) throws Exception{
+        final XMPPTCPConnection connection = this.connection;
+        lifecycleLane.execute(ChetchXMPPLifecycleExecutor.Stage.LOGIN, () -> {
             try {
-                authenticating = true;
                 connection.login(username, password);
             } catch (Exception e) {
                 e.printStackTrace();
                 authenticationFailed(e);
-                if(connectionListener != null){
-                    connectionListener.authenticationFailed(e);
-                }
             } finally {
                 authenticating = false;
             }
-        }); //end executor.execute
+        }); //end lifecycleLane.execute
     }
 
     /*
@@ -248,6 +548,11 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
      */
     @Override
     public void connectFailed(Exception arg0){
+        metrics.connectFailed();
+        Object[] listeners = connectionListeners.snapshot();
+        for(int i = 0; i < listeners.length; i++){
+            ((IChetchConnectionListener)listeners[i]).connectFailed(arg0);
+        }
         try {
             connecting = false;
             reset();
@@ -260,12 +565,21 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
     @Override
     public void connected(final XMPPConnection connection) {
         connecting = false;
+        metrics.connected();
         Log.d("xmpp", "Connected!");
+        Object[] listeners = connectionListeners.snapshot();
+        for(int i = 0; i < listeners.length; i++){
+            ((IChetchConnectionListener)listeners[i]).connected(connection);
+        }
     }
 
     @Override
     public void connectionClosed() {
         Log.d("xmpp", "ConnectionCLosed!");
+        Object[] listeners = connectionListeners.snapshot();
+        for(int i = 0; i < listeners.length; i++){
+            ((IChetchConnectionListener)listeners[i]).connectionClosed();
+        }
         try {
             reset();
         } catch (Exception e){
@@ -276,6 +590,16 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
     @Override
     public void connectionClosedOnError(Exception arg0) {
         Log.e("xmpp", "ConnectionClosedOn Error!");
+        Object[] listeners = connectionListeners.snapshot();
+        for(int i = 0; i < listeners.length; i++){
+            ((IChetchConnectionListener)listeners[i]).connectionClosedOnError(arg0);
+        }
+        if(resumable && connection != null && connection.isSmResumptionPossible()){
+            //keep everything ... the reconnection manager will reconnect this connection object and resume the stream
+            resuming = true;
+            Log.i("xmpp", "Stream resumption possible so waiting for reconnect");
+            return;
+        }
         try {
             reset();
         } catch (Exception e){
@@ -287,12 +611,25 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
     public void authenticationFailed(Exception arg0) {
         authenticating = false;
         Log.e("xmpp", "Authentication failuer!: " + arg0.getMessage());
+        Object[] listeners = connectionListeners.snapshot();
+        for(int i = 0; i < listeners.length; i++){
+            ((IChetchConnectionListener)listeners[i]).authenticationFailed(arg0);
+        }
     }
 
     @Override
     public void authenticated(XMPPConnection arg0, boolean arg1) {
         authenticating = false;
+        resuming = false;
+        if(arg1){
+            metrics.resumed();
+            Log.d("xmpp", "Stream resumed!");
+        }
         Log.d("xmpp", "Authenticated!");
+        Object[] listeners = connectionListeners.snapshot();
+        for(int i = 0; i < listeners.length; i++){
+            ((IChetchConnectionListener)listeners[i]).authenticated(arg0, arg1);
+        }
     }
 
     /*
@@ -339,29 +676,64 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
         EntityBareJid jid = JidCreate.entityBareFrom(sanitizeEntityID(entityID));
 
         //Do some checking
-        if(chats.containsKey(jid)){
-            throw new ChetchXMPPException("ChetchXMPPConnection::createChat A chat already exists for " + entityID);
+        ChatData chatData = chats.get(jid);
+        if(chatData != null && chatData.chat != null){
+            //one chat per service ... further holders just share it
+            addMessageListener(jid, incomingListener);
+            addMessageListener(jid, outgoingListener);
+            return chatData.chat;
         }
         if(chatManager == null){
             throw new ChetchXMPPException("ChetchXMPPConnection::createChat no chat manager exists");
         }
 
-        //create the chat and add listeners
+        //create the chat (or rebind one kept from a previous connection) and add listeners
         Chat chat = chatManager.chatWith(jid);
-        ChatData chatData = new ChatData(chat);
-        chats.put(jid, chatData);
+        if(chatData == null) {
+            chatData = new ChatData(chat);
+            chats.put(jid, chatData);
+        } else {
+            chatData.chat = chat;
+        }
 
         //general xmpp listeners (required to then call listeners for chetch messages)
         chatManager.addIncomingListener(this);
         chatManager.addOutgoingListener(this);
 
-        //chetch message listeners
-        addMessageListener(incomingListener);
-        addMessageListener(outgoingListener);
+        //chetch message listeners (routed so they only receive messages from this chat)
+        addMessageListener(jid, incomingListener);
+        addMessageListener(jid, outgoingListener);
+
+        replayUnacknowledgedMessages(jid, chat);
 
         return chat;
     }
 
+    private void replayUnacknowledgedMessages(EntityBareJid jid, Chat chat){
+        List<UnacknowledgedMessage> replay = new ArrayList<>();
+        synchronized (unacknowledgedMessages) {
+            Iterator<UnacknowledgedMessage> it = messagesToReplay.iterator();
+            while(it.hasNext()){
+                UnacknowledgedMessage um = it.next();
+                if(um.to.equals(jid)){
+                    replay.add(um);
+                    it.remove();
+                }
+            }
+        }
+
+        for(UnacknowledgedMessage um : replay){
+            try {
+                sendChetchMessages(chat, um.chetchMessages);
+            } catch (Exception e){
+                Log.e("ChetchXMPPConnection", "Failed to replay " + um.chetchMessages.size() + " messages: " + e.getMessage());
+            }
+        }
+        if(!replay.isEmpty()) {
+            Log.i("ChetchXMPPConnection", "Replayed " + replay.size() + " unacknowledged messages to " + jid);
+        }
+    }
+
     public Chat createChat(String entityID, IChetchIncomingMessageListener incomingListener) throws Exception{
         return createChat(entityID, incomingListener, null);
     }
@@ -371,69 +743,271 @@ public class ChetchXMPPConnection implements IChetchConnectionListener, Reconnec
     }
 
     public boolean isChetchMessage(org.jivesoftware.smack.packet.Message message){
-        return message.getType() == org.jivesoftware.smack.packet.Message.Type.normal && CHETCH_MESSAGE_SUBJECT.equals(message.getSubject());
+        return message.getType() == org.jivesoftware.smack.packet.Message.Type.normal && message.getSubject() != null && message.getSubject().startsWith(CHETCH_MESSAGE_SUBJECT);
         //return false;
     }
 
     public void addMessageListener(IChetchIncomingMessageListener listener){
-        if(listener != null && !incomingMessageListeners.contains(listener)){
-            incomingMessageListeners.add(listener);
-        }
+        incomingMessageListeners.add(listener);
     }
 
     public void addMessageListener(IChetchOutgoingMessageListener listener){
-        if(listener != null && !outgoingMessageListeners.contains(listener)){
-            outgoingMessageListeners.add(listener);
+        outgoingMessageListeners.add(listener);
+    }
+
+    public void addMessageListener(EntityBareJid jid, IChetchIncomingMessageListener listener){
+        if(jid == null){
+            addMessageListener(listener);
+            return;
+        }
+        if(listener == null)return;
+
+        incomingMessageRoutes.computeIfAbsent(jid, k -> new ListenerArray<>()).add(listener);
+    }
+
+    public void addMessageListener(EntityBareJid jid, IChetchOutgoingMessageListener listener){
+        if(jid == null){
+            addMessageListener(listener);
+            return;
+        }
+        if(listener == null)return;
+
+        outgoingMessageRoutes.computeIfAbsent(jid, k -> new ListenerArray<>()).add(listener);
+    }
+
+    //removes the listener from the wildcard list and from all routes
+    public void removeMessageListener(IChetchIncomingMessageListener listener){
+        incomingMessageListeners.remove(listener);
+        for(ListenerArray<IChetchIncomingMessageListener> listeners : incomingMessageRoutes.values()){
+            listeners.remove(listener);
+        }
+    }
+
+    public void removeMessageListener(IChetchOutgoingMessageListener listener){
+        outgoingMessageListeners.remove(listener);
+        for(ListenerArray<IChetchOutgoingMessageListener> listeners : outgoingMessageRoutes.values()){
+            listeners.remove(listener);
         }
     }
 
     @Override
     public void newIncomingMessage(EntityBareJid from, org.jivesoftware.smack.packet.Message message, Chat chat) {
-        ChatData chatData = chats.get(from);
-        if(chatData != null) {
-            chatData.messagesReceived++;
-        }
+        metrics.stanzaReceived();
+        metrics.getChat(from).stanzaReceived(message.getBody() == null ? 0 : message.getBody().length());
 
         if(isChetchMessage(message)) {
-            try {
-                net.chetch.messaging.Message chetchMessage = net.chetch.messaging.Message.deserialize(message.getBody());
-                for (IChetchIncomingMessageListener listener : incomingMessageListeners) {
-                    listener.onIncomingMessage(from, chetchMessage, message, chat);
-                }
-            } catch (Exception e){
-                e.printStackTrace();
-            }
+            //decoding and listener callbacks happen off the reader thread
+            inboundPipeline.submit(from, message, chat);
         } else {
             //we need to look out for service unavailable messages
             Log.i("ChetchXMPPConnection", "Non chetch message received!");
         }
     }
 
+    //the subject says whether the body is a batch and which codec encoded it
+    private List<net.chetch.messaging.Message> decodeChetchMessage(EntityBareJid from, org.jivesoftware.smack.packet.Message message) throws Exception{
+        String subject = message.getSubject();
+        IChetchBodyCodec codec = DEFAULT_BODY_CODEC;
+        int idx = subject.indexOf(CHETCH_SUBJECT_CODEC_SEPARATOR);
+        if(idx > 0){
+            String codecName = subject.substring(idx + 1);
+            codec = getBodyCodec(codecName);
+            if(codec == null){
+                throw new ChetchXMPPException("ChetchXMPPConnection::decodeChetchMessage no codec " + codecName);
+            }
+            subject = subject.substring(0, idx);
+        }
+
+        long startedOn = System.nanoTime();
+        List<String> jsons;
+        if(CHETCH_MESSAGE_BATCH_SUBJECT.equals(subject)){
+            jsons = codec.decodeBatchToJson(message.getBody());
+        } else {
+            jsons = Collections.singletonList(codec.decodeToJson(message.getBody()));
+        }
+        List<net.chetch.messaging.Message> chetchMessages = new ArrayList<>(jsons.size());
+        for(String json : jsons){
+            if(isWanted(from, json)){
+                chetchMessages.add(net.chetch.messaging.Message.deserialize(json));
+            }
+        }
+        metrics.getChat(from).decoded(System.nanoTime() - startedOn);
+        return chetchMessages;
+    }
+
+    //the envelope is only read if every listener for the message can filter on it, otherwise the message is wanted
+    private boolean isWanted(EntityBareJid from, String json){
+        ListenerArray<IChetchIncomingMessageListener> routes = incomingMessageRoutes.get(from);
+        Object[] routed = routes == null ? NO_LISTENERS : routes.snapshot();
+        Object[] listeners = incomingMessageListeners.snapshot();
+        if(routed.length + listeners.length == 0)return true;
+        if(!isEnvelopeFilter(routed) || !isEnvelopeFilter(listeners))return true;
+
+        ChetchEnvelope envelope = ChetchEnvelope.scan(json);
+        if(envelope == null)return true; //let the messaging library report it if it's bad
+        if(wantsMessage(routed, from, envelope) || wantsMessage(listeners, from, envelope))return true;
+
+        metrics.getChat(from).messageDeclined(envelope.Tag);
+        return false;
+    }
+
+    static private boolean isEnvelopeFilter(Object[] listeners){
+        for(int i = 0; i < listeners.length; i++){
+            if(!(listeners[i] instanceof IChetchEnvelopeFilter))return false;
+        }
+        return true;
+    }
+
+    static private boolean wantsMessage(Object[] listeners, EntityBareJid from, ChetchEnvelope envelope){
+        for(int i = 0; i < listeners.length; i++){
+            if(((IChetchEnvelopeFilter)listeners[i]).wantsMessage(from, envelope))return true;
+        }
+        return false;
+    }
+
+    //normally set on the outcome of the negotiation at subscribe time
+    public void setBodyCodec(EntityBareJid jid, String codecName) throws Exception{
+        IChetchBodyCodec codec = getBodyCodec(codecName);
+        if(codec == null){
+            throw new ChetchXMPPException("ChetchXMPPConnection::setBodyCodec no codec " + codecName);
+        }
+        ChatData chatData = chats.get(jid);
+        if(chatData == null){
+            throw new ChetchXMPPException("ChetchXMPPConnection::setBodyCodec no chat for " + jid);
+        }
+        chatData.bodyCodec = codec;
+    }
+
+    public IChetchBodyCodec getBodyCodec(EntityBareJid jid){
+        ChatData chatData = chats.get(jid);
+        return chatData == null ? DEFAULT_BODY_CODEC : chatData.bodyCodec;
+    }
+
+    private String getSubject(String subject, IChetchBodyCodec codec){
+        return codec == DEFAULT_BODY_CODEC ? subject : subject + CHETCH_SUBJECT_CODEC_SEPARATOR + codec.getName();
+    }
+
+    private void dispatchIncomingMessage(EntityBareJid from, net.chetch.messaging.Message chetchMessage, org.jivesoftware.smack.packet.Message message, Chat chat){
+        metrics.getChat(from).messageReceived(chetchMessage.Tag);
+
+        ListenerArray<IChetchIncomingMessageListener> routes = incomingMessageRoutes.get(from);
+        if(routes != null) {
+            Object[] routed = routes.snapshot();
+            for (int i = 0; i < routed.length; i++) {
+                ((IChetchIncomingMessageListener)routed[i]).onIncomingMessage(from, chetchMessage, message, chat);
+            }
+        }
+        Object[] listeners = incomingMessageListeners.snapshot();
+        for (int i = 0; i < listeners.length; i++) {
+            ((IChetchIncomingMessageListener)listeners[i]).onIncomingMessage(from, chetchMessage, message, chat);
+        }
+    }
+
     @Override
     public void newOutgoingMessage(EntityBareJid to, MessageBuilder messageBuilder, Chat chat) {
-        ChatData chatData = chats.get(to);
-        chatData.messagesSent++;
-
-        for(IChetchOutgoingMessageListener listener : outgoingMessageListeners){
-            listener.onOutgoingMessage(to, messageBuilder, chat);
+        ListenerArray<IChetchOutgoingMessageListener> routes = outgoingMessageRoutes.get(to);
+        if(routes != null) {
+            Object[] routed = routes.snapshot();
+            for (int i = 0; i < routed.length; i++) {
+                ((IChetchOutgoingMessageListener)routed[i]).onOutgoingMessage(to, messageBuilder, chat);
+            }
+        }
+        Object[] listeners = outgoingMessageListeners.snapshot();
+        for(int i = 0; i < listeners.length; i++){
+            ((IChetchOutgoingMessageListener)listeners[i]).onOutgoingMessage(to, messageBuilder, chat);
         }
     }
 
     public Message sendMessage(Chat chat, @NonNull net.chetch.messaging.Message chetchMessage) throws Exception{
-        //Add this c
-        if(chetchMessage.Sender == null || chetchMessage.Sender.trim().isEmpty()){
-            chetchMessage.Sender = connection.getUser().asBareJid().toString();
+        return sendChetchMessages(chat, Collections.singletonList(chetchMessage)).get(0);
+    }
+
+    //queued and sent off the caller's thread, possibly batched with other messages to the same chat
+    public CompletableFuture<Message> sendMessageAsync(Chat chat, @NonNull net.chetch.messaging.Message chetchMessage){
+        return outboundQueue.enqueue(chat, chetchMessage);
+    }
+
+    //use allowFolding = false when the caller is waiting on a response correlated by the message Tag
+    public CompletableFuture<Message> sendMessageAsync(Chat chat, @NonNull net.chetch.messaging.Message chetchMessage, boolean allowFolding){
+        return outboundQueue.enqueue(chat, chetchMessage, allowFolding);
+    }
+
+    //throws a PartialSendException if some but not all of the messages were sent (see ChetchXMPPOutboundQueue)
+    private List<Message> sendChetchMessages(Chat chat, List<net.chetch.messaging.Message> chetchMessages) throws Exception{
+        XMPPTCPConnection connection = this.connection; //may be reset whilst messages are queued
+        EntityFullJid user = connection == null ? null : connection.getUser();
+        if(user == null){
+            throw new ChetchXMPPException("ChetchXMPPConnection::sendChetchMessages not connected so cannot send " + chetchMessages.size() + " messages");
+        }
+        for(net.chetch.messaging.Message chetchMessage : chetchMessages) {
+            if (chetchMessage.Sender == null || chetchMessage.Sender.trim().isEmpty()) {
+                chetchMessage.Sender = user.asBareJid().toString();
+            }
         }
 
-        String messageBody = chetchMessage.serialize();
+        IChetchBodyCodec codec = getBodyCodec(chat.getXmppAddressOfChatPartner());
+        List<Message> xmppMessages = new ArrayList<>(batchEnvelopes ? 1 : chetchMessages.size());
+        if(batchEnvelopes && chetchMessages.size() > 1){
+            xmppMessages.add(sendStanza(chat, getSubject(CHETCH_MESSAGE_BATCH_SUBJECT, codec), codec.encodeBatch(chetchMessages), chetchMessages));
+        } else {
+            for(net.chetch.messaging.Message chetchMessage : chetchMessages){
+                try {
+                    xmppMessages.add(sendStanza(chat, getSubject(CHETCH_MESSAGE_SUBJECT, codec), codec.encode(chetchMessage), Collections.singletonList(chetchMessage)));
+                } catch (Exception e){
+                    if(xmppMessages.isEmpty())throw e;
+                    throw new ChetchXMPPOutboundQueue.PartialSendException(xmppMessages, e);
+                }
+            }
+        }
+        return xmppMessages;
+    }
 
-        Message xmppMessage = MessageBuilder.buildMessage()
+    private Message sendStanza(Chat chat, String subject, String messageBody, List<net.chetch.messaging.Message> chetchMessages) throws Exception{
+        Message xmppMessage = MessageBuilder.buildMessage(StanzaIdUtil.newStanzaId())
                 .ofType(org.jivesoftware.smack.packet.Message.Type.normal)
-                .setSubject(CHETCH_MESSAGE_SUBJECT)
+                .setSubject(subject)
                 .setBody(messageBody)
                 .build();
 
+        EntityBareJid to = chat.getXmppAddressOfChatPartner();
+        trackAcknowledgement(to, chetchMessages, xmppMessage.getStanzaId());
+
+        //recorded before sending so a fast response can't beat the round trip start
+        ChatMetrics chatMetrics = metrics.getChat(to);
+        chatMetrics.stanzaSent(messageBody.length());
+        for(int i = 0; i < chetchMessages.size(); i++){
+            chatMetrics.messageSent(chetchMessages.get(i).Tag);
+        }
         chat.send(xmppMessage);
         return xmppMessage;
     }
+
+    //only possible when the server has enabled stream management for this stream
+    private void trackAcknowledgement(EntityBareJid to, List<net.chetch.messaging.Message> chetchMessages, String stanzaId){
+        if(!resumable || connection == null || !connection.isSmEnabled())return;
+
+        synchronized (unacknowledgedMessages) {
+            unacknowledgedMessages.put(stanzaId, new UnacknowledgedMessage(to, chetchMessages));
+        }
+        try {
+            connection.addStanzaIdAcknowledgedListener(stanzaId, stanza -> {
+                synchronized (unacknowledgedMessages) {
+                    unacknowledgedMessages.remove(stanzaId);
+                }
+            });
+        } catch (StreamManagementException.StreamManagementNotEnabledException e){
+            synchronized (unacknowledgedMessages) {
+                unacknowledgedMessages.remove(stanzaId);
+            }
+        }
+    }
+
+    public int getUnacknowledgedMessageCount(){
+        synchronized (unacknowledgedMessages) {
+            int count = 0;
+            for(UnacknowledgedMessage um : unacknowledgedMessages.values())count += um.chetchMessages.size();
+            for(UnacknowledgedMessage um : messagesToReplay)count += um.chetchMessages.size();
+            return count;
+        }
+    }
 }
@@ -0,0 +1,285 @@
+package net.chetch.xmpp;
+
+import android.util.Log;
+
+import net.chetch.utilities.SLog;
+
+import org.jivesoftware.smack.chat2.Chat;
+import org.jivesoftware.smack.packet.Message;
+import org.jxmpp.jid.EntityBareJid;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Takes incoming chetch stanzas off the Smack reader thread:
+    1. handoff: the reader thread queues the raw stanza on the lane for its chat (respecting the overflow policy)
+    2. decode: stanzas are decoded in parallel on a bounded worker pool
+    3. delivery: each lane delivers decoded messages strictly in arrival order
+A pipeline with zero workers decodes and delivers on the calling thread (i.e. the original behaviour).
+A lane is removed once it is empty so chats that have gone quiet hold nothing.
+Once shut down stanzas still arriving (e.g. whilst the pipeline is being replaced) are decoded and delivered on the caller.
+ */
+public class ChetchXMPPInboundPipeline {
+    public static final int DEFAULT_WORKERS = 2;
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public enum OverflowPolicy{
+        //the reader thread waits for space which in turn pushes back on the socket. NOTE: whilst it waits the reader
+        //thread reads nothing else either, so stream management acks and pings stall and a slow listener can get the
+        //connection dropped ... only use where listeners are known to keep up
+        BLOCK,
+        DROP_NEWEST, //the incoming stanza is discarded and counted
+        DECODE_ON_CALLER, //the reader thread decodes the stanza itself (ordering is still preserved)
+    }
+
+    //a stanza may carry a batch of chetch messages
+    public interface IDecoder{
+        List<net.chetch.messaging.Message> decode(EntityBareJid from, Message stanza) throws Exception;
+    }
+
+    public interface IDeliverer{
+        void deliver(EntityBareJid from, net.chetch.messaging.Message chetchMessage, Message stanza, Chat chat);
+    }
+
+    static public class StageMetrics{
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos){
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            do {
+                max = maxNanos.get();
+            } while(nanos > max && !maxNanos.compareAndSet(max, nanos));
+        }
+
+        public long getCount(){ return count.get(); }
+        public long getMaxMicros(){ return TimeUnit.NANOSECONDS.toMicros(maxNanos.get()); }
+        public long getAverageMicros(){
+            long n = count.get();
+            return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.get() / n);
+        }
+    }
+
+    private class Entry{
+        final EntityBareJid from;
+        final Message stanza;
+        final Chat chat;
+        final long queuedOn;
+        List<net.chetch.messaging.Message> chetchMessages = null;
+        boolean holdsPermit = true;
+        volatile boolean decoded = false;
+
+        Entry(EntityBareJid from, Message stanza, Chat chat){
+            this.from = from;
+            this.stanza = stanza;
+            this.chat = chat;
+            queuedOn = System.nanoTime();
+        }
+    }
+
+    //one lane per chat so delivery order is per chat and a busy chat does not hold up the others
+    private class Lane{
+        final EntityBareJid from;
+        final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean delivering = new AtomicBoolean(false);
+
+        Lane(EntityBareJid from){
+            this.from = from;
+        }
+    }
+
+    final private int workers;
+    final private int capacity;
+    final private OverflowPolicy overflowPolicy;
+    final private IDecoder decoder;
+    final private IDeliverer deliverer;
+    final private ThreadPoolExecutor executor;
+    final private Semaphore permits;
+    final private ConcurrentHashMap<EntityBareJid, Lane> lanes = new ConcurrentHashMap<>();
+    private volatile boolean shutdown = false;
+
+    final private AtomicInteger queueDepth = new AtomicInteger();
+    final private AtomicLong dropped = new AtomicLong();
+    final private AtomicLong decodedOnCaller = new AtomicLong();
+    final private AtomicLong decodeErrors = new AtomicLong();
+    final private StageMetrics decodeMetrics = new StageMetrics();
+    final private StageMetrics deliveryMetrics = new StageMetrics();
+
+    public ChetchXMPPInboundPipeline(int workers, int capacity, OverflowPolicy overflowPolicy, IDecoder decoder, IDeliverer deliverer){
+        this.workers = Math.max(0, workers);
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.decoder = decoder;
+        this.deliverer = deliverer;
+        permits = new Semaphore(this.capacity);
+
+        if(this.workers > 0) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory threadFactory = r -> {
+                Thread t = new Thread(r, "chetch-xmpp-inbound-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            };
+            //the work queue is effectively bounded by the permits
+            executor = new ThreadPoolExecutor(this.workers, this.workers, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+            executor.allowCoreThreadTimeOut(true);
+        } else {
+            executor = null;
+        }
+    }
+
+    public ChetchXMPPInboundPipeline(IDecoder decoder, IDeliverer deliverer){
+        this(DEFAULT_WORKERS, DEFAULT_CAPACITY, OverflowPolicy.DECODE_ON_CALLER, decoder, deliverer);
+    }
+
+    //called on the Smack reader thread
+    public void submit(EntityBareJid from, Message stanza, Chat chat){
+        Entry entry = new Entry(from, stanza, chat);
+        if(executor == null){
+            decode(entry);
+            deliver(entry);
+            return;
+        }
+
+        //still goes through the lane so it is delivered after anything the workers have yet to deliver
+        boolean onCaller = shutdown;
+        if(onCaller){
+            entry.holdsPermit = false;
+        } else if(!permits.tryAcquire()){
+            switch(overflowPolicy){
+                case BLOCK:
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    break;
+
+                case DROP_NEWEST:
+                    long n = dropped.incrementAndGet();
+                    if(n == 1 || n % 100 == 0){
+                        Log.w("ChetchXMPPInboundPipeline", "Inbound queue full, " + n + " stanzas dropped so far");
+                    }
+                    return;
+
+                case DECODE_ON_CALLER:
+                    onCaller = true;
+                    entry.holdsPermit = false;
+                    break;
+            }
+        }
+
+        //added under the map's lock for the jid (as lanes are removed) so an entry never lands in a removed lane
+        queueDepth.incrementAndGet();
+        final Lane l = lanes.compute(from, (k, lane) -> {
+            if(lane == null)lane = new Lane(k);
+            lane.entries.add(entry);
+            return lane;
+        });
+
+        if(!onCaller){
+            try {
+                executor.execute(() -> {
+                    decode(entry);
+                    drain(l);
+                });
+                return;
+            } catch (RejectedExecutionException e){
+                //shut down since the check above ... the entry is already in its lane so must be decoded here or it blocks the lane
+                entry.holdsPermit = false;
+                permits.release();
+            }
+        }
+        decodedOnCaller.incrementAndGet();
+        decode(entry);
+        drain(l);
+    }
+
+    private void decode(Entry entry){
+        long startedOn = System.nanoTime();
+        try {
+            entry.chetchMessages = decoder.decode(entry.from, entry.stanza);
+        } catch (Exception e){
+            decodeErrors.incrementAndGet();
+            if(SLog.LOG)SLog.e("ChetchXMPPInboundPipeline", "Failed to decode stanza from " + entry.from + ": " + e.getMessage());
+        }
+        decodeMetrics.record(System.nanoTime() - startedOn);
+        entry.decoded = true;
+    }
+
+    private void deliver(Entry entry){
+        if(entry.chetchMessages != null){
+            for(int i = 0; i < entry.chetchMessages.size(); i++) {
+                try {
+                    deliverer.deliver(entry.from, entry.chetchMessages.get(i), entry.stanza, entry.chat);
+                } catch (Exception e) {
+                    if(SLog.LOG)SLog.e("ChetchXMPPInboundPipeline", "Failed to deliver message from " + entry.from + ": " + e.getMessage());
+                }
+            }
+        }
+        deliveryMetrics.record(System.nanoTime() - entry.queuedOn);
+    }
+
+    //delivers decoded entries from the head of the lane ... only one thread delivers per lane at any time
+    private void drain(Lane lane){
+        do {
+            if(!lane.delivering.compareAndSet(false, true))return;
+            try {
+                Entry head;
+                while((head = lane.entries.peek()) != null && head.decoded){
+                    lane.entries.poll();
+                    queueDepth.decrementAndGet();
+                    deliver(head);
+                    if(head.holdsPermit)permits.release();
+                }
+            } finally {
+                lane.delivering.set(false);
+            }
+            //another thread may have finished decoding the head whilst we were releasing the lane
+            Entry head = lane.entries.peek();
+            if(head == null){
+                removeIfIdle(lane);
+                return;
+            }
+            if(!head.decoded)return;
+        } while(true);
+    }
+
+    private void removeIfIdle(Lane lane){
+        lanes.computeIfPresent(lane.from, (k, l) -> l == lane && l.entries.isEmpty() && !l.delivering.get() ? null : l);
+    }
+
+    public int getQueueDepth(){ return queueDepth.get(); }
+    public int getLaneCount(){ return lanes.size(); }
+    public int getCapacity(){ return capacity; }
+    public int getWorkers(){ return workers; }
+    public OverflowPolicy getOverflowPolicy(){ return overflowPolicy; }
+    public long getDropped(){ return dropped.get(); }
+    public long getDecodedOnCaller(){ return decodedOnCaller.get(); }
+    public long getDecodeErrors(){ return decodeErrors.get(); }
+    public StageMetrics getDecodeMetrics(){ return decodeMetrics; }
+    public StageMetrics getDeliveryMetrics(){ return deliveryMetrics; }
+
+    public void shutdown(){
+        shutdown = true;
+        if(executor != null){
+            executor.shutdown();
+        }
+    }
+}
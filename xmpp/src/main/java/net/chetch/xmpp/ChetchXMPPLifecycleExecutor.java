@@ -0,0 +1,208 @@
+package net.chetch.xmpp;
+
+import android.util.Log;
+
+import net.chetch.xmpp.exceptions.ChetchXMPPException;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Runs the blocking parts of a connection's lifecycle (connect, login, chat setup) on a small shared pool of workers.
+Each connection has its own lane: stages submitted to a lane are executed in order, one at a time, but lanes run
+independently so a connection stuck connecting to a server that is down (up to the connect timeout) only holds up its
+own stages and one worker. Idle workers exit so an idle executor holds no thread at all.
+Lanes queue without limit. Should the pool refuse a lane (a bounded pool queue that is full) the lane retries on the
+shared timing wheel rather than failing, only a shut down executor refuses stages.
+ */
+public class ChetchXMPPLifecycleExecutor {
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = Integer.MAX_VALUE; //of lanes waiting for a worker
+    public static final long DEFAULT_KEEP_ALIVE = 30*1000; //in millis, idle time before a worker thread exits
+    public static final long RETRY_DELAY = 250; //in millis, before a lane refused by the pool tries again
+
+    public enum Stage{
+        CONNECT,
+        LOGIN,
+        CHAT_SETUP,
+    }
+
+    static public class StageMetrics{
+        final AtomicLong executed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong totalMillis = new AtomicLong();
+        final AtomicLong lastMillis = new AtomicLong();
+        final AtomicLong maxMillis = new AtomicLong();
+
+        void record(long millis, boolean success){
+            executed.incrementAndGet();
+            if(!success)failed.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            lastMillis.set(millis);
+            long max;
+            do {
+                max = maxMillis.get();
+            } while(millis > max && !maxMillis.compareAndSet(max, millis));
+        }
+
+        public long getExecuted(){ return executed.get(); }
+        public long getFailed(){ return failed.get(); }
+        public long getLastMillis(){ return lastMillis.get(); }
+        public long getMaxMillis(){ return maxMillis.get(); }
+        public long getAverageMillis(){
+            long n = executed.get();
+            return n == 0 ? 0 : totalMillis.get() / n;
+        }
+    }
+
+    //stages for one connection, run in order on whichever worker is free
+    public class Lane{
+        final private ArrayDeque<Runnable> stages = new ArrayDeque<>();
+        private boolean scheduled = false; //guarded by stages, true whilst the lane is with the pool (or waiting to retry)
+
+        public void execute(Stage stage, Runnable task) throws ChetchXMPPException{
+            if(executor.isShutdown()){
+                throw new ChetchXMPPException("ChetchXMPPLifecycleExecutor::execute cannot queue " + stage + " as the executor is shut down");
+            }
+            Runnable timed = timed(stage, task);
+            synchronized (stages) {
+                stages.add(timed);
+                if(scheduled)return;
+                scheduled = true;
+            }
+            submit();
+        }
+
+        private void submit(){
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e){
+                if(executor.isShutdown()){
+                    synchronized (stages) {
+                        stages.clear();
+                        scheduled = false;
+                    }
+                    return;
+                }
+                rejections.incrementAndGet();
+                Log.w("ChetchXMPPLifecycleExecutor", "Lane refused by the pool, retrying in " + RETRY_DELAY + "ms");
+                ChetchTimingWheel.getShared().schedule(this::submit, RETRY_DELAY);
+            }
+        }
+
+        //runs one stage then hands the worker back (so busy lanes take turns)
+        private void drain(){
+            Runnable next;
+            synchronized (stages) {
+                next = stages.poll();
+                if(next == null){
+                    scheduled = false;
+                    return;
+                }
+            }
+            try {
+                next.run();
+            } finally {
+                boolean more;
+                synchronized (stages) {
+                    more = !stages.isEmpty();
+                    if(!more)scheduled = false;
+                }
+                if(more)submit();
+            }
+        }
+
+        public int getQueueDepth(){
+            synchronized (stages) {
+                return stages.size();
+            }
+        }
+    }
+
+    static private ChetchXMPPLifecycleExecutor sharedInstance = null;
+    static public synchronized ChetchXMPPLifecycleExecutor getShared(){
+        if(sharedInstance == null){
+            sharedInstance = new ChetchXMPPLifecycleExecutor(DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY);
+        }
+        return sharedInstance;
+    }
+
+    final private ThreadPoolExecutor executor;
+    final private StageMetrics[] stageMetrics = new StageMetrics[Stage.values().length];
+    final private Lane defaultLane; //for stages not submitted through a lane of their own
+    final private AtomicLong rejections = new AtomicLong();
+
+    public ChetchXMPPLifecycleExecutor(int workers, int queueCapacity){
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, "chetch-xmpp-lifecycle-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        workers = Math.max(1, workers);
+        executor = new ThreadPoolExecutor(workers, workers, DEFAULT_KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(Math.max(1, queueCapacity)), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+
+        for(int i = 0; i < stageMetrics.length; i++){
+            stageMetrics[i] = new StageMetrics();
+        }
+        defaultLane = new Lane();
+    }
+
+    public ChetchXMPPLifecycleExecutor(int workers){
+        this(workers, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    //each connection should have its own
+    public Lane createLane(){
+        return new Lane();
+    }
+
+    private Runnable timed(Stage stage, Runnable task){
+        final long queuedOn = System.nanoTime();
+        return () -> {
+            long startedOn = System.nanoTime();
+            boolean success = false;
+            try {
+                task.run();
+                success = true;
+            } catch (Exception e){
+                Log.e("ChetchXMPPLifecycleExecutor", stage + " failed: " + e.getMessage());
+            } finally {
+                long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedOn);
+                getStageMetrics(stage).record(ms, success);
+                Log.d("ChetchXMPPLifecycleExecutor", stage + " completed in " + ms + "ms (queued for " + TimeUnit.NANOSECONDS.toMillis(startedOn - queuedOn) + "ms)");
+            }
+        };
+    }
+
+    //stages submitted here share one lane so run in order with respect to each other
+    public void execute(Stage stage, Runnable task) throws ChetchXMPPException{
+        defaultLane.execute(stage, task);
+    }
+
+    //lanes waiting for a worker
+    public int getQueueDepth(){
+        return executor.getQueue().size();
+    }
+
+    public long getRejections(){ return rejections.get(); }
+
+    public boolean isBusy(){
+        return executor.getActiveCount() > 0 || getQueueDepth() > 0;
+    }
+
+    public StageMetrics getStageMetrics(Stage stage){
+        return stageMetrics[stage.ordinal()];
+    }
+
+    public void shutdown(){
+        executor.shutdown();
+    }
+}
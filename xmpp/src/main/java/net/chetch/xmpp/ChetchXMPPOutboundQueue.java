@@ -0,0 +1,255 @@
+package net.chetch.xmpp;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageType;
+import net.chetch.xmpp.exceptions.ChetchXMPPException;
+
+import org.jivesoftware.smack.chat2.Chat;
+import org.jxmpp.jid.EntityBareJid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Asynchronous outbound queue. Messages sent to the same chat within the batch window are flushed together
+(as one batched envelope stanza if the sender supports it) and repeated PINGs / STATUS_REQUESTs in the same
+window are folded into a single message. Each caller gets a future that completes with the stanza that carried
+its message.
+The sending thread exits when idle and once shut down the queue fails anything waiting or enqueued.
+ */
+public class ChetchXMPPOutboundQueue {
+    public static final long DEFAULT_BATCH_WINDOW = 20; //in millis
+    public static final long KEEP_ALIVE = 30*1000; //in millis, idle time before the sending thread exits
+    public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+
+    //returns either one stanza per chetch message or a single stanza carrying them all
+    public interface ISender{
+        List<org.jivesoftware.smack.packet.Message> send(Chat chat, List<Message> chetchMessages) throws Exception;
+    }
+
+    //thrown by a sender that failed part way through sending one stanza per message ... sent holds the stanzas for the
+    //messages (from the start of the list) that did go
+    static public class PartialSendException extends Exception{
+        final private List<org.jivesoftware.smack.packet.Message> sent;
+
+        public PartialSendException(List<org.jivesoftware.smack.packet.Message> sent, Exception cause){
+            super(cause.getMessage(), cause);
+            this.sent = sent;
+        }
+
+        public List<org.jivesoftware.smack.packet.Message> getSent(){
+            return sent;
+        }
+    }
+
+    private class QueuedMessage{
+        final Message chetchMessage;
+        final boolean foldable;
+        final List<CompletableFuture<org.jivesoftware.smack.packet.Message>> futures = new ArrayList<>(1);
+
+        QueuedMessage(Message chetchMessage, boolean foldable){
+            this.chetchMessage = chetchMessage;
+            this.foldable = foldable;
+        }
+    }
+
+    private class Batch{
+        final Chat chat;
+        final List<QueuedMessage> messages = new ArrayList<>();
+
+        Batch(Chat chat){
+            this.chat = chat;
+        }
+    }
+
+    static boolean isFoldable(Message message){
+        return message.Type == MessageType.PING || message.Type == MessageType.STATUS_REQUEST;
+    }
+
+    final private ISender sender;
+    final private ScheduledExecutorService scheduler;
+    final private Map<EntityBareJid, Batch> batches = new HashMap<>();
+    private boolean shutdown = false; //guarded by batches
+    private long batchWindow = DEFAULT_BATCH_WINDOW;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    final private AtomicInteger queueDepth = new AtomicInteger();
+    final private AtomicLong messagesQueued = new AtomicLong();
+    final private AtomicLong messagesFolded = new AtomicLong();
+    final private AtomicLong stanzasSent = new AtomicLong();
+
+    public ChetchXMPPOutboundQueue(ISender sender){
+        this.sender = sender;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "chetch-xmpp-outbound");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setKeepAliveTime(KEEP_ALIVE, TimeUnit.MILLISECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        scheduler = executor;
+    }
+
+    //a window of 0 sends each message as soon as possible (still off the caller's thread)
+    public void setBatchWindow(long millis){
+        batchWindow = Math.max(0, millis);
+    }
+
+    public long getBatchWindow(){ return batchWindow; }
+
+    public void setMaxBatchSize(int maxBatchSize){
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    public CompletableFuture<org.jivesoftware.smack.packet.Message> enqueue(Chat chat, Message chetchMessage){
+        return enqueue(chat, chetchMessage, true);
+    }
+
+    //a message awaiting a response correlated by its Tag must not be folded into another message as its Tag would never be sent
+    public CompletableFuture<org.jivesoftware.smack.packet.Message> enqueue(Chat chat, Message chetchMessage, boolean allowFolding){
+        CompletableFuture<org.jivesoftware.smack.packet.Message> future = new CompletableFuture<>();
+        EntityBareJid jid = chat.getXmppAddressOfChatPartner();
+        boolean flushNow = false;
+        boolean scheduleFlush = false;
+
+        synchronized (batches) {
+            if(shutdown){
+                future.completeExceptionally(new ChetchXMPPException("ChetchXMPPOutboundQueue::enqueue queue has been shut down"));
+                return future;
+            }
+            messagesQueued.incrementAndGet();
+            Batch batch = batches.get(jid);
+            if(batch == null){
+                batch = new Batch(chat);
+                batches.put(jid, batch);
+                scheduleFlush = true;
+            }
+
+            //fold duplicates into the message already waiting
+            if(allowFolding && isFoldable(chetchMessage)){
+                for(QueuedMessage qm : batch.messages){
+                    if(qm.foldable && qm.chetchMessage.Type == chetchMessage.Type){
+                        qm.futures.add(future);
+                        messagesFolded.incrementAndGet();
+                        return future;
+                    }
+                }
+            }
+
+            QueuedMessage qm = new QueuedMessage(chetchMessage, allowFolding && isFoldable(chetchMessage));
+            qm.futures.add(future);
+            batch.messages.add(qm);
+            queueDepth.incrementAndGet();
+            flushNow = batch.messages.size() >= maxBatchSize;
+        }
+
+        try {
+            if(flushNow){
+                scheduler.execute(() -> flush(jid));
+            } else if(scheduleFlush){
+                scheduler.schedule(() -> flush(jid), batchWindow, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e){
+            //shut down since queuing, which failed the batch
+        }
+        return future;
+    }
+
+    private void flush(EntityBareJid jid){
+        Batch batch;
+        synchronized (batches) {
+            batch = batches.remove(jid);
+            if(batch == null)return;
+            queueDepth.addAndGet(-batch.messages.size());
+        }
+
+        List<Message> chetchMessages = new ArrayList<>(batch.messages.size());
+        for(QueuedMessage qm : batch.messages){
+            chetchMessages.add(qm.chetchMessage);
+        }
+
+        try {
+            List<org.jivesoftware.smack.packet.Message> stanzas = sender.send(batch.chat, chetchMessages);
+            complete(batch.messages, stanzas);
+        } catch (PartialSendException e){
+            //those that went are sent, only the rest failed
+            List<org.jivesoftware.smack.packet.Message> sent = e.getSent();
+            complete(batch.messages.subList(0, sent.size()), sent);
+            fail(batch.messages.subList(sent.size(), batch.messages.size()), (Exception)e.getCause());
+        } catch (Exception e){
+            fail(batch.messages, e);
+        }
+    }
+
+    //stanzas has one stanza per message or a single stanza carrying them all
+    private void complete(List<QueuedMessage> messages, List<org.jivesoftware.smack.packet.Message> stanzas){
+        stanzasSent.addAndGet(stanzas.size());
+        for(int i = 0; i < messages.size(); i++){
+            org.jivesoftware.smack.packet.Message stanza = stanzas.get(stanzas.size() == 1 ? 0 : i);
+            for(CompletableFuture<org.jivesoftware.smack.packet.Message> f : messages.get(i).futures){
+                f.complete(stanza);
+            }
+        }
+    }
+
+    private void fail(List<QueuedMessage> messages, Exception e){
+        for(QueuedMessage qm : messages){
+            for(CompletableFuture<org.jivesoftware.smack.packet.Message> f : qm.futures){
+                f.completeExceptionally(e);
+            }
+        }
+    }
+
+    public void flushAll(){
+        List<EntityBareJid> jids;
+        synchronized (batches) {
+            jids = new ArrayList<>(batches.keySet());
+        }
+        try {
+            for(EntityBareJid jid : jids){
+                scheduler.execute(() -> flush(jid));
+            }
+        } catch (RejectedExecutionException e){
+            //shut down
+        }
+    }
+
+    public int getQueueDepth(){ return queueDepth.get(); }
+    public long getMessagesQueued(){ return messagesQueued.get(); }
+    public long getMessagesFolded(){ return messagesFolded.get(); }
+    public long getStanzasSent(){ return stanzasSent.get(); }
+
+    //anything waiting to be sent is failed rather than sent
+    public void shutdown(){
+        List<Batch> pending;
+        synchronized (batches) {
+            if(shutdown)return;
+            shutdown = true;
+            pending = new ArrayList<>(batches.values());
+            batches.clear();
+            queueDepth.set(0);
+        }
+        scheduler.shutdown();
+
+        Exception e = new ChetchXMPPException("ChetchXMPPOutboundQueue::shutdown queue shut down before sending");
+        for(Batch batch : pending){
+            fail(batch.messages, e);
+        }
+    }
+
+    public boolean isShutdown(){
+        synchronized (batches) {
+            return shutdown;
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package net.chetch.xmpp;
 
 import android.content.Context;
-import android.os.Handler;
+import android.content.SharedPreferences;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.Observer;
 
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import net.chetch.messaging.Message;
 import net.chetch.messaging.MessageFilter;
@@ -23,8 +27,16 @@ import net.chetch.webservices.WebserviceViewModel;
 import net.chetch.webservices.network.Service;
 import net.chetch.webservices.network.ServiceToken;
 import net.chetch.webservices.network.Services;
+import net.chetch.xmpp.codecs.ChetchEnvelope;
+import net.chetch.xmpp.codecs.ChetchTypeRegistry;
+import net.chetch.xmpp.codecs.JsonBodyCodec;
 import net.chetch.xmpp.exceptions.ChetchXMPPException;
 import net.chetch.xmpp.exceptions.ChetchXMPPViewModelException;
+import net.chetch.xmpp.metrics.ChatMetrics;
+import net.chetch.xmpp.metrics.ConnectionMetrics;
+import net.chetch.xmpp.metrics.RttEstimator;
+import net.chetch.xmpp.persistence.ChetchOutbox;
+import net.chetch.xmpp.persistence.ChetchSnapshotStore;
 
 import org.jivesoftware.smack.ConnectionListener;
 import org.jivesoftware.smack.XMPPConnection;
@@ -36,14 +48,26 @@ import org.jivesoftware.smack.roster.Roster;
 import org.jxmpp.jid.EntityBareJid;
 import org.jxmpp.jid.impl.JidCreate;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchConnectionListener, IChetchIncomingMessageListener, IChetchOutgoingMessageListener {
+public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchConnectionListener, IChetchIncomingMessageListener, IChetchOutgoingMessageListener, IChetchEnvelopeFilter {
 
     //region Constants
     public static final String COMMAND_HELP = "help";
@@ -51,8 +75,21 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
     public static final String COMMAND_VERSION = "version";
 
     public static final String MESSAGE_FIELD_COMMAND = "Command";
+    public static final String MESSAGE_FIELD_ID = "ID";
     public static final String MESSAGE_FIELD_ARGUMENTS = "Arguments";
     public static final String MESSAGE_FIELD_SERVICE_EVENT = "ServiceEvent";
+    public static final String MESSAGE_FIELD_BODY_CODECS = "BodyCodecs"; //sent with subscribe: the codecs this client can use
+    public static final String MESSAGE_FIELD_BODY_CODEC = "BodyCodec"; //returned with the subscribe response: the codec chosen by the service
+
+    public static final long DEFAULT_MAX_PING_INTERVAL = 60*1000; //in millis, how far the ping interval can stretch on a steady link
+    public static final int PING_STABLE_SAMPLES = 3; //consecutive on-time round trips before the ping interval is stretched
+    public static final int LIVENESS_RTO_MULTIPLIER = 2; //how many RTOs to allow for a ping response when deciding if the service is responding
+    public static final String ENDPOINT_CACHE_NAME = "chetch-xmpp-endpoints";
+    public static final String SNAPSHOT_STATUS = "status";
+    public static final String SNAPSHOT_HELP = "help";
+    public static final String SNAPSHOT_VERSION = "version";
+    public static final long STATUS_FRAME_INTERVAL = 16; //in millis, status updates are conflated to at most one post per this when conflation is on
+    public static final long DEFAULT_REQUEST_TIMEOUT = 10000; //in millis, how long sendMessageAsync waits for a response by default
     //endregion
 
     //region Class defs and Enums
@@ -86,6 +123,17 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
         }
     }
 
+    //a request waiting on the response that carries the same Tag
+    static class PendingRequest{
+        final String tag;
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        volatile ChetchTimingWheel.Task timeout = null;
+
+        PendingRequest(String tag){
+            this.tag = tag;
+        }
+    }
+
     static public class Status{
         public String ServiceName = null;
         public int StatusCode = 0;
@@ -116,6 +164,144 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
             return getDetails("\n");
         }
     }
+
+    //field level changes between two statuses ... ServerTime is not tracked as it changes with every update
+    static public class StatusDelta{
+        public static final String FIELD_SERVICE_NAME = "ServiceName";
+        public static final String FIELD_STATUS_CODE = "StatusCode";
+        public static final String FIELD_STATUS_MESSAGE = "StatusMessage";
+        public static final String FIELD_SERVER_TIME_OFFSET = "ServerTimeOffset";
+        public static final String FIELD_XMPP_ACCOUNT = "XMPPAccount";
+        public static final String FIELD_XMPP_CONTACTS = "XMPPContacts";
+
+        public final Set<String> changedFields = new HashSet<>();
+        public final Map<String, Object> changedDetails = new HashMap<>(); //added or changed
+        public final Set<String> removedDetails = new HashSet<>();
+
+        static public StatusDelta diff(Status previous, Status current){
+            StatusDelta delta = new StatusDelta();
+            delta.compare(FIELD_SERVICE_NAME, previous == null ? null : previous.ServiceName, current.ServiceName, previous == null);
+            delta.compare(FIELD_STATUS_CODE, previous == null ? null : previous.StatusCode, current.StatusCode, previous == null);
+            delta.compare(FIELD_STATUS_MESSAGE, previous == null ? null : previous.StatusMessage, current.StatusMessage, previous == null);
+            delta.compare(FIELD_SERVER_TIME_OFFSET, previous == null ? null : previous.ServerTimeOffset, current.ServerTimeOffset, previous == null);
+            delta.compare(FIELD_XMPP_ACCOUNT, previous == null ? null : previous.XMPPAccount, current.XMPPAccount, previous == null);
+            delta.compare(FIELD_XMPP_CONTACTS, previous == null ? null : previous.XMPPContacts, current.XMPPContacts, previous == null);
+
+            Map<String, Object> before = previous == null || previous.StatusDetails == null ? null : previous.StatusDetails;
+            Map<String, Object> after = current.StatusDetails;
+            if(after != null){
+                for(Map.Entry<String, Object> entry : after.entrySet()){
+                    if(before == null || !before.containsKey(entry.getKey()) || !Objects.equals(before.get(entry.getKey()), entry.getValue())){
+                        delta.changedDetails.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            if(before != null){
+                for(String key : before.keySet()){
+                    if(after == null || !after.containsKey(key)){
+                        delta.removedDetails.add(key);
+                    }
+                }
+            }
+            return delta;
+        }
+
+        private void compare(String field, Object before, Object after, boolean first){
+            if(first || !Objects.equals(before, after)){
+                changedFields.add(field);
+            }
+        }
+
+        public boolean isEmpty(){
+            return changedFields.isEmpty() && changedDetails.isEmpty() && removedDetails.isEmpty();
+        }
+
+        public boolean hasChanged(String field){
+            return changedFields.contains(field);
+        }
+
+        public boolean hasDetailsChanged(){
+            return !changedDetails.isEmpty() || !removedDetails.isEmpty();
+        }
+
+        //folds a later delta in to this one
+        public void merge(StatusDelta later){
+            changedFields.addAll(later.changedFields);
+            for(String key : later.removedDetails){
+                changedDetails.remove(key);
+                removedDetails.add(key);
+            }
+            for(Map.Entry<String, Object> entry : later.changedDetails.entrySet()){
+                removedDetails.remove(entry.getKey());
+                changedDetails.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "fields=" + changedFields + " details changed=" + changedDetails.keySet() + " removed=" + removedDetails;
+        }
+    }
+
+    //streams a Status from the (top level of the) message body, null if none of its fields are there
+    static public class StatusAdapter extends TypeAdapter<Status>{
+        @Override
+        public void write(JsonWriter out, Status value) throws IOException {
+            if(value == null){
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("ServiceName").value(value.ServiceName);
+            out.name("StatusCode").value(value.StatusCode);
+            out.name("StatusMessage").value(value.StatusMessage);
+            out.name("StatusDetails");
+            ChetchTypeRegistry.writeObject(out, value.StatusDetails);
+            out.name("ServerTime");
+            ChetchTypeRegistry.getAdapter(Calendar.class).write(out, value.ServerTime);
+            out.name("ServerTimeOffset").value(value.ServerTimeOffset);
+            out.name("XMPPAccount").value(value.XMPPAccount);
+            out.name("XMPPContacts").value(value.XMPPContacts);
+            out.endObject();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Status read(JsonReader in) throws IOException {
+            Status status = new Status();
+            boolean found = false;
+            in.beginObject();
+            while(in.hasNext()){
+                switch(in.nextName()){
+                    case "ServiceName": status.ServiceName = ChetchTypeRegistry.nextString(in); break;
+                    case "StatusCode": status.StatusCode = ChetchTypeRegistry.nextInt(in, 0); break;
+                    case "StatusMessage": status.StatusMessage = ChetchTypeRegistry.nextString(in); break;
+                    case "StatusDetails": status.StatusDetails = (Map<String, Object>)ChetchTypeRegistry.nextObject(in); break;
+                    case "ServerTime": status.ServerTime = ChetchTypeRegistry.nextCalendar(in); break;
+                    case "ServerTimeOffset": status.ServerTimeOffset = ChetchTypeRegistry.nextInt(in, 0); break;
+                    case "XMPPAccount": status.XMPPAccount = ChetchTypeRegistry.nextString(in); break;
+                    case "XMPPContacts": status.XMPPContacts = ChetchTypeRegistry.nextInt(in, 0); break;
+                    default:
+                        in.skipValue();
+                        continue;
+                }
+                found = true;
+            }
+            in.endObject();
+            return found ? status : null;
+        }
+    }
+
+    //the message being dispatched on a thread and the json body it was decoded from (if it was)
+    static class IncomingBody{
+        Message message;
+        String body;
+    }
+
+    static {
+        ChetchTypeRegistry.register(Status.class, new StatusAdapter());
+        ChetchTypeRegistry.registerEnum(ServiceEvent.class);
+    }
     //endregion
 
     //Chetch network service stuff
@@ -127,50 +313,108 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
     String username = null; //login in to xmpp service with this and password
     String password = null;
     EntityBareJid xmppServiceJid = null; //This is extracted from the service object
-    Chat chat = null; //the chat between this client and the service named by serviceName
-    ChetchXMPPConnection xmppConnection = null;
+    String xmppEndpoint = null; //the service's jid as a string (from the service object or the endpoint cache)
+    String xmppHost = null; //the address of the xmpp server (the service's lan ip)
+    int xmppPort = ChetchXMPPConnection.DEFAULT_PORT;
+    SharedPreferences endpointCache = null;
+    volatile boolean speculativeConnect = false; //true if connecting from cached endpoint details before the webservice has confirmed them
+    //connect outcomes are handled on the main thread (as is loadData) so redirecting and reconnecting only happen there
+    ChetchLiveDataPublisher.IPoster connectionPoster = ChetchLiveDataPublisher.getDefaultPoster();
+    boolean awaitingConnect = false; //true from a connect being started (or waited on) until it completes or fails
+    boolean redirectPending = false; //true if the cached details turned out wrong whilst still connecting to them
+    volatile Chat chat = null; //the chat between this client and the service named by serviceName (set up on the lifecycle thread)
+    volatile ChetchXMPPConnection xmppConnection = null;
+    boolean shareConnection = false; //if true the connection is acquired (see ChetchXMPPConnection.acquire) once the endpoint is known
+    final List<IChetchIncomingMessageListener> messageListeners = new CopyOnWriteArrayList<>(); //added with addMessageListener, moved with the connection
     Observer xmppConnectionObserver = null;
 
     //messaging stuff
-    Calendar lastMessageReceivedOn = null;
-    Calendar lastMessageSentOn = null;
-    long pingInterval = 10000; //ping interval in ms
-
-    //timer stuff
-    long timerDelay = 2000; //IN MILLIS!
-    Calendar timerStartedOn = null;
-    Handler timerHandler = new Handler();
-    Runnable timerRunnable = new Runnable() {
+    //System.nanoTime() values, 0 for none
+    volatile long lastMessageReceivedOn = 0;
+    volatile long lastMessageSentOn = 0;
+    long pingInterval = 10000; //ping interval in ms (the minimum once the interval is adapted to the RTT)
+    long maxPingInterval = DEFAULT_MAX_PING_INTERVAL;
+    volatile long currentPingInterval = 0; //adapted on ping responses, 0 to use pingInterval
+
+    //last known state kept on disk (if enabled) so it can be shown at once on a cold start
+    ChetchSnapshotStore snapshotStore = null;
+    final Set<String> liveSnapshotKeys = new HashSet<>();
+    final Set<String> restoredSnapshotKeys = new HashSet<>();
+    boolean snapshotsStale = false;
+
+    //commands issued before we are subscribed are kept in the outbox (if there is one) and sent once we are
+    volatile boolean subscribed = false;
+    ChetchOutbox outbox = null;
+    long outboxTTL = ChetchOutbox.DEFAULT_TTL;
+    volatile boolean outboxPending = false; //true whilst the outbox may hold messages (so later commands queue behind them)
+    final AtomicInteger outboxAdds = new AtomicInteger(); //adds yet to reach the outbox (so a drain finishing doesn't clear outboxPending under them)
+
+    //request/response correlation (keyed by message Tag)
+    static final AtomicLong tagCounter = new AtomicLong();
+    Map<String, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+
+    //payloads are streamed from the body of the message being dispatched (see decodeAsClass)
+    final ThreadLocal<IncomingBody> incomingBody = new ThreadLocal<IncomingBody>(){ //not withInitial, that needs API 26
         @Override
-        public void run() {
-            long nextTimer = onTimer();
-            if(nextTimer > 0) {
-                timerHandler.postDelayed(this, timerDelay);
-            }
+        protected IncomingBody initialValue() {
+            return new IncomingBody();
         }
     };
 
+    //timer stuff (all view models share one timing wheel for the timekeeping, onTimer is posted to the main thread)
+    long timerDelay = 2000; //IN MILLIS!
+    boolean timerStarted = false;
+    ChetchTimingWheel timingWheel = ChetchTimingWheel.getShared();
+    ChetchTimingWheel.Task timerTask = new ChetchTimingWheel.Task(this::runTimer);
+    ChetchLiveDataPublisher.IPoster timerPoster = ChetchLiveDataPublisher.getDefaultPoster();
+    final Runnable timerRunnable = this::fireTimer;
+
     //live data observables
     public MutableLiveData<Map<String,String>> help = new MutableLiveData<>();
-    public MutableLiveData<Status> status = new MutableLiveData<>();
+    public MutableLiveData<Status> status = new MutableLiveData<>(); //only posted when something other than the server time changes
+    public MutableLiveData<StatusDelta> statusDelta = new MutableLiveData<>(); //what changed with the last status post
     public MutableLiveData<Object> version = new MutableLiveData<>();
     public MutableLiveData<Object> about = new MutableLiveData<>();
-
-    //Message filtering
-    List<MessageFilter> messageFilters = new ArrayList<>();
+    public MutableLiveData<ChatMetrics.Snapshot> metrics = new MutableLiveData<>(); //for the chat with this service, updated on timer
+    public MutableLiveData<ConnectionMetrics.Snapshot> connectionMetrics = new MutableLiveData<>();
+    public MutableLiveData<Boolean> stale = new MutableLiveData<>(false); //true whilst showing restored snapshots not yet replaced by live data
+    public MutableLiveData<Long> rtt = new MutableLiveData<>(); //smoothed round trip in millis
+    public MutableLiveData<Long> jitter = new MutableLiveData<>(); //round trip variance in millis
+    public MutableLiveData<Long> livenessTimeout = new MutableLiveData<>(); //in millis, silence for longer than this means not responding
+
+    //status tracking (see onStatusUpdateReceived)
+    final Object statusLock = new Object();
+    Status lastStatus = null;
+    long statusConflation = 0; //in millis, 0 to post every change (bursts within one main thread turn are still conflated)
+    Map<String, ChetchLiveDataPublisher.Channel<Object>> statusDetails = new ConcurrentHashMap<>();
+
+    //outputs published from filter/message callbacks go through here (see ChetchLiveDataPublisher for the policies)
+    protected ChetchLiveDataPublisher publisher = new ChetchLiveDataPublisher();
+    ChetchLiveDataPublisher.Channel<Status> statusChannel = publisher.latest(status, 0);
+    ChetchLiveDataPublisher.Channel<StatusDelta> statusDeltaChannel = publisher.latest(statusDelta, 0, (d1, d2) -> {
+        d1.merge(d2);
+        return d1;
+    });
+
+    //Message filtering (indexed by message type and, for command responses, by command)
+    MessageFilterIndex messageFilters = new MessageFilterIndex();
 
     //region Message Filters
     MessageFilter helpResponse = new CommandResponseFilter(null, COMMAND_HELP) {
         @Override
         protected void onMatched(Message message) {
-            help.postValue(message.getAsClass("Help", TreeMap.class));
+            Map<String, String> h = message.getAsClass("Help", TreeMap.class);
+            markLive(SNAPSHOT_HELP, h);
+            help.postValue(h);
         }
     };
 
     MessageFilter versionResponse = new CommandResponseFilter(null, COMMAND_VERSION) {
         @Override
         protected void onMatched(Message message) {
-            version.postValue(message.getString("Version"));
+            String v = message.getString("Version");
+            markLive(SNAPSHOT_VERSION, v);
+            version.postValue(v);
         }
     };
 
@@ -188,18 +432,29 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
             if(pingInterval < timerDelay + 2000){
                 throw new ChetchXMPPException("Ping interval must be greater than timer interval plus latency");
             }
-            xmppConnection = ChetchXMPPConnection.create(context);
+            if(shareConnection){
+                ChetchXMPPConnection.initialise(context);
+            } else if(xmppConnection == null) {
+                xmppConnection = ChetchXMPPConnection.create(context);
+                xmppConnection.setResumable(true);
+            }
+            if(xmppConnection != null) {
+                xmppConnection.addConnectionListener(this);
+            }
+            endpointCache = context == null ? null : context.getSharedPreferences(ENDPOINT_CACHE_NAME, Context.MODE_PRIVATE); //no context when headless
 
             //filters
-            addMessageFilter(helpResponse);
-            addMessageFilter(aboutResponse);
-            addMessageFilter(versionResponse);
+            addCommandResponseFilter(helpResponse, COMMAND_HELP);
+            addCommandResponseFilter(aboutResponse, COMMAND_ABOUT);
+            addCommandResponseFilter(versionResponse, COMMAND_VERSION);
         } catch (Exception e){
             e.printStackTrace();
         }
     }
 
     public void init(Context context, String username, String password, String serviceName){
+        //view models for the same user and server share one connection, acquired when connecting (see acquireConnection)
+        shareConnection = xmppConnection == null && username != null;
         init(context);
         setCredentials(username, password);
         this.serviceName = serviceName;
@@ -213,11 +468,13 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
 
     //region Timer methods
     protected void startTimer(long timerDelay, long postDelay){
-        if(timerStartedOn != null)return;
-        this.timerDelay = timerDelay;
+        synchronized (timerTask) {
+            if(timerStarted)return;
+            this.timerDelay = timerDelay;
 
-        timerHandler.postDelayed(timerRunnable, postDelay);
-        timerStartedOn = Calendar.getInstance();
+            timingWheel.schedule(timerTask, postDelay);
+            timerStarted = true;
+        }
     }
 
     protected void startTimer(long timerDelay){
@@ -229,21 +486,47 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
     }
 
     protected void stopTimer(){
-        timerHandler.removeCallbacks(timerRunnable);
-        timerStartedOn = null;
+        synchronized (timerTask) {
+            timerTask.cancel();
+            timerStarted = false;
+        }
     }
 
+    //on the wheel thread
+    private void runTimer(){
+        timerPoster.post(timerRunnable, 0);
+    }
+
+    //on the main thread, the timer is re-armed once onTimer returns so calls never overlap
+    private void fireTimer(){
+        synchronized (timerTask) {
+            if(!timerStarted)return; //stopped since being posted
+        }
+        long nextTimer = onTimer();
+        synchronized (timerTask) {
+            if(timerStarted && nextTimer > 0) {
+                timingWheel.schedule(timerTask, timerDelay);
+            }
+        }
+    }
+
+    static protected long millisSince(long nanoTime){
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+    }
+
+    //called on the main thread every timerDelay whilst the timer is started
     protected long onTimer(){
         long nextTimerOn = timerDelay;
 
+        postMetrics();
+
         //timer based monitoring of server
         if(xmppConnection != null && !xmppConnection.isConnecting() && !isServiceResponding()){
             String errMsg = "ChetchXMPPViewModel::onTimer the service " + serviceName + " is not responding";
-            if(lastMessageReceivedOn == null){
-                long nowInMs = Calendar.getInstance().getTimeInMillis();
-                long lastSentMs = (lastMessageSentOn != null) ? lastMessageSentOn.getTimeInMillis() : 0;
-                if(lastSentMs > 0){
-                    errMsg += " ... message sent " + (nowInMs - lastSentMs) + "ms ago but no message yet received";
+            if(lastMessageReceivedOn == 0){
+                long lastSent = lastMessageSentOn;
+                if(lastSent != 0){
+                    errMsg += " ... message sent " + millisSince(lastSent) + "ms ago but no message yet received";
                 } else {
                     errMsg += " ... no message recorded as sent??? ";
                 }
@@ -251,12 +534,14 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
             setError(new ChetchXMPPException(errMsg));
 
             Log.e("ChetchXMPPViewModel", errMsg);
+
+            //ping at the base rate until we hear from the service again
+            currentPingInterval = 0;
         }
         //determine if ping reuqired and if so then send
-        if(lastMessageSentOn != null){
-            long nowInMs = Calendar.getInstance().getTimeInMillis();
-            long useTime = (lastMessageReceivedOn == null ? lastMessageSentOn : lastMessageReceivedOn).getTimeInMillis();
-            if(nowInMs - useTime > pingInterval){
+        if(lastMessageSentOn != 0){
+            long useTime = lastMessageReceivedOn == 0 ? lastMessageSentOn : lastMessageReceivedOn;
+            if(millisSince(useTime) > getPingInterval()){
                 try {
                     sendPing();
                     Log.d("ChetchXMPPViewModel", "Sending ping");
@@ -274,6 +559,35 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
     }
     //endregion
 
+    //region Metrics
+    protected void postMetrics(){
+        if(xmppConnection == null)return;
+
+        if(xmppServiceJid != null) {
+            metrics.postValue(xmppConnection.getChatMetrics(xmppServiceJid).getSnapshot());
+        }
+        connectionMetrics.postValue(xmppConnection.getMetrics().getSnapshot());
+
+        RttEstimator estimator = getRttEstimator();
+        if(estimator != null && estimator.getSamples() > 0){
+            postIfChanged(rtt, estimator.getSmoothedRtt());
+            postIfChanged(jitter, estimator.getRttVariance());
+        }
+        postIfChanged(livenessTimeout, getLivenessTimeout());
+    }
+
+    private void postIfChanged(MutableLiveData<Long> liveData, long value){
+        Long current = liveData.getValue();
+        if(current == null || current != value){
+            liveData.postValue(value);
+        }
+    }
+
+    public ChatMetrics.Snapshot getMetricsSnapshot(){
+        return xmppConnection == null || xmppServiceJid == null ? null : xmppConnection.getChatMetrics(xmppServiceJid).getSnapshot();
+    }
+    //endregion
+
     //region Webservice Viewmodel functionality
     public DataStore loadData(Observer observer) throws Exception {
         //in the case of being called after we've already loaded
@@ -281,7 +595,7 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
             if(SLog.LOG)SLog.w("ChetchXMPPViewModel", "XMPP connection already established");
         }
 
-        if(xmppConnection == null){
+        if(xmppConnection == null && !shareConnection){
             throw new Exception("Service must have connection object");
         }
 
@@ -293,15 +607,117 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
             throw new Exception("Service must have a password");
         }
 
+        //if we have the endpoint from last time we can connect and login whilst the webservice is being queried
+        speculativeConnect = false;
+        if(!isReadyForChat() && (xmppConnection == null || !xmppConnection.isConnecting()) && loadCachedEndpoint()){
+            if(SLog.LOG)SLog.i("ChetchXMPPViewModel", "Connecting speculatively to " + xmppEndpoint + " @ " + xmppHost);
+            speculativeConnect = true;
+            connectToXMPPServer(observer);
+        }
+
         if(SLog.LOG)SLog.i("ChetchXMPPViewModel", "Loading data for xmpp user " + username);
+        final String host = xmppHost;
+        final String endpoint = xmppEndpoint;
         DataStore<?> dataStore = super.loadData(observer);
         dataStore.observe(services-> {
             if(SLog.LOG)SLog.i("ChetchXMPPViewModel", "Loaded services...");
+            if(speculativeConnect){
+                speculativeConnect = false;
+                if(Objects.equals(host, xmppHost) && Objects.equals(endpoint, xmppEndpoint)){
+                    //the cache was right so the connection already under way (or made) stands
+                    if(SLog.LOG)SLog.i("ChetchXMPPViewModel", "Cached endpoint confirmed");
+                    if(xmppConnection != null && (xmppConnection.isConnected() || xmppConnection.isConnecting())) {
+                        notifyObserver(observer, xmppConnection);
+                        return;
+                    }
+                } else {
+                    //the service has moved so start again with the fresh details
+                    if(SLog.LOG)SLog.i("ChetchXMPPViewModel", "Cached endpoint " + endpoint + " @ " + host + " is stale so redirecting to " + xmppEndpoint + " @ " + xmppHost);
+                    chat = null;
+                    if(awaitingConnect){
+                        //can't interrupt a connect so redirect once it completes (or fails) ... both are handled on this thread so can't be missed
+                        redirectPending = true;
+                        notifyObserver(observer, xmppConnection);
+                        return;
+                    }
+                    redirect();
+                }
+            }
             connectToXMPPServer(observer);
         });
         return dataStore;
     }
 
+    //other view models may be using a shared connection so only this view model's reference is released (and
+    //connectToXMPPServer acquires one for the new endpoint), a private connection is disconnected
+    private void redirect(){
+        redirectPending = false;
+        if(shareConnection){
+            releaseConnection();
+            return;
+        }
+        try {
+            xmppConnection.disconnect();
+        } catch (Exception e){
+            Log.e("ChetchXMPPViewModel", "Disconnecting from stale endpoint: " + e.getMessage());
+        }
+    }
+
+    //connects without the webservice using an endpoint supplied with setServiceEndpoint (e.g. a local test server)
+    public void connect(Observer observer) throws Exception{
+        if(xmppServiceJid == null || xmppHost == null){
+            throw new ChetchXMPPException("ChetchXMPPViewModel::connect no service endpoint has been set");
+        }
+        if(xmppConnection == null && !shareConnection){
+            throw new Exception("Service must have connection object");
+        }
+        if(username == null || password == null){
+            throw new Exception("Service must have a username and password");
+        }
+        connectToXMPPServer(observer);
+    }
+
+    //sets where to find the service and its xmpp server (normally from the webservice but can be supplied directly)
+    public void setServiceEndpoint(String endpoint, String host, int port) throws Exception{
+        EntityBareJid oldJid = xmppServiceJid;
+        xmppServiceJid = JidCreate.entityBareFrom(endpoint);
+        xmppEndpoint = endpoint;
+        xmppHost = host;
+        xmppPort = port;
+
+        //update message filters (including any set for a previous endpoint)
+        for (MessageFilter mf : messageFilters.getFilters()) {
+            if (mf.Sender == null || mf.Sender.isEmpty() || (oldJid != null && mf.Sender.equals(oldJid.toString()))) {
+                mf.Sender = xmppServiceJid.toString();
+            }
+        }
+    }
+
+    public void setServiceEndpoint(String endpoint, String host) throws Exception{
+        setServiceEndpoint(endpoint, host, ChetchXMPPConnection.DEFAULT_PORT);
+    }
+
+    private boolean loadCachedEndpoint(){
+        if(endpointCache == null || serviceName == null)return false;
+        String endpoint = endpointCache.getString(serviceName + ".endpoint", null);
+        String host = endpointCache.getString(serviceName + ".host", null);
+        if(endpoint == null || host == null)return false;
+        try {
+            setServiceEndpoint(endpoint, host);
+            return true;
+        } catch (Exception e){
+            return false;
+        }
+    }
+
+    private void saveCachedEndpoint(){
+        if(endpointCache == null || serviceName == null)return;
+        endpointCache.edit()
+                .putString(serviceName + ".endpoint", xmppEndpoint)
+                .putString(serviceName + ".host", xmppHost)
+                .apply(); //written in the background
+    }
+
     @Override
     protected boolean configureServices(Services services) {
         boolean configured = super.configureServices(services);
@@ -309,12 +725,8 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
             chetchXMPPService = services.getService(serviceName);
             try {
                 //create a bare JID from the endpoint and update message filters
-                xmppServiceJid = JidCreate.entityBareFrom(chetchXMPPService.getEndpoint());
-                for (MessageFilter mf : messageFilters) {
-                    if (xmppServiceJid != null && (mf.Sender == null || mf.Sender.isEmpty())) {
-                        mf.Sender = xmppServiceJid.toString();
-                    }
-                }
+                setServiceEndpoint(chetchXMPPService.getEndpoint(), chetchXMPPService.getLanIP());
+                saveCachedEndpoint();
             } catch (Exception e){
                 setError(e);
                 configured = false;
@@ -327,17 +739,46 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
         return super.isReady() && isServiceResponding();
     }
 
+    //the round trip estimator for the chat with this service (fed by every response that echoes a tag we sent e.g. pings and commands)
+    public RttEstimator getRttEstimator(){
+        return xmppConnection == null || xmppServiceJid == null ? null : xmppConnection.getChatMetrics(xmppServiceJid).getRttEstimator();
+    }
+
+    public long getPingInterval(){
+        long interval = currentPingInterval;
+        return interval <= 0 ? pingInterval : interval;
+    }
+
+    //we ping after getPingInterval of silence, the timer may take up to timerDelay to notice and then the response takes up to the RTO
+    public long getLivenessTimeout(){
+        RttEstimator estimator = getRttEstimator();
+        long rto = estimator == null ? RttEstimator.INITIAL_RTO : estimator.getRto();
+        return getPingInterval() + timerDelay + LIVENESS_RTO_MULTIPLIER*rto;
+    }
+
+    //a steady link stretches the ping interval (multiplicatively up to maxPingInterval) and a late response drops it back to pingInterval
+    protected void adaptPingInterval(){
+        RttEstimator estimator = getRttEstimator();
+        if(estimator == null)return;
+
+        int onTime = estimator.getConsecutiveOnTime();
+        if(onTime == 0){
+            currentPingInterval = 0;
+        } else if(onTime >= PING_STABLE_SAMPLES){
+            currentPingInterval = Math.min(maxPingInterval, Math.max(pingInterval, getPingInterval()*3/2));
+        }
+    }
+
     public boolean isServiceResponding(){
         if(xmppConnection == null || !xmppConnection.isReadyForChat()){
             return false;
         }
 
         boolean responding = false;
-        if(lastMessageReceivedOn != null){
-            long lms = lastMessageReceivedOn.getTimeInMillis();
-            Calendar now = Calendar.getInstance();
-            long ms = now.getTimeInMillis() - lms;
-            responding = ms <= 1.5*pingInterval; //add some time for latency
+        long lastReceived = lastMessageReceivedOn;
+        if(lastReceived != 0){
+            long ms = millisSince(lastReceived);
+            responding = ms <= getLivenessTimeout();
             if(!responding){
                 Log.e("ChetchXMPPViewModel", "who not responding");
             }
@@ -362,30 +803,44 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
      */
     private void connectToXMPPServer(Observer connectionObserver){
         xmppConnectionObserver = connectionObserver;
+        subscribed = false;
 
         stopTimer();
-        lastMessageReceivedOn = null;
-        lastMessageSentOn = null;
+        lastMessageReceivedOn = 0;
+        lastMessageSentOn = 0;
 
         try{
+            acquireConnection();
             if(xmppConnection != null){
                 if(xmppConnection.isReadyForChat()) {
-                    if (SLog.LOG) SLog.i("ChetchXMPPViewModel", "::connectToXMPPServer Ready for chat so subscribing and starting timer...");
-                    subscribe(); //subscribes to the service (providing it's on of course)
-                    startTimer(timerDelay);
+                    if(chat == null){
+                        //a shared connection authenticated by another view model so we need our own chat
+                        if (SLog.LOG) SLog.i("ChetchXMPPViewModel", "::connectToXMPPServer Ready for chat so setting up chat...");
+                        xmppConnection.executeStage(ChetchXMPPLifecycleExecutor.Stage.CHAT_SETUP, this::setupChat);
+                    } else {
+                        if (SLog.LOG) SLog.i("ChetchXMPPViewModel", "::connectToXMPPServer Ready for chat so subscribing and starting timer...");
+                        subscribe(); //subscribes to the service (providing it's on of course)
+                        startTimer(timerDelay);
+                    }
                     notifyObserver(connectionObserver, xmppConnection);
                     return;
-                } else if(xmppConnection.isConnected() || xmppConnection.isConnecting()) {
+                } else if(xmppConnection.isConnected() || xmppConnection.isConnecting() || xmppConnection.isResuming()) {
                     //we wait
                     if (SLog.LOG) SLog.i("ChetchXMPPViewModel", "::connectToXMPPServer Waiting for connection process to complete...");
+                    awaitingConnect = xmppConnection.isConnecting();
                     notifyObserver(connectionObserver, xmppConnection);
                     return;
                 }
             }
 
             if(SLog.LOG)SLog.i("ChetchXMPPViewModel", "Connecting to XMPP server..");
-            xmppConnection.reset();
-            xmppConnection.connect(chetchXMPPService.getLanIP(), xmppServiceJid.getDomain().toString(), this);
+            if(!xmppConnection.isShared()){
+                //a shared connection resets itself when it closes or fails and has the port it was acquired for
+                xmppConnection.reset();
+                xmppConnection.setPort(xmppPort);
+            }
+            xmppConnection.connect(xmppHost, xmppServiceJid.getDomain().toString(), this);
+            awaitingConnect = true;
             notifyObserver(connectionObserver, xmppConnection);
         } catch (Exception e){
             if(SLog.LOG)SLog.e("ChetchXMPPViewModel", e.getMessage());
@@ -394,19 +849,100 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
         }
     }
 
+    //a shared connection is for one endpoint so if the endpoint has changed this view model's reference moves to one for the new endpoint
+    private void acquireConnection() throws Exception{
+        if(!shareConnection)return;
+
+        String domain = xmppServiceJid.getDomain().toString();
+        if(xmppConnection != null && xmppConnection.isSharedFor(xmppHost, xmppPort, domain))return;
+
+        releaseConnection();
+        xmppConnection = ChetchXMPPConnection.acquire(xmppHost, xmppPort, domain, username);
+        xmppConnection.addConnectionListener(this);
+        for(IChetchIncomingMessageListener listener : messageListeners){
+            xmppConnection.addMessageListener(xmppServiceJid, listener);
+        }
+    }
+
+    private void releaseConnection(){
+        if(xmppConnection == null)return;
+
+        xmppConnection.removeConnectionListener(this);
+        xmppConnection.removeMessageListener((IChetchIncomingMessageListener)this);
+        xmppConnection.removeMessageListener((IChetchOutgoingMessageListener)this);
+        for(IChetchIncomingMessageListener listener : messageListeners){
+            xmppConnection.removeMessageListener(listener);
+        }
+        xmppConnection.release();
+        if(shareConnection){
+            xmppConnection = null;
+            chat = null;
+        }
+    }
+
+    //null for a shared connection until connecting
     public ChetchXMPPConnection getConnection(){
         return xmppConnection;
     }
 
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+
+        stopTimer();
+        releaseConnection();
+
+        publisher.clear();
+        if(outbox != null){
+            outbox.close();
+        }
+        if(snapshotStore != null){
+            snapshotStore.flush();
+        }
+
+        //nothing will now complete these
+        for(PendingRequest request : pendingRequests.values()){
+            request.future.cancel(false);
+        }
+    }
+
+    //called on the connection's lifecycle thread
     @Override
     public void connectFailed(Exception e){
+        connectionPoster.post(() -> onConnectFailed(e), 0);
+    }
+
+    private void onConnectFailed(Exception e){
+        awaitingConnect = false;
+        if(speculativeConnect || redirectPending){
+            //the cached details were wrong (or the server has moved) so wait for or use the webservice details instead
+            if(SLog.LOG)SLog.w("ChetchXMPPViewModel", "Connect to cached endpoint failed: " + e.getMessage());
+            if(redirectPending){
+                //the connection resets itself after notifying listeners so connect again once that's done
+                redirectPending = false;
+                connectionPoster.post(() -> connectToXMPPServer(xmppConnectionObserver), ChetchTimingWheel.DEFAULT_TICK);
+            }
+            return;
+        }
         if(SLog.LOG)SLog.e("ChetchXMPPViewModel", e.getMessage());
         e.printStackTrace();
         setError(e);
     }
 
+    //called on the connection's lifecycle thread
     @Override
     public void connected(XMPPConnection connection) {
+        connectionPoster.post(this::onConnected, 0);
+    }
+
+    private void onConnected(){
+        awaitingConnect = false;
+        if(xmppConnection == null)return; //released since
+        if(redirectPending){
+            redirect();
+            connectToXMPPServer(xmppConnectionObserver);
+            return;
+        }
         if(xmppConnectionObserver != null){
             notifyObserver(xmppConnectionObserver, xmppConnection);
         }
@@ -421,6 +957,7 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
 
     @Override
     public void connectionClosedOnError(Exception e){
+        subscribed = false;
         if(SLog.LOG)SLog.e("ChetchXMPPViewModel", e.getMessage());
         e.printStackTrace();
         setError(e);
@@ -434,13 +971,30 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
     }
 
     //final stage of a successful logon process
-    //IMPORTANT:  Do NOT send a message from within this method as it cuases things to hang
+    //IMPORTANT:  Do NOT send a message from within this method as it cuases things to hang ... hence chat setup is queued as a lifecycle stage
     @Override
     public void authenticated(XMPPConnection arg0, boolean arg1) {
         if(SLog.LOG)SLog.i("ChetchXMPPViewModel", "Authenticated!");
 
+        //a resumed stream keeps the chat and the service subscription so there is nothing to set up
+        if(arg1 && chat != null){
+            if(SLog.LOG)SLog.i("ChetchXMPPViewModel", "Stream resumed so no need to resubscribe");
+            startTimer(timerDelay);
+            return;
+        }
+
+        subscribed = false;
+        try {
+            xmppConnection.executeStage(ChetchXMPPLifecycleExecutor.Stage.CHAT_SETUP, this::setupChat);
+        } catch(Exception e){
+            setError(e);
+            e.printStackTrace();
+        }
+    }
+
+    private void setupChat(){
         //we now check if the service (client) is online
-        String chatPartner = chetchXMPPService.getEndpoint();
+        String chatPartner = xmppEndpoint;
         try {
             chat = xmppConnection.createChat(chatPartner, this, this);
             //add this person to the roster
@@ -451,21 +1005,230 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
             setError(e);
             e.printStackTrace();
         }
-
     }
     //endregion
 
     //region Sending messages
+    //the counter keeps tags unique when several messages are sent in the same millisecond
+    static protected String createTag(){
+        return "MS:" + Calendar.getInstance().getTimeInMillis() + ":" + tagCounter.incrementAndGet();
+    }
+
     public void sendMessage(Message message) throws Exception{
         if(message.Tag == null || message.Tag.isEmpty()){
-            message.Tag = "MS:" + Calendar.getInstance().getTimeInMillis();
+            message.Tag = createTag();
+        }
+        if(outbox != null && message.Type == MessageType.COMMAND && (outboxPending || !isSubscribed())){
+            addToOutbox(message);
+            return;
+        }
+        if(chat == null){
+            throw new ChetchXMPPException("ChetchXMPPViewModel::sendMessage no chat with service " + serviceName);
         }
-        xmppConnection.sendMessage(chat, message);
+
+        //queued on the connection's outbound queue so this never blocks the caller
+        xmppConnection.sendMessageAsync(chat, message).exceptionally(t -> {
+            setError(t);
+            return null;
+        });
+    }
+
+    //region Snapshots
+    //restores (asynchronously) the last known state and then keeps it up to date
+    public void enableSnapshots(Context context){
+        String name = serviceName == null ? "default" : serviceName.replaceAll("[^A-Za-z0-9_-]", "_");
+        snapshotStore = new ChetchSnapshotStore(new File(new File(context.getFilesDir(), "chetch-snapshots"), name));
+        restoreSnapshots();
+    }
+
+    public ChetchSnapshotStore getSnapshotStore(){
+        return snapshotStore;
+    }
+
+    //subclasses override to restore their own keys (calling super)
+    protected void restoreSnapshots(){
+        snapshotStore.<Status>get(SNAPSHOT_STATUS, Status.class).thenAccept(restored -> {
+            if(restored == null)return;
+            synchronized (statusLock) {
+                if(lastStatus != null)return; //live got there first
+                if(applyRestored(SNAPSHOT_STATUS, () -> publishStatus(restored, StatusDelta.diff(null, restored)))){
+                    lastStatus = restored;
+                }
+            }
+        });
+        snapshotStore.<Map<String, String>>get(SNAPSHOT_HELP, TreeMap.class).thenAccept(restored -> {
+            if(restored != null)applyRestored(SNAPSHOT_HELP, () -> help.postValue(restored));
+        });
+        snapshotStore.<String>get(SNAPSHOT_VERSION, String.class).thenAccept(restored -> {
+            if(restored != null)applyRestored(SNAPSHOT_VERSION, () -> version.postValue(restored));
+        });
+    }
+
+    //live data always wins over restored data however the two race ... call before publishing the live value
+    protected void markLive(String key, Object value){
+        if(snapshotStore == null)return;
+
+        synchronized (liveSnapshotKeys) {
+            liveSnapshotKeys.add(key);
+            updateStale();
+        }
+        snapshotStore.put(key, value);
+    }
+
+    //runs publish (and returns true) only if there is no live data yet for this key
+    protected boolean applyRestored(String key, Runnable publish){
+        synchronized (liveSnapshotKeys) {
+            if(liveSnapshotKeys.contains(key))return false;
+            restoredSnapshotKeys.add(key);
+            publish.run();
+            updateStale();
+            return true;
+        }
+    }
+
+    protected boolean isSnapshotStale(String key){
+        synchronized (liveSnapshotKeys) {
+            return restoredSnapshotKeys.contains(key) && !liveSnapshotKeys.contains(key);
+        }
+    }
+
+    //called with lock held
+    private void updateStale(){
+        boolean isStale = false;
+        for(String key : restoredSnapshotKeys){
+            if(!liveSnapshotKeys.contains(key)){
+                isStale = true;
+                break;
+            }
+        }
+        if(isStale != snapshotsStale){
+            snapshotsStale = isStale;
+            stale.postValue(isStale);
+        }
+    }
+    //endregion
+
+    //region Outbox
+    //commands sent whilst not subscribed are written to a file in the app's files directory and sent (in order) once subscribed
+    public void enableOutbox(Context context, long ttl){
+        String name = serviceName == null ? "default" : serviceName.replaceAll("[^A-Za-z0-9_-]", "_");
+        setOutbox(new ChetchOutbox(new File(new File(context.getFilesDir(), "chetch-outbox"), name + ".log")), ttl);
+    }
+
+    public void enableOutbox(Context context){
+        enableOutbox(context, ChetchOutbox.DEFAULT_TTL);
+    }
+
+    public void setOutbox(ChetchOutbox outbox, long ttl){
+        this.outbox = outbox;
+        outboxTTL = ttl;
+        outboxPending = outbox != null; //it may have been loaded with messages from a previous run
+        if(isSubscribed()){
+            drainOutbox();
+        }
+    }
+
+    public ChetchOutbox getOutbox(){
+        return outbox;
+    }
+
+    public boolean isSubscribed(){
+        return subscribed && chat != null && isReadyForChat();
+    }
+
+    private void addToOutbox(Message message){
+        //counted before outboxPending is set (see drainOutbox)
+        outboxAdds.incrementAndGet();
+        outboxPending = true;
+        outbox.add(message, outboxTTL).whenComplete((added, t) -> {
+            outboxAdds.decrementAndGet();
+            if(t != null)setError(t);
+        });
+        if(isSubscribed()){
+            drainOutbox();
+        }
+        Log.i("ChetchXMPPViewModel", "Not subscribed to " + serviceName + " so command " + message.Tag + " added to outbox");
+    }
+
+    //messages go out through the outbound queue one after the other (each once the previous has been sent) in the order they were added
+    protected void drainOutbox(){
+        final ChetchOutbox ob = outbox;
+        if(ob == null)return;
+
+        ob.drain(message -> {
+            if(!isSubscribed())return CompletableFuture.completedFuture(false);
+            return xmppConnection.sendMessageAsync(chat, message).thenApply(stanza -> true);
+        }).thenAcceptAsync(count -> {
+            //on the outbox executor (where adds happen) ... an add yet to happen was counted before outboxPending was set so
+            //checking the count again after clearing it means outboxPending can't be left false with a message still to go in
+            if(ob.size() == 0 && outboxAdds.get() == 0){
+                outboxPending = false;
+                if(outboxAdds.get() > 0)outboxPending = true;
+            }
+            if(count > 0)Log.i("ChetchXMPPViewModel", "Sent " + count + " commands from outbox");
+        }, ob.getExecutor()).exceptionally(t -> {
+            setError(t);
+            return null;
+        });
+    }
+    //endregion
+
+    /*
+    Sends the message and returns a future completed by the response carrying the same Tag (an ERROR response completes it
+    exceptionally with a ChetchXMPPViewModelException). If no response arrives within timeout millis (0 for no deadline) the future
+    completes with a TimeoutException. Cancelling the future stops waiting for the response. The response is still processed as
+    normal (filters, live data etc.) and the future is completed on the delivering thread so use the thenXxxAsync methods for
+    anything slow.
+     */
+    public CompletableFuture<Message> sendMessageAsync(Message message, long timeout){
+        if(message.Tag == null || message.Tag.isEmpty()){
+            message.Tag = createTag();
+        }
+
+        final PendingRequest request = new PendingRequest(message.Tag);
+        if(chat == null){
+            request.future.completeExceptionally(new ChetchXMPPException("ChetchXMPPViewModel::sendMessageAsync no chat with service " + serviceName));
+            return request.future;
+        }
+        if(pendingRequests.putIfAbsent(request.tag, request) != null){
+            request.future.completeExceptionally(new ChetchXMPPException("ChetchXMPPViewModel::sendMessageAsync a request with tag " + request.tag + " is already pending"));
+            return request.future;
+        }
+
+        //however the request completes (response, timeout, failed send or cancelled) it is no longer pending
+        request.future.whenComplete((response, t) -> {
+            pendingRequests.remove(request.tag, request);
+            ChetchTimingWheel.Task timeoutTask = request.timeout;
+            if(timeoutTask != null)timeoutTask.cancel();
+        });
+
+        if(timeout > 0){
+            final MessageType type = message.Type;
+            request.timeout = timingWheel.schedule(() -> {
+                request.future.completeExceptionally(new TimeoutException("ChetchXMPPViewModel::sendMessageAsync no response to " + type + " " + request.tag + " from " + serviceName + " after " + timeout + "ms"));
+            }, timeout);
+            if(request.future.isDone())request.timeout.cancel();
+        }
+
+        //folding would send another message's tag in place of ours
+        xmppConnection.sendMessageAsync(chat, message, false).whenComplete((stanza, t) -> {
+            if(t != null)request.future.completeExceptionally(t);
+        });
+        return request.future;
+    }
+
+    public CompletableFuture<Message> sendMessageAsync(Message message){
+        return sendMessageAsync(message, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    public int getPendingRequestCount(){
+        return pendingRequests.size();
     }
 
     public void subscribe() throws Exception {
         Message subscribe = new Message();
         subscribe.Type = MessageType.SUBSCRIBE;
+        subscribe.addValue(MESSAGE_FIELD_BODY_CODECS, ChetchXMPPConnection.getBodyCodecNames());
         sendMessage(subscribe);
         Log.d("ChetchXMPPViewModel", "Subscribing to service...");
     }
@@ -483,8 +1246,32 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
     }
 
     public void sendCommand(String commandAndArgs, Object ... args) throws Exception{
+        sendMessage(createCommand(commandAndArgs, args));
+    }
+
+    public CompletableFuture<Message> sendCommandAsync(long timeout, String commandAndArgs, Object ... args) throws Exception{
+        return sendMessageAsync(createCommand(commandAndArgs, args), timeout);
+    }
+
+    public CompletableFuture<Message> sendCommandAsync(String commandAndArgs, Object ... args) throws Exception{
+        return sendCommandAsync(DEFAULT_REQUEST_TIMEOUT, commandAndArgs, args);
+    }
+
+    public void sendCommand(CommandTemplate command, Object ... args) throws Exception{
+        sendMessage(command.create(args));
+    }
+
+    public CompletableFuture<Message> sendCommandAsync(long timeout, CommandTemplate command, Object ... args) throws Exception{
+        return sendMessageAsync(command.create(args), timeout);
+    }
+
+    public CompletableFuture<Message> sendCommandAsync(CommandTemplate command, Object ... args) throws Exception{
+        return sendCommandAsync(DEFAULT_REQUEST_TIMEOUT, command, args);
+    }
+
+    protected Message createCommand(String commandAndArgs, Object ... args) throws Exception{
         if(commandAndArgs == null || commandAndArgs.trim().isEmpty()){
-            throw new ChetchXMPPException("ChetchXMPPViewModel::sendCommand command cannot be null or empty");
+            throw new ChetchXMPPException("ChetchXMPPViewModel::createCommand command cannot be null or empty");
         }
 
         List<Object> argList = new ArrayList<>();
@@ -500,91 +1287,180 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
                 argList.add(arg);
             }
         }
-        sendCommand(command, argList);
+        return createCommand(command, argList);
     }
 
-    private void sendCommand(String command, List<Object> args) throws Exception{
+    private Message createCommand(String command, List<Object> args){
         Message cmd = new Message();
         cmd.Type = MessageType.COMMAND;
         cmd.addValue(MESSAGE_FIELD_COMMAND, command.toLowerCase().trim());
 
         cmd.addValue(MESSAGE_FIELD_ARGUMENTS, args);
-        sendMessage(cmd);
+        return cmd;
     }
 
     @Override
     public void onOutgoingMessage(EntityBareJid from, MessageBuilder builder, Chat chat) {
-        lastMessageSentOn = Calendar.getInstance();
+        lastMessageSentOn = System.nanoTime();
     }
     //endregion
 
     //region Recevving messages
+    //turns down (before it's deserialized) a message this view model would do nothing with: not the response to a pending
+    //request, not a type handled in onIncomingMessage and with no candidate filter ... a subclass that handles other
+    //messages in onIncomingMessage should override this too
     @Override
-    public void onIncomingMessage(EntityBareJid from, @NonNull Message message, org.jivesoftware.smack.packet.Message originalMessage, Chat chat) {
-        lastMessageReceivedOn = Calendar.getInstance();
-        boolean allowFiltering = false; //set to false if message shouldn't be run against message filters
-        switch(message.Type){
-            case NOTIFICATION:
-                try {
-                    if(message.hasValue(MESSAGE_FIELD_SERVICE_EVENT)){
-                        ServiceEvent serviceEvent = message.getAsClass(MESSAGE_FIELD_SERVICE_EVENT, ServiceEvent.class);
-                        switch (serviceEvent) {
-                            case Stopping:
-                            case Disconnecting:
-                                lastMessageReceivedOn = null;
-                                lastMessageSentOn = null;
-                                throw new ChetchXMPPException("Service " + serviceName + " is not available");
-
-                            case Connected:
-                                break;
-
-                            case StatusUpdate:
-                                onStatusUpdateReceived(message);
-                                break;
-                        }
-                    } else {
-                        allowFiltering = true;
-                    }
-                } catch(ChetchXMPPException ex){
-                    setError(ex);
-                } catch (Exception e){
-                    //not sure about this
-                }
-                break;
+    public boolean wantsMessage(EntityBareJid from, ChetchEnvelope envelope) {
+        lastMessageReceivedOn = System.nanoTime(); //a message turned down still shows the service is responding
+        if(envelope.Tag != null && pendingRequests.containsKey(envelope.Tag))return true;
 
+        switch(envelope.Type){
+            case NOTIFICATION: //service events
             case SUBSCRIBE_RESPONSE:
-                onSubscribeResponseReceived(message);
-                break;
-
             case PING_RESPONSE:
-                Log.i("ChetchXMPPViewModel", "Ping response received!");
-                break;
-
             case STATUS_RESPONSE:
-                onStatusUpdateReceived(message);
-                Log.i("ChetchXMPPViewModel", "Status response received!");
-                break;
-
             case ERROR:
-                onErrorReceived(message);
-                Log.e("ChetchXMPPViewModel", "Error! ");
-                break;
+                return true;
 
             default:
-                allowFiltering = true;
-                break;
+                return messageFilters.hasCandidates(envelope);
         }
+    }
+
+    @Override
+    public void onIncomingMessage(EntityBareJid from, @NonNull Message message, org.jivesoftware.smack.packet.Message originalMessage, Chat chat) {
+        IncomingBody incoming = incomingBody.get();
+        incoming.message = message;
+        incoming.body = getJsonBody(originalMessage);
+        try {
+            lastMessageReceivedOn = System.nanoTime();
+            completePendingRequest(message);
+
+            boolean allowFiltering = false; //set to false if message shouldn't be run against message filters
+            switch(message.Type){
+                case NOTIFICATION:
+                    try {
+                        if(message.hasValue(MESSAGE_FIELD_SERVICE_EVENT)){
+                            ServiceEvent serviceEvent = decodeAsClass(message, MESSAGE_FIELD_SERVICE_EVENT, ServiceEvent.class);
+                            switch (serviceEvent) {
+                                case Stopping:
+                                case Disconnecting:
+                                    lastMessageReceivedOn = 0;
+                                    lastMessageSentOn = 0;
+                                    throw new ChetchXMPPException("Service " + serviceName + " is not available");
+
+                                case Connected:
+                                    break;
+
+                                case StatusUpdate:
+                                    onStatusUpdateReceived(message);
+                                    break;
+                            }
+                        } else {
+                            allowFiltering = true;
+                        }
+                    } catch(ChetchXMPPException ex){
+                        setError(ex);
+                    } catch (Exception e){
+                        if(SLog.LOG)SLog.e("ChetchXMPPViewModel", "Failed to handle notification: " + e.getMessage());
+                    }
+                    break;
+
+                case SUBSCRIBE_RESPONSE:
+                    onSubscribeResponseReceived(message);
+                    break;
+
+                case PING_RESPONSE:
+                    adaptPingInterval();
+                    Log.i("ChetchXMPPViewModel", "Ping response received!");
+                    break;
+
+                case STATUS_RESPONSE:
+                    onStatusUpdateReceived(message);
+                    Log.i("ChetchXMPPViewModel", "Status response received!");
+                    break;
+
+                case ERROR:
+                    onErrorReceived(message);
+                    Log.e("ChetchXMPPViewModel", "Error! ");
+                    break;
+
+                default:
+                    allowFiltering = true;
+                    break;
+            }
 
-        //message filters
-        if(allowFiltering) {
-            for (MessageFilter mf : messageFilters) {
-                mf.onMessageReceived(message);
+            //message filters
+            if(allowFiltering) {
+                messageFilters.dispatch(message);
             }
+        } finally {
+            incoming.message = null;
+            incoming.body = null;
+        }
+    }
+
+    //the body text if it's a single json encoded chetch message (so values can be streamed from it), otherwise null
+    static private String getJsonBody(org.jivesoftware.smack.packet.Message stanza){
+        if(stanza == null || !(ChetchXMPPConnection.DEFAULT_BODY_CODEC instanceof JsonBodyCodec))return null;
+        String subject = stanza.getSubject();
+        if(ChetchXMPPConnection.CHETCH_MESSAGE_SUBJECT.equals(subject)
+                || (ChetchXMPPConnection.CHETCH_MESSAGE_SUBJECT + ChetchXMPPConnection.CHETCH_SUBJECT_CODEC_SEPARATOR + JsonBodyCodec.NAME).equals(subject)){
+            return stanza.getBody();
         }
+        return null;
+    }
+
+    //region Payload decoding
+    //the body of the message being dispatched if the message was decoded from it (see getJsonBody)
+    private String getJson(Message message){
+        IncomingBody incoming = incomingBody.get();
+        return incoming.message == message ? incoming.body : null;
+    }
+
+    //decodes from the json when the message has it (see getJson) and the class has an adapter in ChetchTypeRegistry,
+    //otherwise reflectively by the message ... field null for the whole message
+    protected <T> T decodeAsClass(Message message, String field, Class<T> cls){
+        return ChetchTypeRegistry.getAsClass(message, getJson(message), field, cls);
+    }
+
+    protected <T> List<T> decodeList(Message message, String field, Class<T> cls){
+        return ChetchTypeRegistry.getList(message, getJson(message), field, cls);
+    }
+    //endregion
+
+    //completes the request (if any) waiting on this message's tag
+    protected boolean completePendingRequest(Message message){
+        if(message.Tag == null || pendingRequests.isEmpty())return false;
+
+        PendingRequest request = pendingRequests.get(message.Tag);
+        if(request == null)return false;
+
+        if(message.Type == MessageType.ERROR){
+            request.future.completeExceptionally(new ChetchXMPPViewModelException(message));
+        } else {
+            request.future.complete(message);
+        }
+        return true;
     }
 
     //centtralised and hook subscription received
     protected void onSubscribeResponseReceived(Message message) {
+
+        //services that know nothing of body codecs won't set this so we stay with json
+        if(message.hasValue(MESSAGE_FIELD_BODY_CODEC)){
+            try {
+                xmppConnection.setBodyCodec(xmppServiceJid, message.getString(MESSAGE_FIELD_BODY_CODEC));
+            } catch (Exception e){
+                Log.e("ChetchXMPPViewModel", e.getMessage());
+            }
+        }
+
+        subscribed = true;
+        if(outbox != null){
+            drainOutbox();
+        }
+
         try {
             requestStatus(); //immediate request status
             Log.i("ChetchXMPPViewModel", "Subscribe response received!");
@@ -596,8 +1472,74 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
 
     //centralised and a hook as well as status updates can be from status request resposnses as well as notifictions
     protected void onStatusUpdateReceived(Message message) {
-        Status newStatus = message.getAsClass(Status.class);
-        status.postValue(newStatus);
+        Status newStatus = decodeAsClass(message, null, Status.class);
+        if(newStatus == null){
+            //none of the status fields are in the body (see StatusAdapter) so there is nothing to update
+            Log.w("ChetchXMPPViewModel", "Status update from " + message.Sender + " has no status fields");
+            return;
+        }
+        synchronized (statusLock) {
+            StatusDelta delta = StatusDelta.diff(lastStatus, newStatus);
+            //the server time keeps the latest value but alone isn't worth a post (unless replacing a restored status)
+            lastStatus = newStatus;
+            boolean wasStale = isSnapshotStale(SNAPSHOT_STATUS);
+            markLive(SNAPSHOT_STATUS, newStatus);
+            if(delta.isEmpty() && !wasStale)return;
+
+            publishStatus(newStatus, delta);
+        }
+    }
+
+    //called with the status lock held
+    private void publishStatus(Status newStatus, StatusDelta delta){
+        //deltas conflated in the channel are merged so observers never miss a change
+        statusChannel.publish(newStatus);
+        statusDeltaChannel.publish(delta);
+        for(Map.Entry<String, Object> entry : delta.changedDetails.entrySet()){
+            ChetchLiveDataPublisher.Channel<Object> detail = statusDetails.get(entry.getKey());
+            if(detail != null)detail.publish(entry.getValue());
+        }
+        for(String key : delta.removedDetails){
+            ChetchLiveDataPublisher.Channel<Object> detail = statusDetails.get(key);
+            if(detail != null)detail.publish(null);
+        }
+    }
+
+    //conflates bursts of status updates to one post per interval (e.g. STATUS_FRAME_INTERVAL), 0 to post every change
+    public void setStatusConflation(long millis){
+        synchronized (statusLock) {
+            statusConflation = Math.max(0, millis);
+            statusChannel.setMinInterval(statusConflation);
+            statusDeltaChannel.setMinInterval(statusConflation);
+            for(ChetchLiveDataPublisher.Channel<Object> detail : statusDetails.values()){
+                detail.setMinInterval(statusConflation);
+            }
+        }
+    }
+
+    public ChetchLiveDataPublisher getPublisher(){
+        return publisher;
+    }
+
+    public Status getLastStatus(){
+        synchronized (statusLock) {
+            return lastStatus;
+        }
+    }
+
+    //a single status detail which is only posted when that detail changes
+    public LiveData<Object> getStatusDetail(String key){
+        synchronized (statusLock) {
+            ChetchLiveDataPublisher.Channel<Object> detail = statusDetails.get(key);
+            if(detail == null){
+                detail = publisher.latest(new MutableLiveData<>(), statusConflation);
+                statusDetails.put(key, detail);
+                if(lastStatus != null && lastStatus.StatusDetails != null && lastStatus.StatusDetails.containsKey(key)){
+                    detail.publish(lastStatus.StatusDetails.get(key));
+                }
+            }
+            return detail.getLiveData();
+        }
     }
 
     protected void onErrorReceived(Message message){
@@ -605,37 +1547,62 @@ public class ChetchXMPPViewModel extends WebserviceViewModel implements IChetchC
         setError(xmppException);
     }
 
+    //listens to messages from this view model's service only (or all messages if the service jid is not yet known)
     public void addMessageListener(IChetchIncomingMessageListener listener){
-        xmppConnection.addMessageListener(listener);
+        messageListeners.add(listener);
+        if(xmppConnection != null) {
+            xmppConnection.addMessageListener(xmppServiceJid, listener);
+        }
     }
 
-    public void addMessageFilter(MessageFilter messageFilter){
+    /*
+    Filters are indexed by the message type they match (derived from the filter class for command response and notification filters,
+    other filters, e.g. alert and data, are offered every message unless registered with their type) and optionally by the value of a message field. Only messages from this view model's service reach the filters so there is no need
+    to index by sender.
+     */
+    public void addMessageFilter(MessageFilter messageFilter, MessageType type, String field, String value){
         if(!messageFilters.contains(messageFilter)){
             if(xmppServiceJid != null && (messageFilter.Sender == null || messageFilter.Sender.isEmpty())){
                 messageFilter.Sender = xmppServiceJid.toString();
             }
 
-            messageFilters.add(messageFilter);
+            messageFilters.add(messageFilter, type, field, value);
         }
     }
 
+    public void addMessageFilter(MessageFilter messageFilter, MessageType type){
+        addMessageFilter(messageFilter, type, null, null);
+    }
+
+    public void addMessageFilter(MessageFilter messageFilter){
+        addMessageFilter(messageFilter, null, null, null);
+    }
+
+    //only offered command responses for this command
+    public void addCommandResponseFilter(MessageFilter messageFilter, String command){
+        addMessageFilter(messageFilter, MessageType.COMMAND_RESPONSE, MESSAGE_FIELD_COMMAND, command);
+    }
+
+    //only offered data messages for this ID (the DataFilter ID is not exposed so it is passed again here)
+    public void addDataFilter(MessageFilter messageFilter, String id){
+        addMessageFilter(messageFilter, MessageType.DATA, MESSAGE_FIELD_ID, id);
+    }
+
+    public void removeMessageFilter(MessageFilter messageFilter){
+        messageFilters.remove(messageFilter);
+    }
+
     public void addMessageFilters(MessageFilter ... messageFilters){
         for(MessageFilter mf : messageFilters){
             addMessageFilter(mf);
         }
     }
     public List<MessageFilter> getMessageFiltersForMessage(Message message){
-        List<MessageFilter> filters = new ArrayList<>();
-        for (MessageFilter mf : messageFilters) {
-            if(mf.matches(message)){
-                filters.add(mf);
-            }
-        }
-        return filters;
+        return messageFilters.getMatches(message);
     }
 
     public boolean hasFilterForMessage(Message message){
-        return !getMessageFiltersForMessage(message).isEmpty();
+        return messageFilters.hasMatch(message);
     }
 
     public String getCommandFromMessage(Message message) throws Exception{
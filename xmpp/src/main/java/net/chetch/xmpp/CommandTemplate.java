@@ -0,0 +1,105 @@
+package net.chetch.xmpp;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageType;
+import net.chetch.xmpp.exceptions.ChetchXMPPException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+A command compiled once (e.g. as a static final) and then reused. The command string is split, trimmed and lower cased
+at compile time along with any fixed arguments it contains, and each remaining argument has a typed slot so filling the
+template is just a type check per argument and one presized list ... no string parsing.
+As with sendCommand(String, Object...) null arguments are left out.
+ */
+public class CommandTemplate {
+
+    //intended for static finals so a bad command string is a programming error
+    static public CommandTemplate compile(String commandAndArgs, Class<?>... slotTypes){
+        return new CommandTemplate(commandAndArgs, slotTypes);
+    }
+
+    static private Class<?> box(Class<?> type){
+        if(!type.isPrimitive())return type;
+        if(type == int.class)return Integer.class;
+        if(type == long.class)return Long.class;
+        if(type == boolean.class)return Boolean.class;
+        if(type == double.class)return Double.class;
+        if(type == float.class)return Float.class;
+        if(type == short.class)return Short.class;
+        if(type == byte.class)return Byte.class;
+        if(type == char.class)return Character.class;
+        return type;
+    }
+
+    final private String command;
+    final private Object[] fixedArgs;
+    final private Class<?>[] slotTypes;
+
+    private CommandTemplate(String commandAndArgs, Class<?>... slotTypes){
+        if(commandAndArgs == null || commandAndArgs.trim().isEmpty()){
+            throw new IllegalArgumentException("CommandTemplate::compile command cannot be null or empty");
+        }
+
+        String[] parts = commandAndArgs.trim().split(" ");
+        command = parts[0].toLowerCase().trim();
+        List<Object> fixed = new ArrayList<>();
+        for(int i = 1; i < parts.length; i++){
+            if(!parts[i].isEmpty()){
+                fixed.add(parts[i].toLowerCase().trim());
+            }
+        }
+        fixedArgs = fixed.toArray();
+
+        this.slotTypes = new Class<?>[slotTypes.length];
+        for(int i = 0; i < slotTypes.length; i++){
+            this.slotTypes[i] = box(slotTypes[i]);
+        }
+    }
+
+    public String getCommand(){ return command; }
+
+    public int getSlotCount(){ return slotTypes.length; }
+
+    public Class<?> getSlotType(int idx){ return slotTypes[idx]; }
+
+    //fewer arguments than slots is allowed (trailing arguments are then left out) but more is not
+    public Message create(Object... args) throws ChetchXMPPException{
+        int count = args == null ? 0 : args.length;
+        if(count > slotTypes.length){
+            throw new ChetchXMPPException("CommandTemplate::create " + command + " takes " + slotTypes.length + " arguments but was given " + count);
+        }
+
+        List<Object> argList = new ArrayList<>(fixedArgs.length + count);
+        for(int i = 0; i < fixedArgs.length; i++){
+            argList.add(fixedArgs[i]);
+        }
+        for(int i = 0; i < count; i++){
+            Object arg = args[i];
+            if(arg == null)continue;
+            if(!slotTypes[i].isInstance(arg)){
+                throw new ChetchXMPPException("CommandTemplate::create " + command + " argument " + i + " should be " + slotTypes[i].getSimpleName() + " not " + arg.getClass().getSimpleName());
+            }
+            argList.add(arg);
+        }
+
+        Message cmd = new Message();
+        cmd.Type = MessageType.COMMAND;
+        cmd.addValue(ChetchXMPPViewModel.MESSAGE_FIELD_COMMAND, command);
+        cmd.addValue(ChetchXMPPViewModel.MESSAGE_FIELD_ARGUMENTS, argList);
+        return cmd;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(command);
+        for(Object arg : fixedArgs){
+            s.append(' ').append(arg);
+        }
+        for(Class<?> type : slotTypes){
+            s.append(" <").append(type.getSimpleName()).append('>');
+        }
+        return s.toString();
+    }
+}
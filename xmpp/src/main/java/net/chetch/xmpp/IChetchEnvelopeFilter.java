@@ -0,0 +1,14 @@
+package net.chetch.xmpp;
+
+import net.chetch.xmpp.codecs.ChetchEnvelope;
+
+import org.jxmpp.jid.EntityBareJid;
+
+/*
+Optionally implemented by an incoming message listener so messages it has no use for are turned down from their envelope,
+before being deserialized. A message is deserialized and dispatched if any of its listeners wants it (a listener that
+doesn't implement this wants everything).
+ */
+public interface IChetchEnvelopeFilter {
+    public boolean wantsMessage(EntityBareJid from, ChetchEnvelope envelope);
+}
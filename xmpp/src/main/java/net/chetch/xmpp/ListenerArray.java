@@ -0,0 +1,57 @@
+package net.chetch.xmpp;
+
+/*
+Copy-on-write array for listener registries. Writers (rare, typically UI thread) synchronise and publish a new
+array, readers (dispatch on Smack and pipeline threads) take the current array with a single volatile read and
+iterate it by index ... no locking, no iterator allocation and no ConcurrentModificationException.
+ */
+class ListenerArray<T> {
+    static final private Object[] EMPTY = new Object[0];
+
+    private volatile Object[] items = EMPTY;
+
+    synchronized boolean add(T item){
+        if(item == null || indexOf(items, item) >= 0)return false;
+        Object[] current = items;
+        Object[] updated = new Object[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = item;
+        items = updated;
+        return true;
+    }
+
+    synchronized boolean remove(T item){
+        Object[] current = items;
+        int idx = indexOf(current, item);
+        if(idx < 0)return false;
+        if(current.length == 1){
+            items = EMPTY;
+            return true;
+        }
+        Object[] updated = new Object[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, idx);
+        System.arraycopy(current, idx + 1, updated, idx, current.length - idx - 1);
+        items = updated;
+        return true;
+    }
+
+    synchronized void clear(){
+        items = EMPTY;
+    }
+
+    //the returned array must not be modified
+    Object[] snapshot(){
+        return items;
+    }
+
+    int size(){
+        return items.length;
+    }
+
+    static private int indexOf(Object[] a, Object item){
+        for(int i = 0; i < a.length; i++){
+            if(a[i] == item)return i;
+        }
+        return -1;
+    }
+}
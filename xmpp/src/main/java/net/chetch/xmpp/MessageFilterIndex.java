@@ -0,0 +1,239 @@
+package net.chetch.xmpp;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageFilter;
+import net.chetch.messaging.MessageType;
+import net.chetch.messaging.filters.CommandResponseFilter;
+import net.chetch.messaging.filters.NotificationFilter;
+import net.chetch.xmpp.codecs.ChetchEnvelope;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Indexes message filters by the message type they match and optionally by the value of one field (e.g. the Command of a
+command response) so that an incoming message is only offered to candidate filters. A filter registered without a type
+(and whose type cannot be derived from its class) is a candidate for every message.
+Candidates are offered in registration order (as with a plain list of filters). On add/remove (rare) the index is rebuilt
+with the complete candidate array, in that order, for every type and key value (plus one for a message without the key
+and one for a key value nothing is registered for) so dispatch (every message) is one lookup and a loop over an array,
+without locks or allocation.
+One key field per type: the first field registered for a type is its key, a filter of that type registered on another
+field is treated as unkeyed (offered every message of the type, the filter still decides for itself).
+ */
+public class MessageFilterIndex {
+
+    private static class Registration{
+        final MessageFilter filter;
+        final MessageType type;
+        final String field;
+        final String value;
+
+        Registration(MessageFilter filter, MessageType type, String field, String value){
+            this.filter = filter;
+            this.type = type;
+            this.field = field;
+            this.value = value;
+        }
+    }
+
+    //candidates for one message type
+    private static class Bucket{
+        String keyField = null;
+        MessageFilter[] unkeyed = EMPTY; //no key field for this type
+        MessageFilter[] keyMissing = EMPTY; //the message does not have the key field (or it can't be read) so all of them
+        MessageFilter[] noKeyMatch = EMPTY; //the message has a key value nothing is registered for
+        final Map<String, MessageFilter[]> keyed = new HashMap<>();
+    }
+
+    private static class Snapshot{
+        final Bucket[] byType = new Bucket[MessageType.values().length];
+        MessageFilter[] unindexed = EMPTY;
+        int size = 0;
+    }
+
+    //the type a filter matches where this can be known for certain from its class (anonymous subclasses are walked up to the named class)
+    //... AlertFilter and DataFilter are not derived as the messaging library does not expose which type or field they
+    //match, register them with their type (and key, see ChetchXMPPViewModel.addDataFilter) to index them
+    static public MessageType deriveMessageType(MessageFilter filter){
+        Class<?> cls = filter.getClass();
+        while(cls.isAnonymousClass()){
+            cls = cls.getSuperclass();
+        }
+        if(cls == CommandResponseFilter.class){
+            return MessageType.COMMAND_RESPONSE;
+        } else if(cls == NotificationFilter.class){
+            return MessageType.NOTIFICATION;
+        } else {
+            return null;
+        }
+    }
+
+    private static final MessageFilter[] EMPTY = new MessageFilter[0];
+
+    static private String normaliseKey(String value){
+        return value == null ? null : value.toLowerCase().trim();
+    }
+
+    final private List<Registration> registrations = new ArrayList<>();
+    private volatile Snapshot snapshot = new Snapshot();
+
+    public synchronized boolean add(MessageFilter filter, MessageType type, String field, String value){
+        if(contains(filter))return false;
+
+        if(type == null)type = deriveMessageType(filter);
+        if(type == null || field == null || value == null){
+            field = null;
+            value = null;
+        }
+        registrations.add(new Registration(filter, type, field, normaliseKey(value)));
+        rebuild();
+        return true;
+    }
+
+    public boolean add(MessageFilter filter, MessageType type){
+        return add(filter, type, null, null);
+    }
+
+    public boolean add(MessageFilter filter){
+        return add(filter, null, null, null);
+    }
+
+    public synchronized boolean remove(MessageFilter filter){
+        for(int i = 0; i < registrations.size(); i++){
+            if(registrations.get(i).filter == filter){
+                registrations.remove(i);
+                rebuild();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean contains(MessageFilter filter){
+        for(Registration r : registrations){
+            if(r.filter == filter)return true;
+        }
+        return false;
+    }
+
+    public int size(){
+        return snapshot.size;
+    }
+
+    //all registered filters in registration order
+    public synchronized List<MessageFilter> getFilters(){
+        List<MessageFilter> filters = new ArrayList<>(registrations.size());
+        for(Registration r : registrations){
+            filters.add(r.filter);
+        }
+        return filters;
+    }
+
+    //registrations are in registration order so each candidate array is just those included, in list order
+    private interface IInclude{
+        boolean include(Registration r);
+    }
+
+    private MessageFilter[] select(IInclude include){
+        List<MessageFilter> filters = new ArrayList<>();
+        for(Registration r : registrations){
+            if(include.include(r))filters.add(r.filter);
+        }
+        return filters.isEmpty() ? EMPTY : filters.toArray(EMPTY);
+    }
+
+    private void rebuild(){
+        Snapshot s = new Snapshot();
+        s.unindexed = select(r -> r.type == null);
+
+        for(MessageType type : MessageType.values()){
+            String keyField = null;
+            boolean typed = false;
+            for(Registration r : registrations){
+                if(r.type != type)continue;
+                typed = true;
+                if(keyField == null)keyField = r.field;
+            }
+            if(!typed)continue;
+
+            Bucket bucket = new Bucket();
+            final String field = keyField;
+            //unindexed and unkeyed (or keyed on another field) filters of this type are candidates whatever the key value
+            IInclude always = r -> r.type == null || (r.type == type && (r.field == null || !r.field.equals(field)));
+            bucket.keyField = keyField;
+            bucket.unkeyed = select(always);
+            if(keyField != null){
+                bucket.keyMissing = select(r -> always.include(r) || r.type == type);
+                bucket.noKeyMatch = bucket.unkeyed;
+                for(Registration r : registrations){
+                    if(r.type != type || !field.equals(r.field) || bucket.keyed.containsKey(r.value))continue;
+                    final String value = r.value;
+                    bucket.keyed.put(value, select(k -> always.include(k) || (k.type == type && field.equals(k.field) && value.equals(k.value))));
+                }
+            }
+            s.byType[type.ordinal()] = bucket;
+        }
+        s.size = registrations.size();
+        snapshot = s;
+    }
+
+    //the candidates for the message in registration order ... the returned array must not be modified
+    private MessageFilter[] getCandidates(Message message){
+        Snapshot s = snapshot;
+        Bucket bucket = message.Type == null ? null : s.byType[message.Type.ordinal()];
+        if(bucket == null)return s.unindexed;
+        if(bucket.keyField == null)return bucket.unkeyed;
+
+        //a message without the key field is offered to all filters keyed on that field so the index can only ever narrow, never miss
+        if(!message.hasValue(bucket.keyField))return bucket.keyMissing;
+        String value;
+        try {
+            value = normaliseKey(message.getString(bucket.keyField));
+        } catch (Exception e){
+            return bucket.keyMissing;
+        }
+        MessageFilter[] candidates = value == null ? null : bucket.keyed.get(value);
+        return candidates == null ? bucket.noKeyMatch : candidates;
+    }
+
+    //offers the message to each candidate filter (which then decides for itself if it matches)
+    public void dispatch(Message message){
+        MessageFilter[] candidates = getCandidates(message);
+        for(int i = 0; i < candidates.length; i++){
+            candidates[i].onMessageReceived(message);
+        }
+    }
+
+    public boolean hasMatch(Message message){
+        MessageFilter[] candidates = getCandidates(message);
+        for(int i = 0; i < candidates.length; i++){
+            if(candidates[i].matches(message))return true;
+        }
+        return false;
+    }
+
+    public List<MessageFilter> getMatches(Message message){
+        List<MessageFilter> matches = new ArrayList<>();
+        MessageFilter[] candidates = getCandidates(message);
+        for(int i = 0; i < candidates.length; i++){
+            if(candidates[i].matches(message))matches.add(candidates[i]);
+        }
+        return matches;
+    }
+
+    //whether a message with this envelope would be offered to any filter ... a key field the envelope doesn't have a value
+    //for is taken as any value so this can say yes when dispatch would offer it to nothing but never no when it would
+    public boolean hasCandidates(ChetchEnvelope envelope){
+        Snapshot s = snapshot;
+        Bucket bucket = envelope.Type == null ? null : s.byType[envelope.Type.ordinal()];
+        if(bucket == null)return s.unindexed.length > 0;
+        if(bucket.keyField == null)return bucket.unkeyed.length > 0;
+
+        String value = normaliseKey(envelope.getValue(bucket.keyField));
+        MessageFilter[] candidates = value == null ? bucket.keyMissing : bucket.keyed.get(value);
+        return (candidates == null ? bucket.noKeyMatch : candidates).length > 0;
+    }
+}
@@ -0,0 +1,462 @@
+package net.chetch.xmpp.codecs;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import net.chetch.messaging.Message;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Compact binary codec: the serialized message is re-encoded as CBOR (RFC 8949) and base64 framed in the body.
+Repeated strings (field names, enum values, alarm IDs etc.) are sent once and then referenced by index using
+CBOR tags 256/25 in the manner of the stringref extension. The rule used here is simpler than the published one
+and is shared by both ends: every literal string of 3 or more UTF-8 bytes is added to the table in order of
+appearance, any later occurrence is sent as a reference. A batch shares one table across all its messages.
+The gain is body size only: decoding writes the json text back out and hands it to the messaging library (which has
+no other way in) so it costs more than the json codec, not less.
+ */
+public class CborBodyCodec implements IChetchBodyCodec {
+    public static final String NAME = "cbor";
+
+    static final int MIN_REF_LENGTH = 3;
+    static final int TAG_STRINGREF_NAMESPACE = 256;
+    static final int TAG_STRINGREF = 25;
+
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_TAG = 6;
+    static final int MAJOR_SIMPLE = 7;
+
+    static final int INDEFINITE = 31;
+    static final int BREAK = 0xFF;
+    static final int FALSE = 0xF4;
+    static final int TRUE = 0xF5;
+    static final int NULL = 0xF6;
+    static final int DOUBLE = 0xFB;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    //region Encoding
+    private static class Encoder{
+        byte[] buffer = new byte[256];
+        int length = 0;
+        final Map<String, Integer> stringRefs = new HashMap<>();
+
+        void ensure(int n){
+            if(length + n > buffer.length){
+                byte[] b = new byte[Math.max(buffer.length * 2, length + n)];
+                System.arraycopy(buffer, 0, b, 0, length);
+                buffer = b;
+            }
+        }
+
+        void writeByte(int b){
+            ensure(1);
+            buffer[length++] = (byte)b;
+        }
+
+        void writeHead(int major, long value){
+            int mt = major << 5;
+            if(value < 24){
+                writeByte(mt | (int)value);
+            } else if(value < 0x100){
+                writeByte(mt | 24);
+                writeByte((int)value);
+            } else if(value < 0x10000){
+                writeByte(mt | 25);
+                writeByte((int)(value >> 8));
+                writeByte((int)value);
+            } else if(value < 0x100000000L){
+                writeByte(mt | 26);
+                for(int shift = 24; shift >= 0; shift -= 8)writeByte((int)(value >> shift));
+            } else {
+                writeByte(mt | 27);
+                for(int shift = 56; shift >= 0; shift -= 8)writeByte((int)(value >> shift));
+            }
+        }
+
+        void writeString(String s){
+            Integer ref = stringRefs.get(s);
+            if(ref != null){
+                writeHead(MAJOR_TAG, TAG_STRINGREF);
+                writeHead(MAJOR_UNSIGNED, ref);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeHead(MAJOR_TEXT, bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+            if(bytes.length >= MIN_REF_LENGTH){
+                stringRefs.put(s, stringRefs.size());
+            }
+        }
+
+        void writeNumber(String literal){
+            boolean integral = literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0;
+            if(integral){
+                try {
+                    long v = Long.parseLong(literal);
+                    if(v >= 0){
+                        writeHead(MAJOR_UNSIGNED, v);
+                    } else {
+                        writeHead(MAJOR_NEGATIVE, -1 - v);
+                    }
+                    return;
+                } catch (NumberFormatException e){
+                    //too big for a long so fall through to a double
+                }
+            }
+            long bits = Double.doubleToLongBits(Double.parseDouble(literal));
+            writeByte(DOUBLE);
+            for(int shift = 56; shift >= 0; shift -= 8)writeByte((int)(bits >> shift));
+        }
+
+        //streams one json value from the reader
+        void writeValue(JsonReader reader) throws IOException{
+            JsonToken token = reader.peek();
+            switch(token){
+                case BEGIN_OBJECT:
+                    reader.beginObject();
+                    writeByte((MAJOR_MAP << 5) | INDEFINITE);
+                    while(reader.hasNext()){
+                        writeString(reader.nextName());
+                        writeValue(reader);
+                    }
+                    reader.endObject();
+                    writeByte(BREAK);
+                    break;
+
+                case BEGIN_ARRAY:
+                    reader.beginArray();
+                    writeByte((MAJOR_ARRAY << 5) | INDEFINITE);
+                    while(reader.hasNext()){
+                        writeValue(reader);
+                    }
+                    reader.endArray();
+                    writeByte(BREAK);
+                    break;
+
+                case STRING:
+                    writeString(reader.nextString());
+                    break;
+
+                case NUMBER:
+                    writeNumber(reader.nextString());
+                    break;
+
+                case BOOLEAN:
+                    writeByte(reader.nextBoolean() ? TRUE : FALSE);
+                    break;
+
+                case NULL:
+                    reader.nextNull();
+                    writeByte(NULL);
+                    break;
+
+                default:
+                    throw new IOException("CborBodyCodec unexpected json token " + token);
+            }
+        }
+
+        void writeMessage(Message message) throws IOException{
+            JsonReader reader = new JsonReader(new StringReader(message.serialize()));
+            writeValue(reader);
+        }
+    }
+
+    @Override
+    public String encode(Message message) throws Exception {
+        Encoder encoder = new Encoder();
+        encoder.writeHead(MAJOR_TAG, TAG_STRINGREF_NAMESPACE);
+        encoder.writeMessage(message);
+        return Base64.encode(encoder.buffer, encoder.length);
+    }
+
+    @Override
+    public String encodeBatch(List<Message> messages) throws Exception {
+        Encoder encoder = new Encoder();
+        encoder.writeHead(MAJOR_TAG, TAG_STRINGREF_NAMESPACE);
+        encoder.writeHead(MAJOR_ARRAY, messages.size());
+        for(Message message : messages){
+            encoder.writeMessage(message);
+        }
+        return Base64.encode(encoder.buffer, encoder.length);
+    }
+    //endregion
+
+    //region Decoding
+    private static class Decoder{
+        final byte[] buffer;
+        int position = 0;
+        final List<String> stringRefs = new ArrayList<>();
+
+        Decoder(byte[] buffer){
+            this.buffer = buffer;
+        }
+
+        int readByte() throws IOException{
+            if(position >= buffer.length){
+                throw new IOException("CborBodyCodec unexpected end of data");
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        long readArgument(int info) throws IOException{
+            if(info < 24)return info;
+            int n;
+            switch(info){
+                case 24: n = 1; break;
+                case 25: n = 2; break;
+                case 26: n = 4; break;
+                case 27: n = 8; break;
+                default: throw new IOException("CborBodyCodec unsupported additional info " + info);
+            }
+            long v = 0;
+            for(int i = 0; i < n; i++){
+                v = (v << 8) | readByte();
+            }
+            return v;
+        }
+
+        String readTextPayload(long n) throws IOException{
+            int len = (int)n;
+            if(position + len > buffer.length){
+                throw new IOException("CborBodyCodec string overruns data");
+            }
+            String s = new String(buffer, position, len, StandardCharsets.UTF_8);
+            position += len;
+            if(len >= MIN_REF_LENGTH){
+                stringRefs.add(s);
+            }
+            return s;
+        }
+
+        String readString() throws IOException{
+            int ib = readByte();
+            int major = ib >> 5;
+            long arg = readArgument(ib & 0x1F);
+            if(major == MAJOR_TEXT){
+                return readTextPayload(arg);
+            } else if(major == MAJOR_TAG && arg == TAG_STRINGREF){
+                return readStringRef();
+            }
+            throw new IOException("CborBodyCodec expected a string but found major type " + major);
+        }
+
+        String readStringRef() throws IOException{
+            int ib = readByte();
+            long index = readArgument(ib & 0x1F);
+            if((ib >> 5) != MAJOR_UNSIGNED || index >= stringRefs.size()){
+                throw new IOException("CborBodyCodec invalid string reference " + index);
+            }
+            return stringRefs.get((int)index);
+        }
+
+        boolean atBreak() throws IOException{
+            if(position >= buffer.length){
+                throw new IOException("CborBodyCodec unexpected end of data");
+            }
+            if((buffer[position] & 0xFF) == BREAK){
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        void readValue(JsonWriter writer) throws IOException{
+            int ib = readByte();
+            int major = ib >> 5;
+            int info = ib & 0x1F;
+            switch(major){
+                case MAJOR_UNSIGNED:
+                    writer.value(readArgument(info));
+                    break;
+
+                case MAJOR_NEGATIVE:
+                    writer.value(-1 - readArgument(info));
+                    break;
+
+                case MAJOR_TEXT:
+                    writer.value(readTextPayload(readArgument(info)));
+                    break;
+
+                case MAJOR_ARRAY:
+                    writer.beginArray();
+                    if(info == INDEFINITE){
+                        while(!atBreak())readValue(writer);
+                    } else {
+                        for(long i = readArgument(info); i > 0; i--)readValue(writer);
+                    }
+                    writer.endArray();
+                    break;
+
+                case MAJOR_MAP:
+                    writer.beginObject();
+                    if(info == INDEFINITE){
+                        while(!atBreak()){
+                            writer.name(readString());
+                            readValue(writer);
+                        }
+                    } else {
+                        for(long i = readArgument(info); i > 0; i--){
+                            writer.name(readString());
+                            readValue(writer);
+                        }
+                    }
+                    writer.endObject();
+                    break;
+
+                case MAJOR_TAG:
+                    long tag = readArgument(info);
+                    if(tag == TAG_STRINGREF){
+                        writer.value(readStringRef());
+                    } else {
+                        throw new IOException("CborBodyCodec unsupported tag " + tag);
+                    }
+                    break;
+
+                case MAJOR_SIMPLE:
+                    if(ib == FALSE){
+                        writer.value(false);
+                    } else if(ib == TRUE){
+                        writer.value(true);
+                    } else if(ib == NULL){
+                        writer.nullValue();
+                    } else if(ib == DOUBLE){
+                        writer.value(Double.longBitsToDouble(readArgument(27)));
+                    } else {
+                        throw new IOException("CborBodyCodec unsupported simple value " + ib);
+                    }
+                    break;
+
+                default:
+                    throw new IOException("CborBodyCodec unsupported major type " + major);
+            }
+        }
+
+        void readNamespace() throws IOException{
+            int ib = readByte();
+            if((ib >> 5) != MAJOR_TAG || readArgument(ib & 0x1F) != TAG_STRINGREF_NAMESPACE){
+                throw new IOException("CborBodyCodec missing string reference namespace");
+            }
+        }
+
+        String readMessage() throws Exception{
+            StringWriter json = new StringWriter();
+            JsonWriter writer = new JsonWriter(json);
+            readValue(writer);
+            writer.flush();
+            return json.toString();
+        }
+    }
+
+    @Override
+    public Message decode(String body) throws Exception {
+        return Message.deserialize(decodeToJson(body));
+    }
+
+    @Override
+    public List<Message> decodeBatch(String body) throws Exception {
+        List<String> jsons = decodeBatchToJson(body);
+        List<Message> messages = new ArrayList<>(jsons.size());
+        for(String json : jsons){
+            messages.add(Message.deserialize(json));
+        }
+        return messages;
+    }
+
+    @Override
+    public String decodeToJson(String body) throws Exception {
+        Decoder decoder = new Decoder(Base64.decode(body));
+        decoder.readNamespace();
+        return decoder.readMessage();
+    }
+
+    @Override
+    public List<String> decodeBatchToJson(String body) throws Exception {
+        Decoder decoder = new Decoder(Base64.decode(body));
+        decoder.readNamespace();
+        int ib = decoder.readByte();
+        if((ib >> 5) != MAJOR_ARRAY){
+            throw new Exception("CborBodyCodec batch is not an array");
+        }
+        List<String> jsons = new ArrayList<>();
+        if((ib & 0x1F) == INDEFINITE){
+            while(!decoder.atBreak())jsons.add(decoder.readMessage());
+        } else {
+            for(long i = decoder.readArgument(ib & 0x1F); i > 0; i--)jsons.add(decoder.readMessage());
+        }
+        return jsons;
+    }
+    //endregion
+
+    //android.util.Base64 is not available off device and java.util.Base64 needs API 26
+    static class Base64{
+        static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+        static final int[] INDEX = new int[128];
+        static {
+            java.util.Arrays.fill(INDEX, -1);
+            for(int i = 0; i < ALPHABET.length; i++)INDEX[ALPHABET[i]] = i;
+        }
+
+        static String encode(byte[] data, int length){
+            char[] out = new char[((length + 2) / 3) * 4];
+            int o = 0;
+            for(int i = 0; i < length; i += 3){
+                int b = (data[i] & 0xFF) << 16;
+                if(i + 1 < length)b |= (data[i + 1] & 0xFF) << 8;
+                if(i + 2 < length)b |= data[i + 2] & 0xFF;
+                out[o++] = ALPHABET[(b >> 18) & 0x3F];
+                out[o++] = ALPHABET[(b >> 12) & 0x3F];
+                out[o++] = i + 1 < length ? ALPHABET[(b >> 6) & 0x3F] : '=';
+                out[o++] = i + 2 < length ? ALPHABET[b & 0x3F] : '=';
+            }
+            return new String(out);
+        }
+
+        static byte[] decode(String s) throws IOException{
+            int len = s.length();
+            while(len > 0 && s.charAt(len - 1) == '=')len--;
+            byte[] out = new byte[len * 3 / 4];
+            int o = 0;
+            int bits = 0;
+            int count = 0;
+            for(int i = 0; i < len; i++){
+                char c = s.charAt(i);
+                int v = c < 128 ? INDEX[c] : -1;
+                if(v < 0){
+                    if(Character.isWhitespace(c))continue;
+                    throw new IOException("CborBodyCodec invalid base64 character " + c);
+                }
+                bits = (bits << 6) | v;
+                count += 6;
+                if(count >= 8){
+                    count -= 8;
+                    out[o++] = (byte)(bits >> count);
+                }
+            }
+            if(o < out.length){
+                byte[] trimmed = new byte[o];
+                System.arraycopy(out, 0, trimmed, 0, o);
+                return trimmed;
+            }
+            return out;
+        }
+    }
+}
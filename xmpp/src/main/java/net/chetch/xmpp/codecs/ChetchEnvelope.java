@@ -0,0 +1,90 @@
+package net.chetch.xmpp.codecs;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageType;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+The envelope of a json encoded chetch message: Type, Tag, Sender and the string values routing needs (e.g. Command, ID)
+read in one streaming pass that skips everything else without building it. It is only used to turn down messages before
+they are deserialized (see IChetchEnvelopeFilter), a message that is wanted is deserialized in full by the messaging
+library so filters and app code only ever see a real Message.
+ */
+public class ChetchEnvelope {
+    static final public String FIELD_TYPE = "Type";
+    static final public String FIELD_TAG = "Tag";
+    static final public String FIELD_SENDER = "Sender";
+    static final public Set<String> ROUTING_VALUES = new HashSet<>();
+    static {
+        ROUTING_VALUES.add("Command");
+        ROUTING_VALUES.add("ID");
+    }
+
+    static final private TypeAdapter<MessageType> typeAdapter = new ChetchTypeRegistry.EnumAdapter<>(MessageType.class);
+
+    //null if the envelope can't be read (so the message should be deserialized for the messaging library to deal with)
+    static public ChetchEnvelope scan(String json){
+        ChetchEnvelope envelope = new ChetchEnvelope(json);
+        try {
+            JsonReader in = new JsonReader(new StringReader(json));
+            in.beginObject();
+            while(in.hasNext()){
+                String name = in.nextName();
+                switch(name){
+                    case FIELD_TYPE:
+                        envelope.Type = typeAdapter.read(in);
+                        break;
+                    case FIELD_TAG:
+                        envelope.Tag = ChetchTypeRegistry.nextString(in);
+                        break;
+                    case FIELD_SENDER:
+                        envelope.Sender = ChetchTypeRegistry.nextString(in);
+                        break;
+                    default:
+                        if(ROUTING_VALUES.contains(name) && in.peek() == JsonToken.STRING){
+                            envelope.values.put(name, in.nextString());
+                        } else {
+                            in.skipValue();
+                        }
+                        break;
+                }
+            }
+            in.endObject();
+        } catch (Exception e){
+            return null;
+        }
+        return envelope.Type == null ? null : envelope;
+    }
+
+    final private String json;
+    final private Map<String, String> values = new HashMap<>(4);
+    public MessageType Type;
+    public String Tag;
+    public String Sender;
+
+    private ChetchEnvelope(String json){
+        this.json = json;
+    }
+
+    public String getJson(){
+        return json;
+    }
+
+    //one of the ROUTING_VALUES, null if the message doesn't have it as a string
+    public String getValue(String field){
+        return values.get(field);
+    }
+
+    public Message deserialize() throws Exception{
+        return Message.deserialize(json);
+    }
+}
@@ -0,0 +1,339 @@
+package net.chetch.xmpp.codecs;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import net.chetch.messaging.Message;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Precompiled streaming decoders for the payload types view models read from chetch messages (e.g. Status, Alarm).
+Rather than the message converting its already parsed values to the target class reflectively, a registered adapter
+reads the value straight out of the json body text in one pass, skipping everything else.
+View models register adapters for their own types. Calendar is registered here and EnumAdapter covers enums, resolving
+@SerializedName once at construction.
+getAsClass and getList fall back to the message's reflective conversion when there is no body text (e.g. a non json
+codec or a batch), no adapter, the value is not at the top level of the body or the adapter can't read it.
+ */
+public class ChetchTypeRegistry {
+
+    //reads a json date as written by either end: an ISO 8601 (or 'yyyy-MM-dd HH:mm:ss Z') string with optional fraction and
+    //zone (none means local), epoch millis or the gson default object form. Writes ISO 8601 with millis and offset.
+    static public class CalendarAdapter extends TypeAdapter<Calendar>{
+        @Override
+        public void write(JsonWriter out, Calendar value) throws IOException {
+            if(value == null){
+                out.nullValue();
+                return;
+            }
+            int offset = value.get(Calendar.ZONE_OFFSET) + value.get(Calendar.DST_OFFSET);
+            int offsetMinutes = Math.abs(offset) / 60000;
+            out.value(String.format("%04d-%02d-%02dT%02d:%02d:%02d.%03d%s%02d:%02d",
+                    value.get(Calendar.YEAR), value.get(Calendar.MONTH) + 1, value.get(Calendar.DAY_OF_MONTH),
+                    value.get(Calendar.HOUR_OF_DAY), value.get(Calendar.MINUTE), value.get(Calendar.SECOND), value.get(Calendar.MILLISECOND),
+                    offset < 0 ? "-" : "+", offsetMinutes / 60, offsetMinutes % 60));
+        }
+
+        @Override
+        public Calendar read(JsonReader in) throws IOException {
+            switch(in.peek()){
+                case NULL:
+                    in.nextNull();
+                    return null;
+
+                case NUMBER:
+                    Calendar cal = Calendar.getInstance();
+                    cal.setTimeInMillis(in.nextLong());
+                    return cal;
+
+                case BEGIN_OBJECT:
+                    int[] parts = new int[6];
+                    in.beginObject();
+                    while(in.hasNext()){
+                        switch(in.nextName()){
+                            case "year": parts[0] = in.nextInt(); break;
+                            case "month": parts[1] = in.nextInt(); break;
+                            case "dayOfMonth": parts[2] = in.nextInt(); break;
+                            case "hourOfDay": parts[3] = in.nextInt(); break;
+                            case "minute": parts[4] = in.nextInt(); break;
+                            case "second": parts[5] = in.nextInt(); break;
+                            default: in.skipValue(); break;
+                        }
+                    }
+                    in.endObject();
+                    return new GregorianCalendar(parts[0], parts[1], parts[2], parts[3], parts[4], parts[5]);
+
+                default:
+                    return parse(in.nextString());
+            }
+        }
+
+        static public Calendar parse(String s) throws IOException{
+            try {
+                int year = Integer.parseInt(s.substring(0, 4));
+                int month = Integer.parseInt(s.substring(5, 7));
+                int day = Integer.parseInt(s.substring(8, 10));
+                int hour = 0, minute = 0, second = 0, millis = 0;
+                int idx = 10;
+                if(s.length() > idx && (s.charAt(idx) == 'T' || s.charAt(idx) == ' ')){
+                    hour = Integer.parseInt(s.substring(11, 13));
+                    minute = Integer.parseInt(s.substring(14, 16));
+                    idx = 16;
+                    if(s.length() > idx && s.charAt(idx) == ':'){
+                        second = Integer.parseInt(s.substring(17, 19));
+                        idx = 19;
+                    }
+                    if(s.length() > idx && s.charAt(idx) == '.'){
+                        //any number of fraction digits (e.g. .NET writes 7), only millis are kept
+                        int start = ++idx;
+                        while(idx < s.length() && Character.isDigit(s.charAt(idx)))idx++;
+                        String fraction = (s.substring(start, idx) + "000").substring(0, 3);
+                        millis = Integer.parseInt(fraction);
+                    }
+                }
+
+                TimeZone tz = TimeZone.getDefault();
+                if(idx < s.length() - 1 && s.charAt(idx) == ' ')idx++; //e.g. 'yyyy-MM-dd HH:mm:ss Z'
+                if(idx < s.length()){
+                    char c = s.charAt(idx);
+                    if(c == 'Z'){
+                        tz = TimeZone.getTimeZone("GMT");
+                    } else if(c == '+' || c == '-'){
+                        String zone = s.substring(idx + 1).replace(":", "");
+                        int hours = Integer.parseInt(zone.substring(0, 2));
+                        int minutes = zone.length() >= 4 ? Integer.parseInt(zone.substring(2, 4)) : 0;
+                        tz = TimeZone.getTimeZone(String.format("GMT%c%02d:%02d", c, hours, minutes));
+                    } else {
+                        throw new IOException("CalendarAdapter::parse unexpected " + c + " in " + s);
+                    }
+                }
+
+                Calendar cal = Calendar.getInstance(tz);
+                cal.clear();
+                cal.set(year, month - 1, day, hour, minute, second);
+                cal.set(Calendar.MILLISECOND, millis);
+                return cal;
+            } catch (IndexOutOfBoundsException | NumberFormatException e){
+                throw new IOException("CalendarAdapter::parse cannot parse " + s);
+            }
+        }
+    }
+
+    //an enum read from (and written as) its @SerializedName, or its name if it has none, numbers are read as strings
+    static public class EnumAdapter<E extends Enum<E>> extends TypeAdapter<E>{
+        final private Map<String, E> constants = new HashMap<>();
+        final private Map<E, String> names = new HashMap<>();
+
+        public EnumAdapter(Class<E> cls){
+            for(E constant : cls.getEnumConstants()){
+                String name = constant.name();
+                try {
+                    SerializedName annotation = cls.getField(name).getAnnotation(SerializedName.class);
+                    if(annotation != null){
+                        name = annotation.value();
+                        for(String alternate : annotation.alternate()){
+                            constants.put(alternate, constant);
+                        }
+                    }
+                } catch (NoSuchFieldException e){
+                    //can't happen for an enum constant
+                }
+                constants.put(name, constant); //as with gson, a repeated name resolves to the last constant
+                names.put(constant, name);
+            }
+        }
+
+        @Override
+        public void write(JsonWriter out, E value) throws IOException {
+            if(value == null){
+                out.nullValue();
+            } else {
+                out.value(names.get(value));
+            }
+        }
+
+        @Override
+        public E read(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL){
+                in.nextNull();
+                return null;
+            }
+            return constants.get(in.nextString());
+        }
+    }
+
+    //thrown when the body doesn't have the value at the top level (so the caller falls back), no stack trace needed
+    static private class NotFoundException extends IOException{
+        NotFoundException(){
+            super("ChetchTypeRegistry value not found");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    static final private Map<Class<?>, TypeAdapter<?>> adapters = new ConcurrentHashMap<>();
+    static final private TypeAdapter<Object> objectAdapter = new Gson().getAdapter(Object.class); //maps, lists, strings, doubles and booleans as gson does
+    static final private NotFoundException NOT_FOUND = new NotFoundException();
+    static final private AtomicLong streamed = new AtomicLong();
+    static final private AtomicLong fallbacks = new AtomicLong();
+
+    static {
+        register(Calendar.class, new CalendarAdapter());
+    }
+
+    static public <T> void register(Class<T> cls, TypeAdapter<T> adapter){
+        adapters.put(cls, adapter);
+    }
+
+    static public <E extends Enum<E>> void registerEnum(Class<E> cls){
+        register(cls, new EnumAdapter<>(cls));
+    }
+
+    @SuppressWarnings("unchecked")
+    static public <T> TypeAdapter<T> getAdapter(Class<T> cls){
+        return (TypeAdapter<T>)adapters.get(cls);
+    }
+
+    static public boolean isRegistered(Class<?> cls){
+        return adapters.containsKey(cls);
+    }
+
+    static public long getStreamed(){ return streamed.get(); }
+    static public long getFallbacks(){ return fallbacks.get(); }
+
+    //region Reading (null safe) and writing helpers for adapters
+    static public String nextString(JsonReader in) throws IOException{
+        if(in.peek() == JsonToken.NULL){
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    static public int nextInt(JsonReader in, int defaultValue) throws IOException{
+        if(in.peek() == JsonToken.NULL){
+            in.nextNull();
+            return defaultValue;
+        }
+        return in.nextInt();
+    }
+
+    static public boolean nextBoolean(JsonReader in, boolean defaultValue) throws IOException{
+        switch(in.peek()){
+            case NULL:
+                in.nextNull();
+                return defaultValue;
+            case STRING:
+                return Boolean.parseBoolean(in.nextString());
+            default:
+                return in.nextBoolean();
+        }
+    }
+
+    static public Calendar nextCalendar(JsonReader in) throws IOException{
+        return getAdapter(Calendar.class).read(in);
+    }
+
+    static public Object nextObject(JsonReader in) throws IOException{
+        return objectAdapter.read(in);
+    }
+
+    static public void writeObject(JsonWriter out, Object value) throws IOException{
+        objectAdapter.write(out, value);
+    }
+    //endregion
+
+    //region Decoding from body text
+    //the whole (top level) body as the class, adapters return null if they recognise nothing in it
+    static public <T> T fromJson(String json, Class<T> cls) throws IOException{
+        TypeAdapter<T> adapter = getAdapter(cls);
+        if(adapter == null)throw NOT_FOUND;
+        T value = adapter.read(new JsonReader(new StringReader(json)));
+        if(value == null)throw NOT_FOUND;
+        return value;
+    }
+
+    //positions the reader at the value of the top level field
+    static private JsonReader seek(String json, String field) throws IOException{
+        JsonReader in = new JsonReader(new StringReader(json));
+        in.beginObject();
+        while(in.hasNext()){
+            if(field.equals(in.nextName()))return in;
+            in.skipValue();
+        }
+        throw NOT_FOUND;
+    }
+
+    static public <T> T fromJson(String json, String field, Class<T> cls) throws IOException{
+        TypeAdapter<T> adapter = getAdapter(cls);
+        if(adapter == null)throw NOT_FOUND;
+        return adapter.read(seek(json, field));
+    }
+
+    static public <T> List<T> listFromJson(String json, String field, Class<T> cls) throws IOException{
+        TypeAdapter<T> adapter = getAdapter(cls);
+        if(adapter == null)throw NOT_FOUND;
+        JsonReader in = seek(json, field);
+        if(in.peek() == JsonToken.NULL)return null;
+
+        List<T> list = new ArrayList<>();
+        in.beginArray();
+        while(in.hasNext()){
+            list.add(adapter.read(in));
+        }
+        in.endArray();
+        return list;
+    }
+    //endregion
+
+    //region Decoding messages
+    //body is the json text the message was decoded from (or null), field null means the whole message
+    static public <T> T getAsClass(Message message, String body, String field, Class<T> cls){
+        if(body != null && isRegistered(cls)){
+            try {
+                T value = field == null ? fromJson(body, cls) : fromJson(body, field, cls);
+                streamed.incrementAndGet();
+                return value;
+            } catch (Exception e){
+                //fall through
+            }
+        }
+        fallbacks.incrementAndGet();
+        return field == null ? message.getAsClass(cls) : message.getAsClass(field, cls);
+    }
+
+    static public <T> List<T> getList(Message message, String body, String field, Class<T> cls){
+        if(body != null && isRegistered(cls)){
+            try {
+                List<T> list = listFromJson(body, field, cls);
+                streamed.incrementAndGet();
+                return list;
+            } catch (Exception e){
+                //fall through
+            }
+        }
+        fallbacks.incrementAndGet();
+        return message.getList(field, cls);
+    }
+    //endregion
+
+    private ChetchTypeRegistry(){}
+}
@@ -0,0 +1,22 @@
+package net.chetch.xmpp.codecs;
+
+import net.chetch.messaging.Message;
+
+import java.util.List;
+
+/*
+Encodes chetch messages in to (and out of) the text body of an XMPP message
+ */
+public interface IChetchBodyCodec {
+    public String getName();
+
+    public String encode(Message message) throws Exception;
+    public String encodeBatch(List<Message> messages) throws Exception;
+
+    public Message decode(String body) throws Exception;
+    public List<Message> decodeBatch(String body) throws Exception;
+
+    //the json of each message (as the messaging library would deserialize it) so its envelope can be read first
+    public String decodeToJson(String body) throws Exception;
+    public List<String> decodeBatchToJson(String body) throws Exception;
+}
@@ -0,0 +1,68 @@
+package net.chetch.xmpp.codecs;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import net.chetch.messaging.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+The default codec: the body is the message as serialized by the messaging library and a batch is a json array.
+ */
+public class JsonBodyCodec implements IChetchBodyCodec {
+    public static final String NAME = "json";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String encode(Message message) throws Exception {
+        return message.serialize();
+    }
+
+    @Override
+    public String encodeBatch(List<Message> messages) throws Exception {
+        StringBuilder body = new StringBuilder("[");
+        for(int i = 0; i < messages.size(); i++){
+            if(i > 0)body.append(',');
+            body.append(messages.get(i).serialize());
+        }
+        body.append(']');
+        return body.toString();
+    }
+
+    @Override
+    public Message decode(String body) throws Exception {
+        return Message.deserialize(body);
+    }
+
+    @Override
+    public List<Message> decodeBatch(String body) throws Exception {
+        List<String> jsons = decodeBatchToJson(body);
+        List<Message> messages = new ArrayList<>(jsons.size());
+        for(String json : jsons){
+            messages.add(Message.deserialize(json));
+        }
+        return messages;
+    }
+
+    @Override
+    public String decodeToJson(String body) throws Exception {
+        return body;
+    }
+
+    @Override
+    public List<String> decodeBatchToJson(String body) throws Exception {
+        JsonArray batch = JsonParser.parseString(body).getAsJsonArray();
+        List<String> jsons = new ArrayList<>(batch.size());
+        for(JsonElement element : batch){
+            jsons.add(element.toString());
+        }
+        return jsons;
+    }
+}
@@ -0,0 +1,132 @@
+package net.chetch.xmpp.metrics;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Counters and latencies for one chat. Round trips are measured from sending a message with a given Tag to
+receiving a message with the same Tag (i.e. the response) and also feed the RTT estimator.
+ */
+public class ChatMetrics {
+    public static final int MAX_PENDING_ROUND_TRIPS = 256;
+    public static final long ROUND_TRIP_EXPIRY = 60*1000; //in millis, unanswered messages are forgotten after this
+
+    static public class Snapshot{
+        public final String jid;
+        public final long messagesIn;
+        public final long messagesOut;
+        public final long bytesIn;
+        public final long bytesOut;
+        public final LatencyHistogram.Snapshot decodeTime;
+        public final LatencyHistogram.Snapshot roundTrip;
+        public final long smoothedRtt; //in millis
+        public final long rttVariance; //in millis
+        public final long rto; //in millis
+        public final long millisSinceLastInbound; //-1 if nothing yet received
+
+        Snapshot(ChatMetrics m){
+            jid = m.jid;
+            messagesIn = m.messagesIn.get();
+            messagesOut = m.messagesOut.get();
+            bytesIn = m.bytesIn.get();
+            bytesOut = m.bytesOut.get();
+            decodeTime = m.decodeTime.getSnapshot();
+            roundTrip = m.roundTrip.getSnapshot();
+            smoothedRtt = m.rttEstimator.getSmoothedRtt();
+            rttVariance = m.rttEstimator.getRttVariance();
+            rto = m.rttEstimator.getRto();
+            millisSinceLastInbound = m.getMillisSinceLastInbound();
+        }
+
+        @Override
+        public String toString() {
+            return jid + ": in=" + messagesIn + " (" + bytesIn + "b) out=" + messagesOut + " (" + bytesOut + "b) rtt[" + roundTrip + "] srtt=" + smoothedRtt + "ms rttvar=" + rttVariance + "ms decode[" + decodeTime + "]";
+        }
+    }
+
+    final private String jid;
+    final private AtomicLong messagesIn = new AtomicLong();
+    final private AtomicLong messagesDeclined = new AtomicLong(); //received but turned down from the envelope (so not deserialized)
+    final private AtomicLong messagesOut = new AtomicLong();
+    final private AtomicLong bytesIn = new AtomicLong();
+    final private AtomicLong bytesOut = new AtomicLong();
+    final private AtomicLong lastInboundOn = new AtomicLong(); //System.nanoTime, 0 for never
+    final private LatencyHistogram decodeTime = new LatencyHistogram();
+    final private LatencyHistogram roundTrip = new LatencyHistogram();
+    final private RttEstimator rttEstimator = new RttEstimator();
+    final private Map<String, Long> pendingRoundTrips = new ConcurrentHashMap<>();
+
+    public ChatMetrics(String jid){
+        this.jid = jid;
+    }
+
+    public String getJid(){ return jid; }
+
+    public void stanzaReceived(int bytes){
+        bytesIn.addAndGet(bytes);
+        lastInboundOn.set(System.nanoTime());
+    }
+
+    public void stanzaSent(int bytes){
+        bytesOut.addAndGet(bytes);
+    }
+
+    public void decoded(long nanos){
+        decodeTime.recordNanos(nanos);
+    }
+
+    public void messageSent(String tag){
+        messagesOut.incrementAndGet();
+        if(tag == null)return;
+
+        long now = System.nanoTime();
+        if(pendingRoundTrips.size() >= MAX_PENDING_ROUND_TRIPS){
+            long expiry = TimeUnit.MILLISECONDS.toNanos(ROUND_TRIP_EXPIRY);
+            Iterator<Long> it = pendingRoundTrips.values().iterator();
+            while(it.hasNext()){
+                if(now - it.next() > expiry)it.remove();
+            }
+            if(pendingRoundTrips.size() >= MAX_PENDING_ROUND_TRIPS)return;
+        }
+        pendingRoundTrips.put(tag, now);
+    }
+
+    public void messageReceived(String tag){
+        messagesIn.incrementAndGet();
+        if(tag == null)return;
+
+        Long sentOn = pendingRoundTrips.remove(tag);
+        if(sentOn != null){
+            long nanos = System.nanoTime() - sentOn;
+            roundTrip.recordNanos(nanos);
+            rttEstimator.sample(nanos);
+        }
+    }
+
+    //still counts as received (and completes a round trip) as the service did answer
+    public void messageDeclined(String tag){
+        messagesDeclined.incrementAndGet();
+        messageReceived(tag);
+    }
+
+    public long getMessagesIn(){ return messagesIn.get(); }
+    public long getMessagesDeclined(){ return messagesDeclined.get(); }
+    public long getMessagesOut(){ return messagesOut.get(); }
+    public long getBytesIn(){ return bytesIn.get(); }
+    public long getBytesOut(){ return bytesOut.get(); }
+    public LatencyHistogram getDecodeTime(){ return decodeTime; }
+    public LatencyHistogram getRoundTrip(){ return roundTrip; }
+    public RttEstimator getRttEstimator(){ return rttEstimator; }
+
+    public long getMillisSinceLastInbound(){
+        long last = lastInboundOn.get();
+        return last == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - last);
+    }
+
+    public Snapshot getSnapshot(){
+        return new Snapshot(this);
+    }
+}
@@ -0,0 +1,87 @@
+package net.chetch.xmpp.metrics;
+
+import org.jxmpp.jid.EntityBareJid;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Connection wide counters plus the metrics for each chat. Kept across resets so counts cover the life of the
+connection object.
+ */
+public class ConnectionMetrics {
+    static public class Snapshot{
+        public final long connects;
+        public final long reconnects;
+        public final long resumptions;
+        public final long connectFailures;
+        public final long millisSinceLastInbound; //-1 if nothing yet received
+        public final Map<String, ChatMetrics.Snapshot> chats = new HashMap<>();
+
+        Snapshot(ConnectionMetrics m){
+            connects = m.connects.get();
+            reconnects = m.reconnects.get();
+            resumptions = m.resumptions.get();
+            connectFailures = m.connectFailures.get();
+            millisSinceLastInbound = m.getMillisSinceLastInbound();
+            for(ChatMetrics cm : m.chats.values()){
+                chats.put(cm.getJid(), cm.getSnapshot());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "connects=" + connects + " reconnects=" + reconnects + " resumptions=" + resumptions + " failures=" + connectFailures + " chats=" + chats.size();
+        }
+    }
+
+    final private AtomicLong connects = new AtomicLong();
+    final private AtomicLong reconnects = new AtomicLong();
+    final private AtomicLong resumptions = new AtomicLong();
+    final private AtomicLong connectFailures = new AtomicLong();
+    final private AtomicLong lastInboundOn = new AtomicLong(); //System.nanoTime, 0 for never
+    final private ConcurrentHashMap<EntityBareJid, ChatMetrics> chats = new ConcurrentHashMap<>();
+
+    public ChatMetrics getChat(EntityBareJid jid){
+        ChatMetrics cm = chats.get(jid);
+        if(cm == null){
+            cm = new ChatMetrics(jid.toString());
+            ChatMetrics existing = chats.putIfAbsent(jid, cm);
+            if(existing != null)cm = existing;
+        }
+        return cm;
+    }
+
+    public void connected(){
+        if(connects.incrementAndGet() > 1){
+            reconnects.incrementAndGet();
+        }
+    }
+
+    public void resumed(){
+        resumptions.incrementAndGet();
+    }
+
+    public void connectFailed(){
+        connectFailures.incrementAndGet();
+    }
+
+    public void stanzaReceived(){
+        lastInboundOn.set(System.nanoTime());
+    }
+
+    public long getReconnects(){ return reconnects.get(); }
+    public long getResumptions(){ return resumptions.get(); }
+
+    public long getMillisSinceLastInbound(){
+        long last = lastInboundOn.get();
+        return last == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - last);
+    }
+
+    public Snapshot getSnapshot(){
+        return new Snapshot(this);
+    }
+}
@@ -0,0 +1,90 @@
+package net.chetch.xmpp.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Lock free latency histogram with power of 2 microsecond buckets (bucket i holds values < 2^i us) so recording is
+a couple of atomic adds and percentiles are accurate to within a factor of 2 ... plenty for charting.
+ */
+public class LatencyHistogram {
+    public static final int BUCKETS = 32; //the last bucket holds anything over ~35 minutes
+
+    static public class Snapshot{
+        public final long count;
+        public final long meanMicros;
+        public final long maxMicros;
+        public final long p50Micros;
+        public final long p95Micros;
+        public final long p99Micros;
+
+        Snapshot(long count, long meanMicros, long maxMicros, long p50Micros, long p95Micros, long p99Micros){
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.maxMicros = maxMicros;
+            this.p50Micros = p50Micros;
+            this.p95Micros = p95Micros;
+            this.p99Micros = p99Micros;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " mean=" + meanMicros + "us p50=" + p50Micros + "us p95=" + p95Micros + "us p99=" + p99Micros + "us max=" + maxMicros + "us";
+        }
+    }
+
+    final private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    final private AtomicLong count = new AtomicLong();
+    final private AtomicLong totalMicros = new AtomicLong();
+    final private AtomicLong maxMicros = new AtomicLong();
+
+    static int bucketFor(long micros){
+        if(micros <= 0)return 0;
+        int b = 64 - Long.numberOfLeadingZeros(micros);
+        return b >= BUCKETS ? BUCKETS - 1 : b;
+    }
+
+    public void recordNanos(long nanos){
+        recordMicros(nanos / 1000);
+    }
+
+    public void recordMicros(long micros){
+        if(micros < 0)micros = 0;
+        buckets.incrementAndGet(bucketFor(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max;
+        do {
+            max = maxMicros.get();
+        } while(micros > max && !maxMicros.compareAndSet(max, micros));
+    }
+
+    public long getCount(){
+        return count.get();
+    }
+
+    //upper bound of the bucket containing the given percentile (0 - 100)
+    public long getPercentileMicros(double percentile){
+        long n = count.get();
+        if(n == 0)return 0;
+        long target = (long)Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += buckets.get(i);
+            if(seen >= target){
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public Snapshot getSnapshot(){
+        long n = count.get();
+        return new Snapshot(n,
+                n == 0 ? 0 : totalMicros.get() / n,
+                maxMicros.get(),
+                getPercentileMicros(50),
+                getPercentileMicros(95),
+                getPercentileMicros(99));
+    }
+}
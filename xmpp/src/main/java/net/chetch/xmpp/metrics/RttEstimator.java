@@ -0,0 +1,74 @@
+package net.chetch.xmpp.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Smoothed round trip time and variance as per Jacobson/Karels (the TCP retransmission timer, RFC 6298):
+    first sample: SRTT = R, RTTVAR = R/2
+    thereafter:   RTTVAR = (1 - BETA)*RTTVAR + BETA*|SRTT - R|, SRTT = (1 - ALPHA)*SRTT + ALPHA*R
+    RTO = SRTT + max(G, K*RTTVAR) clamped to [MIN_RTO, MAX_RTO]
+A sample is 'late' if it took longer than the RTO in force when it arrived.
+ */
+public class RttEstimator {
+    public static final double ALPHA = 1.0/8;
+    public static final double BETA = 1.0/4;
+    public static final int K = 4;
+    public static final long INITIAL_RTO = 3000; //in millis, before any samples
+    public static final long MIN_RTO = 1000; //in millis
+    public static final long MAX_RTO = 60*1000; //in millis
+    public static final long CLOCK_GRANULARITY = 10; //in millis (G)
+
+    private double srtt = 0; //in millis
+    private double rttvar = 0; //in millis
+    private long rto = INITIAL_RTO;
+    private long lastSample = 0;
+    private long samples = 0;
+    private long lateSamples = 0;
+    private int consecutiveOnTime = 0;
+
+    public synchronized void sample(long nanos){
+        double r = nanos / 1e6;
+        if(samples == 0){
+            srtt = r;
+            rttvar = r / 2;
+        } else {
+            rttvar = (1 - BETA)*rttvar + BETA*Math.abs(srtt - r);
+            srtt = (1 - ALPHA)*srtt + ALPHA*r;
+        }
+
+        if(samples > 0 && r > rto){
+            lateSamples++;
+            consecutiveOnTime = 0;
+        } else {
+            consecutiveOnTime++;
+        }
+        samples++;
+        lastSample = TimeUnit.NANOSECONDS.toMillis(nanos);
+
+        long newRto = (long)Math.ceil(srtt + Math.max(CLOCK_GRANULARITY, K*rttvar));
+        rto = Math.min(MAX_RTO, Math.max(MIN_RTO, newRto));
+    }
+
+    public synchronized long getSmoothedRtt(){ return Math.round(srtt); }
+    public synchronized long getRttVariance(){ return Math.round(rttvar); }
+    public synchronized long getRto(){ return rto; }
+    public synchronized long getLastSample(){ return lastSample; }
+    public synchronized long getSamples(){ return samples; }
+    public synchronized long getLateSamples(){ return lateSamples; }
+    public synchronized int getConsecutiveOnTime(){ return consecutiveOnTime; }
+
+    public synchronized void reset(){
+        srtt = 0;
+        rttvar = 0;
+        rto = INITIAL_RTO;
+        lastSample = 0;
+        samples = 0;
+        lateSamples = 0;
+        consecutiveOnTime = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "srtt=" + getSmoothedRtt() + "ms rttvar=" + getRttVariance() + "ms rto=" + rto + "ms (" + samples + " samples, " + lateSamples + " late)";
+    }
+}
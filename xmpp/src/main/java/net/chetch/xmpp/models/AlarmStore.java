@@ -0,0 +1,215 @@
+package net.chetch.xmpp.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/*
+Alarms keyed by ID. Alerts are applied as they arrive and the full list (from list-alarms) is applied as a resync.
+Every change bumps the store version and each alarm remembers the version at which it was last updated. A list
+request records the version when it is sent so that when the list arrives any alarm updated by an alert in the
+meantime keeps the alert's (newer) state rather than the list's.
+ */
+public class AlarmStore {
+
+    public enum ChangeType{
+        ADDED,
+        CHANGED,
+        REMOVED,
+    }
+
+    static public class Change{
+        public final ChangeType type;
+        public final AlarmsViewModel.Alarm alarm; //for REMOVED this is the alarm that was removed
+        public final AlarmsViewModel.Alarm previous; //null for ADDED
+        public final long version;
+
+        Change(ChangeType type, AlarmsViewModel.Alarm alarm, AlarmsViewModel.Alarm previous, long version){
+            this.type = type;
+            this.alarm = alarm;
+            this.previous = previous;
+            this.version = version;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + alarm.ID + " @ " + version;
+        }
+    }
+
+    public interface IChangeListener{
+        void onAlarmsChanged(List<Change> changes);
+    }
+
+    private static class Entry{
+        AlarmsViewModel.Alarm alarm;
+        long updatedAt;
+
+        Entry(AlarmsViewModel.Alarm alarm, long updatedAt){
+            this.alarm = alarm;
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    static boolean isSame(AlarmsViewModel.Alarm a1, AlarmsViewModel.Alarm a2){
+        return Objects.equals(a1.ID, a2.ID)
+                && a1.State == a2.State
+                && Objects.equals(a1.Name, a2.Name)
+                && Objects.equals(a1.Message, a2.Message)
+                && Objects.equals(a1.LastRaised, a2.LastRaised)
+                && Objects.equals(a1.LastLowered, a2.LastLowered)
+                && Objects.equals(a1.LastLDisabled, a2.LastLDisabled)
+                && a1.Testing == a2.Testing;
+    }
+
+    final private Map<String, Entry> entries = new HashMap<>();
+    private long version = 0;
+    private List<AlarmsViewModel.Alarm> sorted = Collections.emptyList();
+    private boolean resortRequired = false;
+    private IChangeListener listener = null;
+
+    public synchronized void setChangeListener(IChangeListener listener){
+        this.listener = listener;
+    }
+
+    public synchronized long getVersion(){
+        return version;
+    }
+
+    public synchronized AlarmsViewModel.Alarm get(String id){
+        Entry entry = entries.get(id);
+        return entry == null ? null : entry.alarm;
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    //sorted by name, the list itself is never modified (a new one is created when the store changes)
+    public synchronized List<AlarmsViewModel.Alarm> getAlarms(){
+        if(resortRequired){
+            List<AlarmsViewModel.Alarm> list = new ArrayList<>(entries.size());
+            for(Entry entry : entries.values()){
+                list.add(entry.alarm);
+            }
+            list.sort((a1, a2) -> {
+                String n1 = a1.Name == null ? "" : a1.Name;
+                String n2 = a2.Name == null ? "" : a2.Name;
+                return n1.compareToIgnoreCase(n2);
+            });
+            sorted = Collections.unmodifiableList(list);
+            resortRequired = false;
+        }
+        return sorted;
+    }
+
+    //returns null if the alert changes nothing
+    public Change applyAlert(AlarmsViewModel.Alarm alarm){
+        Change change;
+        IChangeListener l;
+        synchronized (this) {
+            if(alarm == null || alarm.ID == null)return null;
+            change = put(alarm);
+            l = listener;
+        }
+        if(change != null && l != null){
+            l.onAlarmsChanged(Collections.singletonList(change));
+        }
+        return change;
+    }
+
+    //applies a complete list, requestVersion is the store version when the list was requested
+    public List<Change> applyList(List<AlarmsViewModel.Alarm> alarms, long requestVersion){
+        List<Change> changes = new ArrayList<>();
+        IChangeListener l;
+        synchronized (this) {
+            Set<String> listed = new HashSet<>();
+            for(AlarmsViewModel.Alarm alarm : alarms){
+                if(alarm == null || alarm.ID == null)continue;
+                listed.add(alarm.ID);
+
+                Entry entry = entries.get(alarm.ID);
+                if(entry != null && entry.updatedAt > requestVersion)continue; //an alert since the request is newer
+
+                Change change = put(alarm);
+                if(change != null)changes.add(change);
+            }
+
+            List<String> removed = new ArrayList<>();
+            for(Map.Entry<String, Entry> e : entries.entrySet()){
+                if(!listed.contains(e.getKey()) && e.getValue().updatedAt <= requestVersion){
+                    removed.add(e.getKey());
+                }
+            }
+            for(String id : removed){
+                Entry entry = entries.remove(id);
+                version++;
+                resortRequired = true;
+                changes.add(new Change(ChangeType.REMOVED, entry.alarm, entry.alarm, version));
+            }
+            l = listener;
+        }
+        if(!changes.isEmpty() && l != null){
+            l.onAlarmsChanged(changes);
+        }
+        return changes;
+    }
+
+    public List<Change> applyList(List<AlarmsViewModel.Alarm> alarms){
+        return applyList(alarms, getVersion());
+    }
+
+    //restored alarms (e.g. from a snapshot) only fill an empty store and never take precedence over a list or an alert
+    public List<Change> restore(List<AlarmsViewModel.Alarm> alarms){
+        List<Change> changes = new ArrayList<>();
+        IChangeListener l;
+        synchronized (this) {
+            if(!entries.isEmpty())return changes;
+            version++;
+            for(AlarmsViewModel.Alarm alarm : alarms){
+                if(alarm == null || alarm.ID == null || entries.containsKey(alarm.ID))continue;
+                entries.put(alarm.ID, new Entry(alarm, 0));
+                changes.add(new Change(ChangeType.ADDED, alarm, null, version));
+            }
+            resortRequired = true;
+            l = listener;
+        }
+        if(!changes.isEmpty() && l != null){
+            l.onAlarmsChanged(changes);
+        }
+        return changes;
+    }
+
+    //called with lock held
+    private Change put(AlarmsViewModel.Alarm alarm){
+        Entry entry = entries.get(alarm.ID);
+        if(entry == null){
+            version++;
+            entries.put(alarm.ID, new Entry(alarm, version));
+            resortRequired = true;
+            return new Change(ChangeType.ADDED, alarm, null, version);
+        }
+        if(isSame(entry.alarm, alarm)){
+            return null;
+        }
+
+        AlarmsViewModel.Alarm previous = entry.alarm;
+        version++;
+        entry.alarm = alarm;
+        entry.updatedAt = version;
+        resortRequired = true; //the list holds alarm objects so needs rebuilding (names rarely change so this is just a re-sort of a sorted list)
+        return new Change(ChangeType.CHANGED, alarm, previous, version);
+    }
+
+    public synchronized void clear(){
+        entries.clear();
+        sorted = Collections.emptyList();
+        resortRequired = false;
+        version++;
+    }
+}
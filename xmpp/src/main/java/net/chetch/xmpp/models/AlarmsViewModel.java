@@ -6,24 +6,36 @@ import androidx.annotation.NonNull;
 import androidx.lifecycle.MutableLiveData;
 
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import net.chetch.messaging.filters.DataFilter;
 import net.chetch.utilities.SLog;
 import net.chetch.utilities.Utils;
 import net.chetch.messaging.Message;
 import net.chetch.messaging.MessageFilter;
+import net.chetch.messaging.MessageType;
 import net.chetch.messaging.filters.AlertFilter;
 import net.chetch.messaging.filters.CommandResponseFilter;
 import net.chetch.messaging.filters.NotificationFilter;
+import net.chetch.xmpp.ChetchLiveDataPublisher;
+import net.chetch.xmpp.ChetchTimingWheel;
 import net.chetch.xmpp.ChetchXMPPViewModel;
+import net.chetch.xmpp.CommandTemplate;
+import net.chetch.xmpp.codecs.ChetchTypeRegistry;
 import net.chetch.xmpp.exceptions.ChetchXMPPViewModelException;
 
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.chat2.Chat;
 import org.jxmpp.jid.EntityBareJid;
 
+import java.io.IOException;
 import java.util.Calendar;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -38,6 +50,8 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
     public static final String MESSAGE_FIELD_TEST = "Test";
     public static final String MESSAGE_FIELDS_BOARD_READY = "Board,Ready";
     public static final int REQUEST_ALARMS_LIST_INTERVAL = 30*1000;
+    public static final int MAX_PENDING_LIST_REQUESTS = 8;
+    public static final String SNAPSHOT_ALARMS = "alarms";
     public static final String COMMAND_TEST_ALARM = "test-alarm";
     public static final String COMMAND_TEST_BUZZER = "test-buzzer";
     public static final String COMMAND_TEST_PILOT = "test-pilot";
@@ -51,6 +65,17 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
     public static final int DEFAULT_SILENCE_DURATION = 1*60; //in seconds
     public static final String PILOT_LIGHT_ID = "pilot";
     public static final String BUZZER_ID = "buzzer";
+
+    //compiled once and reused for every send
+    public static final CommandTemplate LIST_ALARMS = CommandTemplate.compile(COMMAND_LIST_ALARMS);
+    public static final CommandTemplate TEST_ALARM = CommandTemplate.compile(COMMAND_TEST_ALARM, String.class, AlarmState.class, int.class);
+    public static final CommandTemplate TEST_BUZZER = CommandTemplate.compile(COMMAND_TEST_BUZZER, int.class);
+    public static final CommandTemplate TEST_PILOT = CommandTemplate.compile(COMMAND_TEST_PILOT, int.class);
+    public static final CommandTemplate SILENCE = CommandTemplate.compile(COMMAND_SILENCE, int.class);
+    public static final CommandTemplate UNSILENCE = CommandTemplate.compile(COMMAND_UNSILENCE);
+    public static final CommandTemplate ENABLE_ALARM = CommandTemplate.compile(COMMAND_ENABLE_ALARM, String.class);
+    public static final CommandTemplate DISABLE_ALARM = CommandTemplate.compile(COMMAND_DISABLE_ALARM, String.class);
+    public static final CommandTemplate REFRESH_ALARM = CommandTemplate.compile(COMMAND_REFRESH_ALARM, String.class);
     //endregion
 
     //region Class and enums
@@ -108,6 +133,59 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
 
     }
 
+    //streams an Alarm (see ChetchTypeRegistry)
+    static public class AlarmAdapter extends TypeAdapter<Alarm>{
+        final TypeAdapter<AlarmState> stateAdapter = new ChetchTypeRegistry.EnumAdapter<>(AlarmState.class);
+
+        @Override
+        public void write(JsonWriter out, Alarm value) throws IOException {
+            if(value == null){
+                out.nullValue();
+                return;
+            }
+            TypeAdapter<Calendar> calendarAdapter = ChetchTypeRegistry.getAdapter(Calendar.class);
+            out.beginObject();
+            out.name("ID").value(value.ID);
+            out.name("State");
+            stateAdapter.write(out, value.State);
+            out.name("Name").value(value.Name);
+            out.name("Message").value(value.Message);
+            out.name("LastRaised");
+            calendarAdapter.write(out, value.LastRaised);
+            out.name("LastLowered");
+            calendarAdapter.write(out, value.LastLowered);
+            out.name("LastLDisabled");
+            calendarAdapter.write(out, value.LastLDisabled);
+            out.name("Testing").value(value.Testing);
+            out.endObject();
+        }
+
+        @Override
+        public Alarm read(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL){
+                in.nextNull();
+                return null;
+            }
+            Alarm alarm = new Alarm();
+            in.beginObject();
+            while(in.hasNext()){
+                switch(in.nextName()){
+                    case "ID": alarm.ID = ChetchTypeRegistry.nextString(in); break;
+                    case "State": alarm.State = stateAdapter.read(in); break;
+                    case "Name": alarm.Name = ChetchTypeRegistry.nextString(in); break;
+                    case "Message": alarm.Message = ChetchTypeRegistry.nextString(in); break;
+                    case "LastRaised": alarm.LastRaised = ChetchTypeRegistry.nextCalendar(in); break;
+                    case "LastLowered": alarm.LastLowered = ChetchTypeRegistry.nextCalendar(in); break;
+                    case "LastLDisabled": alarm.LastLDisabled = ChetchTypeRegistry.nextCalendar(in); break;
+                    case "Testing": alarm.Testing = ChetchTypeRegistry.nextBoolean(in, false); break;
+                    default: in.skipValue(); break;
+                }
+            }
+            in.endObject();
+            return alarm;
+        }
+    }
+
     public enum Test{
         @SerializedName("0")
         NONE,
@@ -119,26 +197,39 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
         PILOT,
     }
 
+    static {
+        ChetchTypeRegistry.register(Alarm.class, new AlarmAdapter());
+        ChetchTypeRegistry.registerEnum(AlarmState.class);
+        ChetchTypeRegistry.registerEnum(Test.class);
+    }
     //endregion
 
     //live data observables
     public MutableLiveData<Alarm> alertedAlarm = new MutableLiveData<>();
-    public MutableLiveData<List<Alarm>> alarms = new MutableLiveData<>();
+    public MutableLiveData<List<Alarm>> alarms = new MutableLiveData<>(); //sorted by name, only posted when the store changes
+    public MutableLiveData<List<AlarmStore.Change>> alarmChanges = new MutableLiveData<>();
     public MutableLiveData<Test> test = new MutableLiveData<>();
     public MutableLiveData<Boolean> pilotLight = new MutableLiveData<>();
     public MutableLiveData<Boolean> buzzer = new MutableLiveData<>();
 
     public MutableLiveData<Boolean> boardReady = new MutableLiveData<>();
 
+    //state is latest-only (conflated to a frame) whereas alerts and alarm changes are events so are queued and never conflated
+    ChetchLiveDataPublisher.Channel<Alarm> alertedAlarmChannel = publisher.queued(alertedAlarm);
+    ChetchLiveDataPublisher.Channel<List<Alarm>> alarmsChannel = publisher.latest(alarms);
+    ChetchLiveDataPublisher.Channel<List<AlarmStore.Change>> alarmChangesChannel = publisher.queued(alarmChanges);
+    ChetchLiveDataPublisher.Channel<Test> testChannel = publisher.latest(test);
+    ChetchLiveDataPublisher.Channel<Boolean> pilotLightChannel = publisher.latest(pilotLight);
+    ChetchLiveDataPublisher.Channel<Boolean> buzzerChannel = publisher.latest(buzzer);
+    ChetchLiveDataPublisher.Channel<Boolean> boardReadyChannel = publisher.latest(boardReady);
+
     //region Message filter
     MessageFilter alarmsListResponseFilter = new CommandResponseFilter(null, COMMAND_LIST_ALARMS) {
         @Override
         protected void onMatched(Message message){
-            List<Alarm> alarmsList = message.getList(MESSAGE_FIELD_ALARMS_LIST, Alarm.class);
-            alarmsList.sort((a1, a2) -> {
-                return a1.Name.compareToIgnoreCase(a2.Name);
-            });
-            alarms.postValue(alarmsList);
+            List<Alarm> alarmsList = decodeList(message, MESSAGE_FIELD_ALARMS_LIST, Alarm.class);
+            alarmStore.applyList(alarmsList, getListRequestVersion(message.Tag)); //changes come back through onAlarmsChanged
+            markLive(SNAPSHOT_ALARMS, alarmStore.getAlarms());
         }
     };
 
@@ -146,16 +237,17 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
         @Override
         protected void onMatched(Message message) {
             SLog.i("AVM", "Alert received from " + message.Sender);
-            Alarm alarm = message.getAsClass(MESSAGE_FIELD_ALARM, Alarm.class);
-            alertedAlarm.postValue(alarm);
+            Alarm alarm = decodeAsClass(message, MESSAGE_FIELD_ALARM, Alarm.class);
+            alertedAlarmChannel.publish(alarm);
+            alarmStore.applyAlert(alarm);
         }
     };
 
     MessageFilter testingFilter = new NotificationFilter(null, MESSAGE_FIELD_TEST) {
         @Override
         protected void onMatched(Message message) {
-            currentTest = message.getAsClass(MESSAGE_FIELD_TEST, Test.class);
-            test.postValue(currentTest);
+            currentTest = decodeAsClass(message, MESSAGE_FIELD_TEST, Test.class);
+            testChannel.publish(currentTest);
         }
     };
 
@@ -163,7 +255,7 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
         @Override
         protected void onMatched(Message message) {
             boolean isReady = message.getBoolean("Ready");
-            boardReady.postValue(isReady);
+            boardReadyChannel.publish(isReady);
         }
     };
 
@@ -171,7 +263,7 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
         @Override
         protected void onMatched(Message message) {
             pilotOn = message.getBoolean("On");
-            pilotLight.postValue(pilotOn);
+            pilotLightChannel.publish(pilotOn);
         }
     };
 
@@ -183,14 +275,16 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
             }
             if(message.hasValue("On")) {
                 buzzerOn = message.getBoolean("On");
-                buzzer.postValue(buzzerOn);
+                buzzerChannel.publish(buzzerOn);
             }
         }
     };
     //endregion
 
     //Fields
-    Calendar alarsListRequestLastSent = null;
+    AlarmStore alarmStore = createAlarmStore();
+    final Map<String, Long> listRequestVersions = new LinkedHashMap<>(); //store version when each list request (by tag) was sent
+    ChetchTimingWheel.Task alarmsListTask = new ChetchTimingWheel.Task(this::onAlarmsListTimer); //periodic once subscribed
     boolean buzzerOn = false;
     boolean buzzerSilenced = false;
     boolean pilotOn = false;
@@ -199,23 +293,20 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
     //region Initialise stuf
     public void init(Context context, String username, String password) {
         super.init(context, username, password,ALARMS_SERVICE_NAME);
-        addMessageFilters(alarmsListResponseFilter,
-                            alertFilter,
-                            testingFilter,
-                            boardReadyFilter,
-                            pilotFilter,
-                            buzzerFilter);
+        addCommandResponseFilter(alarmsListResponseFilter, COMMAND_LIST_ALARMS);
+        addMessageFilter(alertFilter, MessageType.ALERT);
+        addDataFilter(pilotFilter, PILOT_LIGHT_ID);
+        addDataFilter(buzzerFilter, BUZZER_ID);
+        addMessageFilters(testingFilter,
+                            boardReadyFilter);
     }
     //endregion
 
 
-    @Override
-    protected long onTimer() {
-        if(isServiceResponding() && alarsListRequestLastSent != null && Calendar.getInstance().getTimeInMillis() - alarsListRequestLastSent.getTimeInMillis() > REQUEST_ALARMS_LIST_INTERVAL){
+    protected void onAlarmsListTimer() {
+        if(isServiceResponding()){
             requestAlarmsList();
         }
-
-        return super.onTimer();
     }
 
     @Override
@@ -223,13 +314,68 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
         super.onSubscribeResponseReceived(message);
 
         requestAlarmsList();
+        ChetchTimingWheel.getShared().schedule(alarmsListTask, REQUEST_ALARMS_LIST_INTERVAL, REQUEST_ALARMS_LIST_INTERVAL);
+    }
+
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+
+        alarmsListTask.cancel();
+    }
+
+    //region Alarm store
+    private AlarmStore createAlarmStore(){
+        AlarmStore store = new AlarmStore();
+        store.setChangeListener(this::onAlarmsChanged);
+        return store;
+    }
+
+    public AlarmStore getAlarmStore(){
+        return alarmStore;
+    }
+
+    //every change to the store (list, alert or restore) comes through here on the thread that applied it
+    protected void onAlarmsChanged(List<AlarmStore.Change> changes){
+        List<Alarm> list = alarmStore.getAlarms();
+        alarmsChannel.publish(list);
+        alarmChangesChannel.publish(changes);
+        if(getSnapshotStore() != null && !isSnapshotStale(SNAPSHOT_ALARMS)){ //no point writing back what was just restored
+            getSnapshotStore().put(SNAPSHOT_ALARMS, list);
+        }
     }
 
+    @Override
+    protected void restoreSnapshots() {
+        super.restoreSnapshots();
+
+        getSnapshotStore().<List<Alarm>>get(SNAPSHOT_ALARMS, new TypeToken<List<Alarm>>(){}.getType()).thenAccept(restored -> {
+            if(restored == null)return;
+            applyRestored(SNAPSHOT_ALARMS, () -> alarmStore.restore(restored));
+        });
+    }
+
+    //a list we didn't request (or have forgotten about) is treated as current
+    private long getListRequestVersion(String tag){
+        synchronized (listRequestVersions) {
+            Long version = tag == null ? null : listRequestVersions.remove(tag);
+            return version == null ? alarmStore.getVersion() : version;
+        }
+    }
+    //endregion
+
     //region Sending messages and commands etc.
     public void requestAlarmsList(){
         try {
-            sendCommand(COMMAND_LIST_ALARMS);
-            alarsListRequestLastSent = Calendar.getInstance();
+            Message listAlarms = LIST_ALARMS.create();
+            listAlarms.Tag = createTag();
+            synchronized (listRequestVersions) {
+                if(listRequestVersions.size() >= MAX_PENDING_LIST_REQUESTS){
+                    listRequestVersions.remove(listRequestVersions.keySet().iterator().next());
+                }
+                listRequestVersions.put(listAlarms.Tag, alarmStore.getVersion());
+            }
+            sendMessage(listAlarms);
         } catch (Exception e){
             setError(e);
             e.printStackTrace();
@@ -242,7 +388,7 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
     public boolean isTesting(){ return currentTest != Test.NONE; }
 
     public void testAlarm(String alarmID, AlarmState state, int duration) throws Exception{
-        sendCommand(COMMAND_TEST_ALARM, alarmID, state, duration);
+        sendCommand(TEST_ALARM, alarmID, state, duration);
     }
 
     public void testAlarm(String alarmID, AlarmState state) throws Exception{
@@ -254,7 +400,7 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
     }
 
     public void testBuzzer(int duration) throws Exception{
-        sendCommand(COMMAND_TEST_BUZZER, duration);
+        sendCommand(TEST_BUZZER, duration);
     }
 
     public void testBuzzer() throws Exception{
@@ -262,7 +408,7 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
     }
 
     public void testPilot(int duration) throws Exception{
-        sendCommand(COMMAND_TEST_PILOT, duration);
+        sendCommand(TEST_PILOT, duration);
     }
 
     public void testPilot() throws Exception{
@@ -270,23 +416,23 @@ public class AlarmsViewModel extends ChetchXMPPViewModel {
     }
 
     public void silence(int duration) throws Exception{
-        sendCommand(COMMAND_SILENCE, duration);
+        sendCommand(SILENCE, duration);
     }
 
     public void unsilence() throws Exception{
-        sendCommand(COMMAND_UNSILENCE);
+        sendCommand(UNSILENCE);
     }
 
     public void enableAlarm(String alarmID) throws Exception{
-        sendCommand(COMMAND_ENABLE_ALARM, alarmID);
+        sendCommand(ENABLE_ALARM, alarmID);
     }
 
     public void disableAlarm(String alarmID) throws Exception{
-        sendCommand(COMMAND_DISABLE_ALARM, alarmID);
+        sendCommand(DISABLE_ALARM, alarmID);
     }
 
     public void refreshAlarm(String alarmID) throws Exception{
-        sendCommand(COMMAND_REFRESH_ALARM, alarmID);
+        sendCommand(REFRESH_ALARM, alarmID);
     }
     //endregion
 }
@@ -0,0 +1,293 @@
+package net.chetch.xmpp.persistence;
+
+import android.util.Log;
+
+import net.chetch.messaging.Message;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/*
+Durable outbox for messages issued whilst there is no chat with the service. Records are appended to a file:
+    [int length][byte record type][long expires on (epoch millis)][short tag length][tag utf8][body utf8]
+where an ADD record carries the serialized message and a SENT record (no body) marks it as delivered. Loading replays the
+records in order so only unsent, unexpired messages remain (in the order they were added, one per tag) and then the file is
+compacted. All file io is on the shared persistence thread so callers (i.e. the UI thread) never block, nor does draining
+block that thread: each message is handed to the sender and the next one only once its send completes.
+Expiry uses the wall clock as entries must survive restarts.
+ */
+public class ChetchOutbox {
+    public static final long DEFAULT_TTL = 5*60*1000; //in millis
+    public static final int MAX_RECORD_LENGTH = 1024*1024;
+
+    static final byte RECORD_ADD = 1;
+    static final byte RECORD_SENT = 2;
+    static final int HEADER_LENGTH = 1 + 8 + 2;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public interface ISender{
+        //completes with false (or exceptionally) if the message could not be sent (draining then stops and the message stays in the outbox)
+        CompletableFuture<Boolean> send(Message message) throws Exception;
+    }
+
+    private static class Entry{
+        final String tag;
+        final long expiresOn;
+        final String body;
+
+        Entry(String tag, long expiresOn, String body){
+            this.tag = tag;
+            this.expiresOn = expiresOn;
+            this.body = body;
+        }
+    }
+
+    final private File file;
+    final private ExecutorService executor;
+    final private Map<String, Entry> entries = new LinkedHashMap<>(); //only accessed on the executor
+    private FileChannel channel = null;
+    private volatile int size = 0;
+    private volatile long expired = 0;
+    private volatile long sent = 0;
+    private CompletableFuture<Integer> draining = null; //only accessed on the executor
+
+    public ChetchOutbox(File file, ExecutorService executor){
+        this.file = file;
+        this.executor = executor;
+        executor.execute(this::load);
+    }
+
+    public ChetchOutbox(File file){
+        this(file, ChetchPersistenceExecutor.getShared());
+    }
+
+    public File getFile(){ return file; }
+    public ExecutorService getExecutor(){ return executor; }
+    public int size(){ return size; }
+    public long getExpired(){ return expired; }
+    public long getSent(){ return sent; }
+
+    //messages must have a tag (which is used to dedupe) ... returns a future completed with false if the tag is already in the outbox
+    public CompletableFuture<Boolean> add(Message message, long ttl){
+        if(message.Tag == null || message.Tag.isEmpty()){
+            throw new IllegalArgumentException("ChetchOutbox::add message must have a tag");
+        }
+
+        final String body = message.serialize();
+        final Entry entry = new Entry(message.Tag, System.currentTimeMillis() + ttl, body);
+        return CompletableFuture.supplyAsync(() -> {
+            if(entries.containsKey(entry.tag))return false;
+            try {
+                append(RECORD_ADD, entry.tag, entry.expiresOn, entry.body);
+                entries.put(entry.tag, entry);
+                size = entries.size();
+                return true;
+            } catch (IOException e){
+                throw new RuntimeException(e);
+            }
+        }, executor);
+    }
+
+    public CompletableFuture<Boolean> add(Message message){
+        return add(message, DEFAULT_TTL);
+    }
+
+    //sends unexpired messages in the order they were added, completes (on the executor) with the number sent ... a drain requested
+    //whilst one is under way completes with that one (which sends anything added in the meantime too)
+    public CompletableFuture<Integer> drain(ISender sender){
+        CompletableFuture<Integer> drained = new CompletableFuture<>();
+        executor.execute(() -> {
+            if(draining != null){
+                draining.whenComplete((count, t) -> drained.complete(count == null ? 0 : count));
+                return;
+            }
+            draining = drained;
+            drainNext(sender, 0);
+        });
+        return drained;
+    }
+
+    //on the executor
+    private void drainNext(ISender sender, int count){
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = entries.values().iterator();
+        while(it.hasNext()){
+            final Entry entry = it.next();
+            try {
+                if(entry.expiresOn > now) {
+                    sender.send(Message.deserialize(entry.body)).whenComplete((ok, t) -> executor.execute(() -> {
+                        if(t != null || ok == null || !ok){
+                            if(t != null)Log.e("ChetchOutbox", "Stopped draining at " + entry.tag + ": " + t.getMessage());
+                            finishDrain(count);
+                            return;
+                        }
+                        try {
+                            if(entries.remove(entry.tag) != null){
+                                append(RECORD_SENT, entry.tag, 0, null);
+                            }
+                        } catch (IOException e){
+                            Log.e("ChetchOutbox", "Failed to mark " + entry.tag + " as sent: " + e.getMessage());
+                        }
+                        sent++;
+                        drainNext(sender, count + 1);
+                    }));
+                    return;
+                }
+                expired++;
+                append(RECORD_SENT, entry.tag, 0, null);
+                it.remove();
+            } catch (Exception e){
+                Log.e("ChetchOutbox", "Stopped draining at " + entry.tag + ": " + e.getMessage());
+                break;
+            }
+        }
+        finishDrain(count);
+    }
+
+    //on the executor
+    private void finishDrain(int count){
+        size = entries.size();
+        if(entries.isEmpty()){
+            compact();
+        }
+        CompletableFuture<Integer> drained = draining;
+        draining = null;
+        drained.complete(count);
+    }
+
+    public CompletableFuture<Void> clear(){
+        return CompletableFuture.runAsync(() -> {
+            entries.clear();
+            size = 0;
+            compact();
+        }, executor);
+    }
+
+    public CompletableFuture<Void> close(){
+        return CompletableFuture.runAsync(() -> {
+            try {
+                if(channel != null)channel.close();
+            } catch (IOException e){
+                Log.e("ChetchOutbox", e.getMessage());
+            }
+            channel = null;
+        }, executor);
+    }
+
+    //on the executor
+    private void load(){
+        long startedOn = System.nanoTime();
+        int records = 0;
+        if(file.exists() && file.length() > 0) {
+            try (FileChannel in = new FileInputStream(file).getChannel()) {
+                long length = in.size();
+                ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(length, Integer.MAX_VALUE));
+                while(buffer.hasRemaining() && in.read(buffer) > 0);
+                buffer.flip();
+
+                long now = System.currentTimeMillis();
+                while(buffer.remaining() >= 4){
+                    int recordLength = buffer.getInt();
+                    if(recordLength < HEADER_LENGTH || recordLength > buffer.remaining() || recordLength > MAX_RECORD_LENGTH){
+                        break; //a torn write at the end of the file
+                    }
+                    int end = buffer.position() + recordLength;
+                    byte type = buffer.get();
+                    long expiresOn = buffer.getLong();
+                    int tagLength = buffer.getShort() & 0xFFFF;
+                    if(tagLength > end - buffer.position())break;
+                    String tag = readString(buffer, tagLength);
+                    String body = readString(buffer, end - buffer.position());
+                    records++;
+
+                    if(type == RECORD_ADD){
+                        if(expiresOn <= now){
+                            expired++;
+                        } else if(!entries.containsKey(tag)){
+                            entries.put(tag, new Entry(tag, expiresOn, body));
+                        }
+                    } else if(type == RECORD_SENT){
+                        entries.remove(tag);
+                    }
+                }
+            } catch (Exception e){
+                Log.e("ChetchOutbox", "Failed to load " + file + ": " + e.getMessage());
+            }
+        }
+        size = entries.size();
+        compact();
+        Log.i("ChetchOutbox", "Loaded " + entries.size() + " messages from " + records + " records in " + (System.nanoTime() - startedOn)/1000000 + "ms");
+    }
+
+    //rewrites the file with just the current entries (via a temp file so a crash leaves one or the other intact)
+    private void compact(){
+        try {
+            if(channel != null){
+                channel.close();
+                channel = null;
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            try (FileChannel out = new FileOutputStream(tmp, false).getChannel()) {
+                for (Entry entry : entries.values()) {
+                    writeRecord(out, RECORD_ADD, entry.tag, entry.expiresOn, entry.body);
+                }
+                out.force(true);
+            }
+            if(!tmp.renameTo(file)){
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        } catch (IOException e){
+            Log.e("ChetchOutbox", "Failed to compact " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void append(byte type, String tag, long expiresOn, String body) throws IOException{
+        if(channel == null){
+            File dir = file.getParentFile();
+            if(dir != null && !dir.exists())dir.mkdirs();
+            channel = new FileOutputStream(file, true).getChannel(); //java.nio.file needs API 26
+        }
+        writeRecord(channel, type, tag, expiresOn, body);
+        channel.force(false);
+    }
+
+    static private void writeRecord(FileChannel out, byte type, String tag, long expiresOn, String body) throws IOException{
+        byte[] tagBytes = tag.getBytes(UTF8);
+        byte[] bodyBytes = body == null ? new byte[0] : body.getBytes(UTF8);
+        int recordLength = HEADER_LENGTH + tagBytes.length + bodyBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + recordLength);
+        buffer.putInt(recordLength);
+        buffer.put(type);
+        buffer.putLong(expiresOn);
+        buffer.putShort((short)tagBytes.length);
+        buffer.put(tagBytes);
+        buffer.put(bodyBytes);
+        buffer.flip();
+        while(buffer.hasRemaining()){
+            out.write(buffer);
+        }
+    }
+
+    static private String readString(ByteBuffer buffer, int length){
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    //useful for diagnostics
+    public CompletableFuture<List<String>> getTags(){
+        return CompletableFuture.supplyAsync(() -> new ArrayList<>(entries.keySet()), executor);
+    }
+}
@@ -0,0 +1,30 @@
+package net.chetch.xmpp.persistence;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+All disk io for the library (outbox, snapshots) runs on one shared background thread so it never touches the UI thread
+and operations on the same file are naturally ordered.
+ */
+public class ChetchPersistenceExecutor {
+    public static final long KEEP_ALIVE = 30*1000; //in millis, idle time before the thread exits
+
+    static private ExecutorService sharedInstance = null;
+    static public synchronized ExecutorService getShared(){
+        if(sharedInstance == null){
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "chetch-persistence");
+                t.setDaemon(true);
+                return t;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            sharedInstance = executor;
+        }
+        return sharedInstance;
+    }
+
+    private ChetchPersistenceExecutor(){}
+}
@@ -0,0 +1,147 @@
+package net.chetch.xmpp.persistence;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import net.chetch.xmpp.ChetchTimingWheel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/*
+Last known state, one small json file per key. Puts only mark the key dirty (keeping the latest value) and a write of just the
+dirty keys is scheduled after a short delay so a burst of updates costs one write per key. Reads and writes are on the shared
+persistence thread and each file is replaced via a temp file so a crash never leaves a half written snapshot.
+ */
+public class ChetchSnapshotStore {
+    public static final long DEFAULT_WRITE_DELAY = 2000; //in millis
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final private File dir;
+    final private ExecutorService executor;
+    final private Gson gson = new Gson();
+    final private Map<String, Object> dirty = new HashMap<>();
+    final private ChetchTimingWheel.Task writeTask = new ChetchTimingWheel.Task(this::scheduleWrite);
+    private long writeDelay = DEFAULT_WRITE_DELAY;
+    private volatile long writes = 0;
+
+    public ChetchSnapshotStore(File dir, ExecutorService executor){
+        this.dir = dir;
+        this.executor = executor;
+    }
+
+    public ChetchSnapshotStore(File dir){
+        this(dir, ChetchPersistenceExecutor.getShared());
+    }
+
+    public void setWriteDelay(long millis){
+        writeDelay = Math.max(0, millis);
+    }
+
+    public long getWrites(){ return writes; }
+
+    private File getFile(String key){
+        return new File(dir, key.replaceAll("[^A-Za-z0-9_-]", "_") + ".json");
+    }
+
+    public void put(String key, Object value){
+        synchronized (dirty) {
+            dirty.put(key, value);
+        }
+        if(!writeTask.isScheduled()){
+            ChetchTimingWheel.getShared().schedule(writeTask, writeDelay);
+        }
+    }
+
+    public void remove(String key){
+        put(key, null);
+    }
+
+    //writes anything dirty now (e.g. when the view model is cleared)
+    public CompletableFuture<Void> flush(){
+        writeTask.cancel();
+        return CompletableFuture.runAsync(this::write, executor);
+    }
+
+    private void scheduleWrite(){
+        executor.execute(this::write);
+    }
+
+    //on the executor
+    private void write(){
+        Map<String, Object> toWrite;
+        synchronized (dirty) {
+            if(dirty.isEmpty())return;
+            toWrite = new HashMap<>(dirty);
+            dirty.clear();
+        }
+
+        if(!dir.exists())dir.mkdirs();
+        for(Map.Entry<String, Object> entry : toWrite.entrySet()){
+            File file = getFile(entry.getKey());
+            try {
+                if(entry.getValue() == null){
+                    file.delete();
+                    continue;
+                }
+
+                File tmp = new File(file.getPath() + ".tmp");
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp, false), UTF8)) {
+                    gson.toJson(entry.getValue(), writer);
+                }
+                if(!tmp.renameTo(file)){
+                    throw new IOException("Cannot rename " + tmp + " to " + file);
+                }
+                writes++;
+            } catch (Exception e){
+                Log.e("ChetchSnapshotStore", "Failed to write snapshot " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    //completes with null if there is no (readable) snapshot for the key
+    public <T> CompletableFuture<T> get(String key, Type type){
+        return CompletableFuture.supplyAsync(() -> {
+            File file = getFile(key);
+            if(!file.exists())return null;
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), UTF8)) {
+                return gson.fromJson(reader, type);
+            } catch (Exception e){
+                Log.e("ChetchSnapshotStore", "Failed to read snapshot " + key + ": " + e.getMessage());
+                return null;
+            }
+        }, executor);
+    }
+
+    //epoch millis, 0 if there is no snapshot
+    public long getSavedOn(String key){
+        return getFile(key).lastModified();
+    }
+
+    public CompletableFuture<Void> clear(){
+        writeTask.cancel();
+        synchronized (dirty) {
+            dirty.clear();
+        }
+        return CompletableFuture.runAsync(() -> {
+            File[] files = dir.listFiles();
+            if(files == null)return;
+            for(File file : files){
+                file.delete();
+            }
+        }, executor);
+    }
+}
@@ -0,0 +1,99 @@
+package net.chetch.xmpp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ChetchTimingWheelTest {
+    ChetchTimingWheel wheel;
+
+    @After
+    public void tearDown(){
+        if(wheel != null)wheel.shutdown();
+    }
+
+    @Test
+    public void oneShotTasksRunInDeadlineOrder() throws Exception{
+        wheel = new ChetchTimingWheel(5, 8);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(3);
+        long started = System.nanoTime();
+        //the last is more than a rotation of the wheel away
+        wheel.schedule(() -> { order.add(3); done.countDown(); }, 120);
+        wheel.schedule(() -> { order.add(1); done.countDown(); }, 10);
+        wheel.schedule(() -> { order.add(2); done.countDown(); }, 60);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        //deadlines are on tick boundaries so can be up to a tick sooner than asked for
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 120 - 5);
+        assertEquals(3, order.size());
+        assertEquals(1, (int)order.get(0));
+        assertEquals(2, (int)order.get(1));
+        assertEquals(3, (int)order.get(2));
+        assertEquals(0, wheel.getTaskCount());
+    }
+
+    @Test
+    public void cancellingTheEarliestStillRunsTheRestOnTime() throws Exception{
+        wheel = new ChetchTimingWheel(5, 8);
+        AtomicInteger cancelledRuns = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        ChetchTimingWheel.Task earliest = wheel.schedule(cancelledRuns::incrementAndGet, 50);
+        long started = System.nanoTime();
+        wheel.schedule(done::countDown, 100);
+        assertTrue(earliest.cancel());
+        assertFalse(earliest.cancel());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        assertTrue(elapsed >= 100 - 5);
+        assertTrue(elapsed < 1000);
+        assertEquals(0, cancelledRuns.get());
+    }
+
+    @Test
+    public void periodicTaskRunsUntilCancelled() throws Exception{
+        wheel = new ChetchTimingWheel(5, 8);
+        CountDownLatch runs = new CountDownLatch(5);
+        ChetchTimingWheel.Task task = wheel.schedulePeriodic(runs::countDown, 10, 10);
+        assertTrue(task.isPeriodic());
+        assertTrue(runs.await(5, TimeUnit.SECONDS));
+        assertTrue(task.cancel());
+        assertFalse(task.isScheduled());
+        assertEquals(0, wheel.getTaskCount());
+    }
+
+    @Test
+    public void nextDeadlineFollowsScheduleAndCancel(){
+        //ticks long enough that nothing falls due during the test
+        wheel = new ChetchTimingWheel(1000, 8);
+        assertEquals(Long.MAX_VALUE, wheel.getNextDeadlineTick());
+
+        ChetchTimingWheel.Task first = wheel.schedule(() -> {}, 3000);
+        ChetchTimingWheel.Task second = wheel.schedule(() -> {}, 5000);
+        ChetchTimingWheel.Task beyond = wheel.schedule(() -> {}, 19000); //shares a slot with the first
+        long base = wheel.getNextDeadlineTick() - 3;
+        assertTrue(base >= 0);
+
+        //scheduling later doesn't move it, scheduling earlier does
+        ChetchTimingWheel.Task earlier = wheel.schedule(() -> {}, 1000);
+        assertEquals(base + 1, wheel.getNextDeadlineTick());
+        earlier.cancel();
+        assertEquals(base + 3, wheel.getNextDeadlineTick());
+
+        first.cancel();
+        assertEquals(base + 5, wheel.getNextDeadlineTick());
+        second.cancel();
+        assertEquals(base + 19, wheel.getNextDeadlineTick()); //found in a slot that isn't its own on this rotation
+        beyond.cancel();
+        assertEquals(Long.MAX_VALUE, wheel.getNextDeadlineTick());
+    }
+}
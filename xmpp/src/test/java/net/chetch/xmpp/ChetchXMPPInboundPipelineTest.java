@@ -0,0 +1,110 @@
+package net.chetch.xmpp;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.MessageBuilder;
+import org.junit.After;
+import org.junit.Test;
+import org.jxmpp.jid.EntityBareJid;
+import org.jxmpp.jid.impl.JidCreate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChetchXMPPInboundPipelineTest {
+    ChetchXMPPInboundPipeline pipeline;
+
+    @After
+    public void tearDown(){
+        if(pipeline != null)pipeline.shutdown();
+    }
+
+    //delivered stanza bodies per chat
+    private ChetchXMPPInboundPipeline createPipeline(Map<EntityBareJid, List<String>> delivered, CountDownLatch done){
+        return new ChetchXMPPInboundPipeline(4, 64, ChetchXMPPInboundPipeline.OverflowPolicy.DECODE_ON_CALLER,
+                (from, stanza) -> Collections.singletonList(new net.chetch.messaging.Message()),
+                (from, chetchMessage, stanza, chat) -> {
+                    delivered.computeIfAbsent(from, k -> Collections.synchronizedList(new ArrayList<>())).add(stanza.getBody());
+                    done.countDown();
+                });
+    }
+
+    @Test
+    public void deliversInOrderPerChat() throws Exception{
+        int chats = 20, stanzas = 200;
+        Map<EntityBareJid, List<String>> delivered = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(chats*stanzas);
+        pipeline = createPipeline(delivered, done);
+
+        for(int i = 0; i < stanzas; i++){
+            for(int c = 0; c < chats; c++){
+                Message stanza = MessageBuilder.buildMessage().setBody(Integer.toString(i)).build();
+                pipeline.submit(JidCreate.entityBareFrom("service" + c + "@chetch"), stanza, null);
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for(List<String> bodies : delivered.values()){
+            for(int i = 0; i < stanzas; i++){
+                assertEquals(Integer.toString(i), bodies.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void idleLanesAreRemoved() throws Exception{
+        int chats = 500;
+        Map<EntityBareJid, List<String>> delivered = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(chats);
+        pipeline = createPipeline(delivered, done);
+
+        for(int c = 0; c < chats; c++){
+            Message stanza = MessageBuilder.buildMessage().setBody("0").build();
+            pipeline.submit(JidCreate.entityBareFrom("service" + c + "@chetch"), stanza, null);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        //the last delivery on each lane removes it just after delivering
+        long until = System.currentTimeMillis() + 5000;
+        while(pipeline.getLaneCount() > 0 && System.currentTimeMillis() < until){
+            Thread.sleep(10);
+        }
+        assertEquals(0, pipeline.getLaneCount());
+        assertEquals(0, pipeline.getQueueDepth());
+        assertEquals(chats, delivered.size());
+    }
+
+    @Test
+    public void stanzasAfterShutdownAreStillDelivered() throws Exception{
+        int stanzas = 100;
+        Map<EntityBareJid, List<String>> delivered = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(2*stanzas);
+        pipeline = createPipeline(delivered, done);
+        EntityBareJid from = JidCreate.entityBareFrom("service@chetch");
+
+        //shut down part way through (as when the pipeline is replaced or the connection released) with entries still in the lane
+        for(int i = 0; i < 2*stanzas; i++){
+            if(i == stanzas)pipeline.shutdown();
+            Message stanza = MessageBuilder.buildMessage().setBody(Integer.toString(i)).build();
+            pipeline.submit(from, stanza, null);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        List<String> bodies = delivered.get(from);
+        for(int i = 0; i < 2*stanzas; i++){
+            assertEquals(Integer.toString(i), bodies.get(i));
+        }
+        assertTrue(pipeline.getDecodedOnCaller() >= stanzas);
+
+        long until = System.currentTimeMillis() + 5000;
+        while(pipeline.getLaneCount() > 0 && System.currentTimeMillis() < until){
+            Thread.sleep(10);
+        }
+        assertEquals(0, pipeline.getLaneCount());
+        assertEquals(0, pipeline.getQueueDepth());
+    }
+}
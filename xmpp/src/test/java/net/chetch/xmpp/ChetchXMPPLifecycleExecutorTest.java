@@ -0,0 +1,105 @@
+package net.chetch.xmpp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChetchXMPPLifecycleExecutorTest {
+    ChetchXMPPLifecycleExecutor executor;
+
+    @Before
+    public void setup(){
+        executor = new ChetchXMPPLifecycleExecutor(2);
+    }
+
+    @After
+    public void tearDown(){
+        executor.shutdown();
+    }
+
+    @Test
+    public void laneRunsStagesInOrder() throws Exception{
+        ChetchXMPPLifecycleExecutor.Lane lane = executor.createLane();
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(50);
+        for(int i = 0; i < 50; i++){
+            final int n = i;
+            lane.execute(ChetchXMPPLifecycleExecutor.Stage.CONNECT, () -> {
+                order.add(n);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for(int i = 0; i < 50; i++){
+            assertEquals(i, (int)order.get(i));
+        }
+    }
+
+    @Test
+    public void blockedLaneDoesNotHoldUpOthers() throws Exception{
+        CountDownLatch release = new CountDownLatch(1);
+        executor.createLane().execute(ChetchXMPPLifecycleExecutor.Stage.CONNECT, () -> {
+            try {
+                release.await(10, TimeUnit.SECONDS); //a server that is down
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        CountDownLatch other = new CountDownLatch(1);
+        executor.createLane().execute(ChetchXMPPLifecycleExecutor.Stage.LOGIN, other::countDown);
+        assertTrue(other.await(2, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void burstOfConnectionsIsNotRejected() throws Exception{
+        int connections = 200;
+        CountDownLatch done = new CountDownLatch(connections * 3);
+        for(int i = 0; i < connections; i++){
+            ChetchXMPPLifecycleExecutor.Lane lane = executor.createLane();
+            lane.execute(ChetchXMPPLifecycleExecutor.Stage.CONNECT, done::countDown);
+            lane.execute(ChetchXMPPLifecycleExecutor.Stage.LOGIN, done::countDown);
+            lane.execute(ChetchXMPPLifecycleExecutor.Stage.CHAT_SETUP, done::countDown);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(connections, executor.getStageMetrics(ChetchXMPPLifecycleExecutor.Stage.CONNECT).getExecuted());
+    }
+
+    @Test
+    public void boundedPoolRetriesInsteadOfFailing() throws Exception{
+        ChetchXMPPLifecycleExecutor bounded = new ChetchXMPPLifecycleExecutor(1, 1);
+        try {
+            int lanes = 20;
+            CountDownLatch done = new CountDownLatch(lanes);
+            for(int i = 0; i < lanes; i++){
+                bounded.createLane().execute(ChetchXMPPLifecycleExecutor.Stage.CONNECT, () -> {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(20, TimeUnit.SECONDS));
+            assertTrue(bounded.getRejections() > 0);
+        } finally {
+            bounded.shutdown();
+        }
+    }
+
+    @Test(expected = Exception.class)
+    public void shutDownExecutorRefusesStages() throws Exception{
+        executor.shutdown();
+        executor.createLane().execute(ChetchXMPPLifecycleExecutor.Stage.CONNECT, () -> {});
+    }
+}
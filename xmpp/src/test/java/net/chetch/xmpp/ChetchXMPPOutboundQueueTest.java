@@ -0,0 +1,98 @@
+package net.chetch.xmpp;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageType;
+import net.chetch.xmpp.benchmark.Headless;
+
+import org.jivesoftware.smack.chat2.Chat;
+import org.jivesoftware.smack.chat2.ChatManager;
+import org.jivesoftware.smack.packet.MessageBuilder;
+import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.jxmpp.jid.impl.JidCreate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChetchXMPPOutboundQueueTest {
+    Chat chat;
+    ChetchXMPPOutboundQueue queue;
+
+    @Before
+    public void setup() throws Exception{
+        Headless.initialise();
+        XMPPTCPConnection connection = new XMPPTCPConnection(XMPPTCPConnectionConfiguration.builder().setXmppDomain("chetch").build());
+        chat = ChatManager.getInstanceFor(connection).chatWith(JidCreate.entityBareFrom("service@chetch"));
+    }
+
+    @After
+    public void tearDown(){
+        if(queue != null)queue.shutdown();
+    }
+
+    static Message createCommand(String tag){
+        Message message = new Message();
+        message.Type = MessageType.COMMAND;
+        message.Tag = tag;
+        return message;
+    }
+
+    //sends one stanza per message until the one tagged fail
+    static List<org.jivesoftware.smack.packet.Message> sendUntil(List<Message> chetchMessages) throws Exception{
+        List<org.jivesoftware.smack.packet.Message> sent = new ArrayList<>();
+        for(Message message : chetchMessages){
+            if("fail".equals(message.Tag)){
+                Exception e = new Exception("send failed");
+                if(sent.isEmpty())throw e;
+                throw new ChetchXMPPOutboundQueue.PartialSendException(sent, e);
+            }
+            sent.add(MessageBuilder.buildMessage().setBody(message.Tag).build());
+        }
+        return sent;
+    }
+
+    @Test
+    public void partialSendFailsOnlyTheUnsentTail() throws Exception{
+        queue = new ChetchXMPPOutboundQueue((c, chetchMessages) -> sendUntil(chetchMessages));
+        queue.setBatchWindow(50);
+
+        List<CompletableFuture<org.jivesoftware.smack.packet.Message>> futures = new ArrayList<>();
+        futures.add(queue.enqueue(chat, createCommand("a")));
+        futures.add(queue.enqueue(chat, createCommand("b")));
+        futures.add(queue.enqueue(chat, createCommand("fail")));
+        futures.add(queue.enqueue(chat, createCommand("d")));
+
+        assertEquals("a", futures.get(0).get(5, TimeUnit.SECONDS).getBody());
+        assertEquals("b", futures.get(1).get(5, TimeUnit.SECONDS).getBody());
+        for(int i = 2; i < futures.size(); i++){
+            try {
+                futures.get(i).get(5, TimeUnit.SECONDS);
+                fail("message " + i + " should have failed");
+            } catch (ExecutionException e){
+                assertEquals("send failed", e.getCause().getMessage());
+            }
+        }
+        assertEquals(2, queue.getStanzasSent());
+    }
+
+    @Test
+    public void shutdownFailsWaitingAndLaterMessages() throws Exception{
+        queue = new ChetchXMPPOutboundQueue((c, chetchMessages) -> sendUntil(chetchMessages));
+        queue.setBatchWindow(10000);
+
+        CompletableFuture<org.jivesoftware.smack.packet.Message> waiting = queue.enqueue(chat, createCommand("a"));
+        queue.shutdown();
+        assertTrue(queue.isShutdown());
+        assertTrue(waiting.isCompletedExceptionally());
+        assertEquals(0, queue.getQueueDepth());
+        assertTrue(queue.enqueue(chat, createCommand("b")).isCompletedExceptionally());
+    }
+}
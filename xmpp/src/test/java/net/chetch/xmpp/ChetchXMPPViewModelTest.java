@@ -0,0 +1,63 @@
+package net.chetch.xmpp;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageType;
+import net.chetch.xmpp.benchmark.Headless;
+import net.chetch.xmpp.benchmark.Payloads;
+import net.chetch.xmpp.models.AlarmsViewModel;
+
+import org.jivesoftware.smack.packet.MessageBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.jxmpp.jid.EntityBareJid;
+import org.jxmpp.jid.impl.JidCreate;
+
+import static org.junit.Assert.*;
+
+//runs headless (see Headless) so LiveData values are set on the calling thread
+public class ChetchXMPPViewModelTest {
+    AlarmsViewModel viewModel;
+    EntityBareJid from;
+
+    @Before
+    public void setUp() throws Exception{
+        Headless.initialise();
+        viewModel = new AlarmsViewModel();
+        viewModel.init(null, "test", "test");
+        viewModel.setServiceEndpoint(Payloads.SERVICE_JID, "127.0.0.1");
+        from = JidCreate.entityBareFrom(Payloads.SERVICE_JID);
+    }
+
+    //as received: a json body so the status is streamed from it by StatusAdapter
+    void receive(Message message){
+        org.jivesoftware.smack.packet.Message stanza = MessageBuilder.buildMessage()
+                .setSubject(ChetchXMPPConnection.CHETCH_MESSAGE_SUBJECT)
+                .setBody(message.serialize())
+                .build();
+        viewModel.onIncomingMessage(from, message, stanza, null);
+    }
+
+    static Message createStatusResponse(){
+        Message message = new Message();
+        message.Type = MessageType.STATUS_RESPONSE;
+        message.Sender = Payloads.SERVICE_JID;
+        return message;
+    }
+
+    @Test
+    public void statusWithNoStatusFieldsIsIgnored(){
+        Message status = createStatusResponse();
+        status.addValue("ServiceName", "Alarms");
+        status.addValue("StatusCode", 2);
+        receive(status);
+        assertEquals(2, viewModel.getLastStatus().StatusCode);
+
+        //nothing the StatusAdapter recognises so it decodes as null
+        Message empty = createStatusResponse();
+        empty.addValue("Unknown", "value");
+        receive(empty);
+        assertNotNull(viewModel.getLastStatus());
+        assertEquals("Alarms", viewModel.getLastStatus().ServiceName);
+        assertEquals(2, viewModel.getLastStatus().StatusCode);
+    }
+}
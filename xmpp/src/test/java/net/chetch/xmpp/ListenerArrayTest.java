@@ -0,0 +1,57 @@
+package net.chetch.xmpp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ListenerArrayTest {
+    @Test
+    public void addsOnceInOrder(){
+        ListenerArray<String> listeners = new ListenerArray<>();
+        String a = "a", b = "b";
+        assertTrue(listeners.add(a));
+        assertTrue(listeners.add(b));
+        assertFalse(listeners.add(a));
+        assertFalse(listeners.add(null));
+        assertArrayEquals(new Object[]{a, b}, listeners.snapshot());
+    }
+
+    @Test
+    public void removeKeepsTheOrderOfTheRest(){
+        ListenerArray<Object> listeners = new ListenerArray<>();
+        Object a = new Object(), b = new Object(), c = new Object();
+        listeners.add(a);
+        listeners.add(b);
+        listeners.add(c);
+        assertTrue(listeners.remove(b));
+        assertFalse(listeners.remove(b));
+        assertArrayEquals(new Object[]{a, c}, listeners.snapshot());
+        assertTrue(listeners.remove(a));
+        assertTrue(listeners.remove(c));
+        assertEquals(0, listeners.size());
+    }
+
+    @Test
+    public void removeIsByIdentity(){
+        ListenerArray<String> listeners = new ListenerArray<>();
+        String a = new String("listener");
+        listeners.add(a);
+        assertFalse(listeners.remove(new String("listener")));
+        assertTrue(listeners.add(new String("listener"))); //equal but a different listener
+        assertEquals(2, listeners.size());
+    }
+
+    @Test
+    public void snapshotIsUnaffectedByLaterChanges(){
+        ListenerArray<Object> listeners = new ListenerArray<>();
+        Object a = new Object(), b = new Object();
+        listeners.add(a);
+        Object[] snapshot = listeners.snapshot();
+        listeners.add(b);
+        listeners.remove(a);
+        assertArrayEquals(new Object[]{a}, snapshot);
+        listeners.clear();
+        assertEquals(0, listeners.size());
+        assertEquals(1, snapshot.length);
+    }
+}
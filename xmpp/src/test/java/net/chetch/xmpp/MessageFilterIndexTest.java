@@ -0,0 +1,192 @@
+package net.chetch.xmpp;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageFilter;
+import net.chetch.messaging.MessageType;
+import net.chetch.messaging.filters.AlertFilter;
+import net.chetch.messaging.filters.CommandResponseFilter;
+import net.chetch.messaging.filters.DataFilter;
+import net.chetch.messaging.filters.NotificationFilter;
+import net.chetch.xmpp.codecs.ChetchEnvelope;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageFilterIndexTest {
+    final List<String> offered = new ArrayList<>();
+
+    //a named subclass so its type can't be derived and it is a candidate for every message
+    class CustomFilter extends NotificationFilter{
+        final String name;
+
+        CustomFilter(String name){
+            super(null, "Custom");
+            this.name = name;
+        }
+
+        @Override
+        public void onMessageReceived(Message message) {
+            offered.add(name);
+        }
+    }
+
+    MessageFilter notificationFilter(String name){
+        return new NotificationFilter(null, "Event") {
+            @Override
+            public void onMessageReceived(Message message) {
+                offered.add(name);
+            }
+        };
+    }
+
+    static Message createMessage(MessageType type, String field, String value){
+        Message message = new Message();
+        message.Type = type;
+        if(field != null)message.addValue(field, value);
+        return message;
+    }
+
+    @Test
+    public void dispatchFollowsRegistrationOrder(){
+        MessageFilterIndex index = new MessageFilterIndex();
+        index.add(new CustomFilter("custom-1"));
+        index.add(notificationFilter("keyed"), MessageType.NOTIFICATION, "Event", "door-open");
+        index.add(notificationFilter("plain"));
+        index.add(new CustomFilter("custom-2"));
+        index.add(notificationFilter("other-key"), MessageType.NOTIFICATION, "Event", "door-closed");
+        index.add(notificationFilter("last"));
+
+        index.dispatch(createMessage(MessageType.NOTIFICATION, "Event", "door-open"));
+        assertEquals(Arrays.asList("custom-1", "keyed", "plain", "custom-2", "last"), offered);
+    }
+
+    @Test
+    public void orderSurvivesRemoval(){
+        MessageFilterIndex index = new MessageFilterIndex();
+        MessageFilter first = notificationFilter("first");
+        index.add(first);
+        index.add(new CustomFilter("custom"));
+        index.add(notificationFilter("second"));
+        index.remove(first);
+        index.add(first);
+
+        index.dispatch(createMessage(MessageType.NOTIFICATION, null, null));
+        assertEquals(Arrays.asList("custom", "second", "first"), offered);
+    }
+
+    @Test
+    public void alertAndDataFiltersAreIndexedWhenRegisteredWithTheirType(){
+        MessageFilter alertFilter = new AlertFilter(null) {
+            @Override
+            public void onMessageReceived(Message message) {
+                offered.add("alert");
+            }
+        };
+        MessageFilter dataFilter = new DataFilter("pilot") {
+            @Override
+            public void onMessageReceived(Message message) {
+                offered.add("data");
+            }
+        };
+        //the messaging library doesn't say what these match so they can't be derived
+        assertNull(MessageFilterIndex.deriveMessageType(alertFilter));
+        assertNull(MessageFilterIndex.deriveMessageType(dataFilter));
+        assertEquals(MessageType.COMMAND_RESPONSE, MessageFilterIndex.deriveMessageType(new CommandResponseFilter(null, "help")));
+
+        MessageFilterIndex index = new MessageFilterIndex();
+        index.add(alertFilter, MessageType.ALERT);
+        index.add(dataFilter, MessageType.DATA, "ID", "pilot");
+
+        index.dispatch(createMessage(MessageType.NOTIFICATION, null, null));
+        assertTrue(offered.isEmpty());
+        index.dispatch(createMessage(MessageType.ALERT, null, null));
+        assertEquals(Arrays.asList("alert"), offered);
+        index.dispatch(createMessage(MessageType.DATA, "ID", "buzzer"));
+        assertEquals(Arrays.asList("alert"), offered);
+        index.dispatch(createMessage(MessageType.DATA, "ID", "pilot"));
+        assertEquals(Arrays.asList("alert", "data"), offered);
+        index.dispatch(createMessage(MessageType.DATA, null, null)); //no ID so it might be for any data filter
+        assertEquals(Arrays.asList("alert", "data", "data"), offered);
+    }
+
+    //every command response is dispatched so this must not allocate (the candidates are built on add/remove)
+    @Test
+    public void dispatchDoesNotAllocate(){
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean))return;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        if(!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())return;
+
+        final int[] counts = new int[1];
+        MessageFilterIndex index = new MessageFilterIndex();
+        String[] commands = {"list-alarms", "help", "about", "version"};
+        for(String command : commands){
+            index.add(new CommandResponseFilter(null, command){
+                @Override
+                public void onMessageReceived(Message message) {
+                    counts[0]++;
+                }
+            }, MessageType.COMMAND_RESPONSE, "Command", command);
+        }
+        index.add(new CustomFilter("custom"){
+            @Override
+            public void onMessageReceived(Message message) {
+                counts[0]++;
+            }
+        });
+
+        //reads the key without the message's own value lookups so only the index is measured
+        Message message = new Message(){
+            @Override
+            public boolean hasValue(String field) {
+                return "Command".equals(field);
+            }
+
+            @Override
+            public String getString(String field) {
+                return "list-alarms";
+            }
+        };
+        message.Type = MessageType.COMMAND_RESPONSE;
+
+        int dispatches = 10000;
+        for(int i = 0; i < dispatches; i++){
+            index.dispatch(message);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for(int i = 0; i < dispatches; i++){
+            index.dispatch(message);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals(2*dispatches*2, counts[0]); //the keyed filter and the unindexed one
+        assertTrue("dispatch allocated " + allocated + " bytes", allocated < dispatches);
+    }
+
+    @Test
+    public void hasCandidatesNeverMissesADispatch(){
+        MessageFilterIndex index = new MessageFilterIndex();
+        index.add(new CommandResponseFilter(null, "list-alarms"), MessageType.COMMAND_RESPONSE, "Command", "list-alarms");
+        index.add(notificationFilter("keyed"), MessageType.NOTIFICATION, "Event", "door-open");
+
+        Message listResponse = createMessage(MessageType.COMMAND_RESPONSE, "Command", "list-alarms");
+        Message helpResponse = createMessage(MessageType.COMMAND_RESPONSE, "Command", "help");
+        Message doorClosed = createMessage(MessageType.NOTIFICATION, "Event", "door-closed");
+        Message data = createMessage(MessageType.DATA, "ID", "pilot");
+
+        assertTrue(index.hasCandidates(ChetchEnvelope.scan(listResponse.serialize())));
+        assertFalse(index.hasCandidates(ChetchEnvelope.scan(helpResponse.serialize())));
+        assertFalse(index.hasCandidates(ChetchEnvelope.scan(data.serialize())));
+        //Event isn't read in to the envelope so any value might match
+        assertTrue(index.hasCandidates(ChetchEnvelope.scan(doorClosed.serialize())));
+
+        index.add(new CustomFilter("custom"));
+        assertTrue(index.hasCandidates(ChetchEnvelope.scan(data.serialize())));
+    }
+}
@@ -0,0 +1,76 @@
+package net.chetch.xmpp;
+
+import net.chetch.xmpp.ChetchXMPPViewModel.Status;
+import net.chetch.xmpp.ChetchXMPPViewModel.StatusDelta;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StatusDeltaTest {
+    static Status createStatus(int statusCode, Object... details){
+        Status status = new Status();
+        status.ServiceName = "Test Service";
+        status.StatusCode = statusCode;
+        Map<String, Object> statusDetails = new HashMap<>();
+        for(int i = 0; i < details.length; i += 2){
+            statusDetails.put((String)details[i], details[i + 1]);
+        }
+        status.StatusDetails = statusDetails;
+        return status;
+    }
+
+    @Test
+    public void firstStatusChangesEverything(){
+        StatusDelta delta = StatusDelta.diff(null, createStatus(1, "Pump", "on"));
+        assertTrue(delta.hasChanged(StatusDelta.FIELD_SERVICE_NAME));
+        assertTrue(delta.hasChanged(StatusDelta.FIELD_STATUS_CODE));
+        assertTrue(delta.hasChanged(StatusDelta.FIELD_XMPP_CONTACTS));
+        assertEquals("on", delta.changedDetails.get("Pump"));
+        assertTrue(delta.removedDetails.isEmpty());
+    }
+
+    @Test
+    public void sameStatusIsEmpty(){
+        Status status = createStatus(1, "Pump", "on");
+        StatusDelta delta = StatusDelta.diff(status, createStatus(1, "Pump", "on"));
+        assertTrue(delta.isEmpty());
+        assertFalse(delta.hasDetailsChanged());
+    }
+
+    @Test
+    public void onlyChangesAreReported(){
+        Status before = createStatus(1, "Pump", "on", "Level", 40, "Valve", "open");
+        Status after = createStatus(2, "Pump", "on", "Level", 45, "Heater", "off");
+        StatusDelta delta = StatusDelta.diff(before, after);
+        assertTrue(delta.hasChanged(StatusDelta.FIELD_STATUS_CODE));
+        assertFalse(delta.hasChanged(StatusDelta.FIELD_SERVICE_NAME));
+        assertEquals(2, delta.changedDetails.size());
+        assertEquals(45, delta.changedDetails.get("Level"));
+        assertEquals("off", delta.changedDetails.get("Heater"));
+        assertEquals(1, delta.removedDetails.size());
+        assertTrue(delta.removedDetails.contains("Valve"));
+    }
+
+    @Test
+    public void mergeKeepsTheLatestOfEachDetail(){
+        Status first = createStatus(1, "Pump", "on", "Valve", "open");
+        Status second = createStatus(1, "Pump", "off");
+        Status third = createStatus(2, "Pump", "off", "Valve", "closed");
+
+        StatusDelta delta = StatusDelta.diff(first, second);
+        delta.merge(StatusDelta.diff(second, third));
+
+        assertTrue(delta.hasChanged(StatusDelta.FIELD_STATUS_CODE));
+        assertEquals("off", delta.changedDetails.get("Pump"));
+        assertEquals("closed", delta.changedDetails.get("Valve")); //removed then added back
+        assertTrue(delta.removedDetails.isEmpty());
+
+        delta.merge(StatusDelta.diff(third, createStatus(2, "Pump", "off")));
+        assertFalse(delta.changedDetails.containsKey("Valve"));
+        assertTrue(delta.removedDetails.contains("Valve"));
+    }
+}
@@ -0,0 +1,79 @@
+package net.chetch.xmpp.benchmark;
+
+import net.chetch.messaging.Message;
+import net.chetch.xmpp.ChetchXMPPConnection;
+import net.chetch.xmpp.codecs.ChetchEnvelope;
+import net.chetch.xmpp.codecs.IChetchBodyCodec;
+import net.chetch.xmpp.models.AlarmsViewModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Body codecs on their own: decoding (what every inbound stanza pays) and encoding (every outbound message).
+decodeEnvelope is what a message turned down from its envelope costs (see IChetchEnvelopeFilter), decodeAndRead also
+reads a value as a filter or listener would
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"json", "cbor"})
+    public String codecName;
+
+    @Param({Payloads.LIST_ALARMS, Payloads.STATUS, Payloads.ALERT})
+    public String payload;
+
+    IChetchBodyCodec codec;
+    Message message;
+    String body;
+    String readField;
+
+    @Setup
+    public void setup() throws Exception{
+        Headless.initialise();
+        codec = ChetchXMPPConnection.getBodyCodec(codecName);
+        message = Payloads.getMessage(payload);
+        body = codec.encode(message);
+        switch(payload){
+            case Payloads.LIST_ALARMS: readField = AlarmsViewModel.MESSAGE_FIELD_ALARMS_LIST; break;
+            case Payloads.ALERT: readField = AlarmsViewModel.MESSAGE_FIELD_ALARM; break;
+            default: readField = "StatusDetails"; break;
+        }
+    }
+
+    @Benchmark
+    public Message decode() throws Exception{
+        return codec.decode(body);
+    }
+
+    @Benchmark
+    public ChetchEnvelope decodeEnvelope() throws Exception{
+        return ChetchEnvelope.scan(codec.decodeToJson(body));
+    }
+
+    @Benchmark
+    public Object decodeAndRead() throws Exception{
+        return codec.decode(body).getAsClass(readField, Object.class);
+    }
+
+    @Benchmark
+    public String encode() throws Exception{
+        return codec.encode(message);
+    }
+}
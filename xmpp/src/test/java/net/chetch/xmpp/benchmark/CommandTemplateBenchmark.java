@@ -0,0 +1,86 @@
+package net.chetch.xmpp.benchmark;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageType;
+import net.chetch.xmpp.ChetchXMPPViewModel;
+import net.chetch.xmpp.CommandTemplate;
+import net.chetch.xmpp.models.AlarmsViewModel;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/*
+Compiled commands against the string path used by sendCommand(String, Object...). Checks both produce the same
+serialized message and then prints the time per command (create + serialize) for each.
+ */
+public class CommandTemplateBenchmark {
+    static final int WARMUP = 20000;
+    static final int ITERATIONS = 200000;
+
+    static final CommandTemplate SILENCE = AlarmsViewModel.SILENCE;
+    static final CommandTemplate TEST_ALARM = AlarmsViewModel.TEST_ALARM;
+
+    //as ChetchXMPPViewModel::createCommand(String, Object...)
+    static Message createFromString(String commandAndArgs, Object... args){
+        List<Object> argList = new ArrayList<>();
+        String[] parts = commandAndArgs.split(" ");
+        String command = parts[0].toLowerCase().trim();
+        for(int i = 1; i < parts.length; i++){
+            if(!parts[i].isEmpty()) {
+                argList.add(parts[i].toLowerCase().trim());
+            }
+        }
+        for(Object arg : args){
+            if(arg != null) {
+                argList.add(arg);
+            }
+        }
+        Message cmd = new Message();
+        cmd.Type = MessageType.COMMAND;
+        cmd.addValue(ChetchXMPPViewModel.MESSAGE_FIELD_COMMAND, command.toLowerCase().trim());
+        cmd.addValue(ChetchXMPPViewModel.MESSAGE_FIELD_ARGUMENTS, argList);
+        return cmd;
+    }
+
+    @Test
+    public void sameMessage() throws Exception{
+        assertEquals(createFromString(AlarmsViewModel.COMMAND_SILENCE, 60).serialize(), SILENCE.create(60).serialize());
+        assertEquals(createFromString(AlarmsViewModel.COMMAND_TEST_ALARM, "a1", AlarmsViewModel.AlarmState.SEVERE, 5).serialize(),
+                TEST_ALARM.create("a1", AlarmsViewModel.AlarmState.SEVERE, 5).serialize());
+        assertEquals(createFromString("Do-Something Now ", 1).serialize(),
+                CommandTemplate.compile("Do-Something Now ", int.class).create(1).serialize());
+    }
+
+    @Test(expected = Exception.class)
+    public void wrongSlotType() throws Exception{
+        SILENCE.create("60");
+    }
+
+    @Test
+    public void compare() throws Exception{
+        long sink = 0;
+        for(int i = 0; i < WARMUP; i++){
+            sink += createFromString(AlarmsViewModel.COMMAND_TEST_ALARM, "a1", AlarmsViewModel.AlarmState.SEVERE, i).serialize().length();
+            sink += TEST_ALARM.create("a1", AlarmsViewModel.AlarmState.SEVERE, i).serialize().length();
+        }
+
+        long startedOn = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++){
+            sink += createFromString(AlarmsViewModel.COMMAND_TEST_ALARM, "a1", AlarmsViewModel.AlarmState.SEVERE, i).serialize().length();
+        }
+        long stringPath = System.nanoTime() - startedOn;
+
+        startedOn = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++){
+            sink += TEST_ALARM.create("a1", AlarmsViewModel.AlarmState.SEVERE, i).serialize().length();
+        }
+        long templatePath = System.nanoTime() - startedOn;
+
+        System.out.println("CommandTemplateBenchmark: string " + stringPath/ITERATIONS + "ns/op, template " + templatePath/ITERATIONS + "ns/op (" + sink + ")");
+        assertTrue(sink > 0);
+    }
+}
@@ -0,0 +1,95 @@
+package net.chetch.xmpp.benchmark;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageFilter;
+import net.chetch.messaging.MessageType;
+import net.chetch.messaging.filters.CommandResponseFilter;
+import net.chetch.messaging.filters.NotificationFilter;
+import net.chetch.xmpp.ChetchXMPPViewModel;
+import net.chetch.xmpp.MessageFilterIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Dispatching a command response to registered filters: the MessageFilterIndex against offering the message to every
+filter in turn (the original list walk). Half the filters are command response filters (one per command) and half are
+notification filters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterIndexBenchmark {
+
+    @Param({"8", "64"})
+    public int filters;
+
+    MessageFilterIndex index = new MessageFilterIndex();
+    List<MessageFilter> list = new ArrayList<>();
+    Message message;
+    long matched = 0;
+
+    @Setup
+    public void setup() throws Exception{
+        Headless.initialise();
+
+        for(int i = 0; i < filters; i++){
+            MessageFilter mf;
+            if(i % 2 == 0){
+                String command = "command-" + i;
+                mf = new CommandResponseFilter(Payloads.SERVICE_JID, command) {
+                    @Override
+                    protected void onMatched(Message message) {
+                        matched++;
+                    }
+                };
+                index.add(mf, MessageType.COMMAND_RESPONSE, ChetchXMPPViewModel.MESSAGE_FIELD_COMMAND, command);
+            } else {
+                mf = new NotificationFilter(Payloads.SERVICE_JID, "Field" + i) {
+                    @Override
+                    protected void onMatched(Message message) {
+                        matched++;
+                    }
+                };
+                index.add(mf);
+            }
+            list.add(mf);
+        }
+
+        message = new Message();
+        message.Type = MessageType.COMMAND_RESPONSE;
+        message.Sender = Payloads.SERVICE_JID;
+        message.addValue(ChetchXMPPViewModel.MESSAGE_FIELD_COMMAND, "command-" + (filters - 2));
+        message = Message.deserialize(message.serialize());
+    }
+
+    @Benchmark
+    public long index(){
+        index.dispatch(message);
+        return matched;
+    }
+
+    @Benchmark
+    public long linear(){
+        for(int i = 0; i < list.size(); i++){
+            list.get(i).onMessageReceived(message);
+        }
+        return matched;
+    }
+}
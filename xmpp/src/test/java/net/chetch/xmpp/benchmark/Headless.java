@@ -0,0 +1,58 @@
+package net.chetch.xmpp.benchmark;
+
+import androidx.arch.core.executor.ArchTaskExecutor;
+import androidx.arch.core.executor.TaskExecutor;
+
+import net.chetch.xmpp.ChetchLiveDataPublisher;
+import net.chetch.xmpp.ChetchXMPPConnection;
+
+import org.jivesoftware.smack.util.dns.javax.JavaxResolver;
+
+/*
+Sets things up so connections and view models can run on the JVM without a device: the 'main thread' is whichever thread
+posts (so LiveData values are set immediately) and Smack initialises itself from smack-java8 on the test classpath
+(with the JNDI resolver to look up hosts).
+Relies on unitTests.returnDefaultValues so android.util.Log etc. are no-ops.
+ */
+public class Headless {
+    static private boolean initialised = false;
+
+    static public synchronized void initialise(){
+        if(initialised)return;
+
+        ArchTaskExecutor.getInstance().setDelegate(new TaskExecutor() {
+            @Override
+            public void executeOnDiskIO(Runnable runnable) {
+                runnable.run();
+            }
+
+            @Override
+            public void postToMainThread(Runnable runnable) {
+                runnable.run();
+            }
+
+            @Override
+            public boolean isMainThread() {
+                return true;
+            }
+        });
+
+        ChetchLiveDataPublisher.setDefaultPoster(new ChetchLiveDataPublisher.IPoster() {
+            @Override
+            public void post(Runnable runnable, long delayMillis) {
+                runnable.run();
+            }
+
+            @Override
+            public void remove(Runnable runnable) {
+                //nothing is ever pending
+            }
+        });
+
+        JavaxResolver.setup();
+        ChetchXMPPConnection.initialise();
+        initialised = true;
+    }
+
+    private Headless(){}
+}
@@ -0,0 +1,93 @@
+package net.chetch.xmpp.benchmark;
+
+import net.chetch.messaging.Message;
+import net.chetch.xmpp.ChetchXMPPConnection;
+import net.chetch.xmpp.ChetchXMPPInboundPipeline;
+import net.chetch.xmpp.IChetchIncomingMessageListener;
+
+import org.jivesoftware.smack.chat2.Chat;
+import org.jivesoftware.smack.packet.StanzaBuilder;
+import org.jxmpp.jid.EntityBareJid;
+import org.jxmpp.jid.impl.JidCreate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ChetchXMPPConnection.newIncomingMessage as called by Smack's reader thread: subject check, decode and listener fan-out.
+The inbound pipeline has no workers so the whole path runs on the benchmark thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InboundBenchmark {
+
+    @Param({Payloads.LIST_ALARMS, Payloads.STATUS, Payloads.ALERT})
+    public String payload;
+
+    @Param({"json", "cbor"})
+    public String codecName;
+
+    @Param({"1", "8"})
+    public int listeners;
+
+    ChetchXMPPConnection connection;
+    EntityBareJid from;
+    org.jivesoftware.smack.packet.Message stanza;
+    long received = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception{
+        Headless.initialise();
+
+        connection = ChetchXMPPConnection.create();
+        connection.configureInboundPipeline(0, ChetchXMPPInboundPipeline.DEFAULT_CAPACITY, ChetchXMPPInboundPipeline.OverflowPolicy.BLOCK);
+
+        from = JidCreate.entityBareFrom(Payloads.SERVICE_JID);
+        for(int i = 0; i < listeners; i++){
+            connection.addMessageListener(from, new IChetchIncomingMessageListener() {
+                @Override
+                public void onIncomingMessage(EntityBareJid from, Message message, org.jivesoftware.smack.packet.Message originalMessage, Chat chat) {
+                    received += message.Type.ordinal() + 1;
+                }
+            });
+        }
+
+        String subject = ChetchXMPPConnection.CHETCH_MESSAGE_SUBJECT;
+        if(!ChetchXMPPConnection.DEFAULT_BODY_CODEC.getName().equals(codecName)){
+            subject += ChetchXMPPConnection.CHETCH_SUBJECT_CODEC_SEPARATOR + codecName;
+        }
+        String body = ChetchXMPPConnection.getBodyCodec(codecName).encode(Payloads.getMessage(payload));
+        stanza = StanzaBuilder.buildMessage()
+                .ofType(org.jivesoftware.smack.packet.Message.Type.normal)
+                .setSubject(subject)
+                .setBody(body)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        connection.getInboundPipeline().shutdown();
+    }
+
+    @Benchmark
+    public long newIncomingMessage(){
+        connection.newIncomingMessage(from, stanza, null);
+        return received;
+    }
+}
@@ -0,0 +1,59 @@
+package net.chetch.xmpp.benchmark;
+
+import net.chetch.xmpp.ChetchXMPPConnection;
+import net.chetch.xmpp.codecs.IChetchBodyCodec;
+import net.chetch.xmpp.models.AlarmsViewModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+What sendCommand costs before the message is queued: building the command message and encoding the body, for the
+string path (sendCommand(String, Object...)) and a compiled CommandTemplate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutboundBenchmark {
+
+    @Param({"json", "cbor"})
+    public String codecName;
+
+    IChetchBodyCodec codec;
+    int duration = 0;
+
+    @Setup
+    public void setup(){
+        Headless.initialise();
+        codec = ChetchXMPPConnection.getBodyCodec(codecName);
+    }
+
+    @Benchmark
+    public String stringCommand() throws Exception{
+        return codec.encode(CommandTemplateBenchmark.createFromString(AlarmsViewModel.COMMAND_TEST_ALARM, "alarm-7", AlarmsViewModel.AlarmState.SEVERE, duration++));
+    }
+
+    @Benchmark
+    public String compiledCommand() throws Exception{
+        return codec.encode(AlarmsViewModel.TEST_ALARM.create("alarm-7", AlarmsViewModel.AlarmState.SEVERE, duration++));
+    }
+
+    @Benchmark
+    public String listAlarms() throws Exception{
+        return codec.encode(AlarmsViewModel.LIST_ALARMS.create());
+    }
+}
@@ -0,0 +1,164 @@
+package net.chetch.xmpp.benchmark;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageType;
+import net.chetch.xmpp.ChetchXMPPViewModel;
+import net.chetch.xmpp.models.AlarmsViewModel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Chetch message bodies (as serialized json) for the benchmarks and the loopback server. A payload captured from a real
+service can be dropped in src/test/resources/payloads/<name>.json and is then used instead of the generated one.
+    list-alarms: command response listing ALARMS alarms
+    status: status response with STATUS_DETAILS details
+    alert: a single alarm alert
+    help: help command response
+ */
+public class Payloads {
+    public static final String SERVICE_JID = "alarms.service@chetch.net";
+    public static final String LIST_ALARMS = "list-alarms";
+    public static final String STATUS = "status";
+    public static final String ALERT = "alert";
+    public static final String HELP = "help";
+
+    public static final int ALARMS = 200;
+    public static final int STATUS_DETAILS = 100;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final private Map<String, String> cache = new LinkedHashMap<>();
+
+    static public synchronized String get(String name){
+        String body = cache.get(name);
+        if(body == null){
+            body = load(name);
+            if(body == null){
+                body = create(name).serialize();
+            }
+            cache.put(name, body);
+        }
+        return body;
+    }
+
+    static public Message getMessage(String name){
+        return Message.deserialize(get(name));
+    }
+
+    static private String load(String name){
+        try (InputStream in = Payloads.class.getResourceAsStream("/payloads/" + name + ".json")) {
+            if(in == null)return null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = in.read(buffer)) > 0){
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), UTF8);
+        } catch (Exception e){
+            return null;
+        }
+    }
+
+    static public Message create(String name){
+        switch(name){
+            case LIST_ALARMS:
+                return createAlarmsList(ALARMS);
+            case STATUS:
+                return createStatus(STATUS_DETAILS);
+            case ALERT:
+                return createAlert(createAlarm(7));
+            case HELP:
+                return createHelp();
+            default:
+                throw new IllegalArgumentException("Payloads::create no payload " + name);
+        }
+    }
+
+    static public AlarmsViewModel.Alarm createAlarm(int i){
+        AlarmsViewModel.Alarm alarm = new AlarmsViewModel.Alarm();
+        alarm.ID = "alarm-" + i;
+        alarm.Name = "Alarm number " + i;
+        alarm.State = AlarmsViewModel.AlarmState.values()[i % AlarmsViewModel.AlarmState.values().length];
+        alarm.Message = alarm.isRaised() ? "Alarm " + i + " raised on input " + (i % 16) : null;
+        Calendar c = Calendar.getInstance();
+        c.add(Calendar.MINUTE, -i);
+        alarm.LastRaised = c;
+        c = Calendar.getInstance();
+        c.add(Calendar.SECOND, -i);
+        alarm.LastLowered = c;
+        return alarm;
+    }
+
+    static public Message createAlarmsList(int count){
+        List<AlarmsViewModel.Alarm> alarms = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            alarms.add(createAlarm(i));
+        }
+        Message message = new Message();
+        message.Type = MessageType.COMMAND_RESPONSE;
+        message.Sender = SERVICE_JID;
+        message.addValue(ChetchXMPPViewModel.MESSAGE_FIELD_COMMAND, AlarmsViewModel.COMMAND_LIST_ALARMS);
+        message.addValue(AlarmsViewModel.MESSAGE_FIELD_ALARMS_LIST, alarms);
+        return message;
+    }
+
+    static public Message createAlert(AlarmsViewModel.Alarm alarm){
+        Message message = new Message();
+        message.Type = MessageType.NOTIFICATION;
+        message.Sender = SERVICE_JID;
+        message.addValue(AlarmsViewModel.MESSAGE_FIELD_ALARM, alarm);
+        return message;
+    }
+
+    static public Message createStatus(int details){
+        Map<String, Object> statusDetails = new LinkedHashMap<>();
+        for(int i = 0; i < details; i++){
+            switch(i % 3){
+                case 0:
+                    statusDetails.put("Detail" + i, i * 1.5);
+                    break;
+                case 1:
+                    statusDetails.put("Detail" + i, "Value of detail " + i);
+                    break;
+                default:
+                    statusDetails.put("Detail" + i, i % 2 == 0);
+                    break;
+            }
+        }
+
+        Message message = new Message();
+        message.Type = MessageType.STATUS_RESPONSE;
+        message.Sender = SERVICE_JID;
+        message.addValue("ServiceName", AlarmsViewModel.ALARMS_SERVICE_NAME);
+        message.addValue("StatusCode", 0);
+        message.addValue("StatusMessage", "All good");
+        message.addValue("StatusDetails", statusDetails);
+        message.addValue("ServerTime", Calendar.getInstance());
+        message.addValue("ServerTimeOffset", 420);
+        message.addValue("XMPPAccount", SERVICE_JID);
+        message.addValue("XMPPContacts", 12);
+        return message;
+    }
+
+    static public Message createHelp(){
+        Map<String, String> help = new LinkedHashMap<>();
+        for(int i = 0; i < 20; i++){
+            help.put("command-" + i, "Does thing number " + i + " to the service");
+        }
+        Message message = new Message();
+        message.Type = MessageType.COMMAND_RESPONSE;
+        message.Sender = SERVICE_JID;
+        message.addValue(ChetchXMPPViewModel.MESSAGE_FIELD_COMMAND, ChetchXMPPViewModel.COMMAND_HELP);
+        message.addValue("Help", help);
+        return message;
+    }
+
+    private Payloads(){}
+}
@@ -0,0 +1,81 @@
+package net.chetch.xmpp.benchmark;
+
+import net.chetch.messaging.Message;
+import net.chetch.xmpp.ChetchXMPPViewModel;
+import net.chetch.xmpp.codecs.ChetchTypeRegistry;
+import net.chetch.xmpp.models.AlarmsViewModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Payload decoding: the message's reflective conversion of its parsed values against the registry's adapters streaming
+from the body text (the decode of the body in to a message is CodecBenchmark)
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TypeAdapterBenchmark {
+    Message status;
+    String statusBody;
+    Message alarmsList;
+    String alarmsListBody;
+    Message alert;
+    String alertBody;
+
+    @Setup
+    public void setup() throws Exception{
+        Headless.initialise();
+        Class.forName(AlarmsViewModel.class.getName()); //initialising the view models registers their adapters
+        status = Payloads.getMessage(Payloads.STATUS);
+        statusBody = status.serialize();
+        alarmsList = Payloads.getMessage(Payloads.LIST_ALARMS);
+        alarmsListBody = alarmsList.serialize();
+        alert = Payloads.getMessage(Payloads.ALERT);
+        alertBody = alert.serialize();
+    }
+
+    @Benchmark
+    public ChetchXMPPViewModel.Status statusReflective(){
+        return status.getAsClass(ChetchXMPPViewModel.Status.class);
+    }
+
+    @Benchmark
+    public ChetchXMPPViewModel.Status statusStreamed(){
+        return ChetchTypeRegistry.getAsClass(status, statusBody, null, ChetchXMPPViewModel.Status.class);
+    }
+
+    @Benchmark
+    public List<AlarmsViewModel.Alarm> alarmsListReflective(){
+        return alarmsList.getList(AlarmsViewModel.MESSAGE_FIELD_ALARMS_LIST, AlarmsViewModel.Alarm.class);
+    }
+
+    @Benchmark
+    public List<AlarmsViewModel.Alarm> alarmsListStreamed(){
+        return ChetchTypeRegistry.getList(alarmsList, alarmsListBody, AlarmsViewModel.MESSAGE_FIELD_ALARMS_LIST, AlarmsViewModel.Alarm.class);
+    }
+
+    @Benchmark
+    public AlarmsViewModel.Alarm alertReflective(){
+        return alert.getAsClass(AlarmsViewModel.MESSAGE_FIELD_ALARM, AlarmsViewModel.Alarm.class);
+    }
+
+    @Benchmark
+    public AlarmsViewModel.Alarm alertStreamed(){
+        return ChetchTypeRegistry.getAsClass(alert, alertBody, AlarmsViewModel.MESSAGE_FIELD_ALARM, AlarmsViewModel.Alarm.class);
+    }
+}
@@ -0,0 +1,79 @@
+package net.chetch.xmpp.benchmark;
+
+import net.chetch.messaging.Message;
+import net.chetch.xmpp.models.AlarmsViewModel;
+
+import org.jxmpp.jid.EntityBareJid;
+import org.jxmpp.jid.impl.JidCreate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+AlarmsViewModel.onIncomingMessage with already decoded messages: the type switch, status diffing, the filter index and
+the alarm store through to the LiveData values (set directly as running headless). Each benchmark alternates between two
+messages so there is always something that changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ViewModelBenchmark {
+
+    AlarmsViewModel viewModel;
+    EntityBareJid from;
+    Message[] statuses = new Message[2];
+    Message[] lists = new Message[2];
+    Message[] alerts = new Message[2];
+    int count = 0;
+
+    @Setup
+    public void setup() throws Exception{
+        Headless.initialise();
+
+        viewModel = new AlarmsViewModel();
+        viewModel.init(null, "benchmark", "benchmark");
+        viewModel.setServiceEndpoint(Payloads.SERVICE_JID, "127.0.0.1");
+        from = JidCreate.entityBareFrom(Payloads.SERVICE_JID);
+
+        for(int i = 0; i < 2; i++){
+            statuses[i] = Message.deserialize(Payloads.get(Payloads.STATUS));
+            lists[i] = Message.deserialize(Payloads.get(Payloads.LIST_ALARMS));
+
+            AlarmsViewModel.Alarm alarm = Payloads.createAlarm(7);
+            alarm.State = i == 0 ? AlarmsViewModel.AlarmState.SEVERE : AlarmsViewModel.AlarmState.LOWERED;
+            alerts[i] = Message.deserialize(Payloads.createAlert(alarm).serialize());
+        }
+        statuses[1].addValue("StatusCode", 1);
+        lists[1] = Message.deserialize(Payloads.createAlarmsList(Payloads.ALARMS - 1).serialize());
+    }
+
+    @Benchmark
+    public AlarmsViewModel status(){
+        viewModel.onIncomingMessage(from, statuses[count++ & 1], null, null);
+        return viewModel;
+    }
+
+    @Benchmark
+    public AlarmsViewModel alarmsList(){
+        viewModel.onIncomingMessage(from, lists[count++ & 1], null, null);
+        return viewModel;
+    }
+
+    @Benchmark
+    public AlarmsViewModel alert(){
+        viewModel.onIncomingMessage(from, alerts[count++ & 1], null, null);
+        return viewModel;
+    }
+}
@@ -0,0 +1,102 @@
+package net.chetch.xmpp.codecs;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageType;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CborBodyCodecTest {
+    final CborBodyCodec codec = new CborBodyCodec();
+
+    static Message createAlarms(String... ids){
+        Message message = new Message();
+        message.Type = MessageType.NOTIFICATION;
+        message.Tag = "MS:1";
+        message.addValue("Alarms", Arrays.asList(ids));
+        return message;
+    }
+
+    //occurrences of the string's utf-8 bytes in data
+    static int count(byte[] data, String s){
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int n = 0;
+        for(int i = 0; i + bytes.length <= data.length; i++){
+            int j = 0;
+            while(j < bytes.length && data[i + j] == bytes[j])j++;
+            if(j == bytes.length)n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void base64MatchesTheJdk() throws Exception{
+        Random random = new Random(42);
+        for(int length = 0; length < 64; length++){
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            String encoded = CborBodyCodec.Base64.encode(data, length);
+            assertEquals(java.util.Base64.getEncoder().encodeToString(data), encoded);
+            assertArrayEquals(data, CborBodyCodec.Base64.decode(encoded));
+        }
+    }
+
+    @Test
+    public void base64EncodesOnlyTheGivenLength() throws Exception{
+        byte[] data = "chetch....".getBytes(StandardCharsets.UTF_8);
+        assertEquals(java.util.Base64.getEncoder().encodeToString("chetch".getBytes(StandardCharsets.UTF_8)), CborBodyCodec.Base64.encode(data, 6));
+    }
+
+    @Test
+    public void base64DecodeSkipsWhitespace() throws Exception{
+        byte[] data = "a longer run of text to wrap".getBytes(StandardCharsets.UTF_8);
+        String wrapped = java.util.Base64.getMimeEncoder(8, "\r\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(data);
+        assertArrayEquals(data, CborBodyCodec.Base64.decode(wrapped));
+    }
+
+    @Test(expected = IOException.class)
+    public void base64DecodeRejectsInvalidCharacters() throws Exception{
+        CborBodyCodec.Base64.decode("AB*D");
+    }
+
+    @Test
+    public void repeatedStringsAreSentOnce() throws Exception{
+        Message message = createAlarms("alarm-7", "alarm-7", "alarm-7", "ok", "ok");
+        byte[] cbor = CborBodyCodec.Base64.decode(codec.encode(message));
+        assertEquals(1, count(cbor, "alarm-7"));
+        assertEquals(2, count(cbor, "ok")); //too short to be worth a reference
+
+        Message decoded = codec.decode(codec.encode(message));
+        assertEquals(MessageType.NOTIFICATION, decoded.Type);
+        assertEquals("MS:1", decoded.Tag);
+        assertEquals(Arrays.asList("alarm-7", "alarm-7", "alarm-7", "ok", "ok"), decoded.getList("Alarms", String.class));
+    }
+
+    @Test
+    public void batchSharesOneStringTable() throws Exception{
+        List<Message> batch = Arrays.asList(createAlarms("alarm-7", "alarm-8"), createAlarms("alarm-8", "alarm-7"));
+        String body = codec.encodeBatch(batch);
+        byte[] cbor = CborBodyCodec.Base64.decode(body);
+        assertEquals(1, count(cbor, "alarm-7"));
+        assertEquals(1, count(cbor, "Alarms"));
+
+        List<Message> decoded = codec.decodeBatch(body);
+        assertEquals(2, decoded.size());
+        assertEquals(Arrays.asList("alarm-7", "alarm-8"), decoded.get(0).getList("Alarms", String.class));
+        assertEquals(Arrays.asList("alarm-8", "alarm-7"), decoded.get(1).getList("Alarms", String.class));
+    }
+
+    @Test(expected = IOException.class)
+    public void referenceBeforeItsStringIsRejected() throws Exception{
+        //namespace tag then a map whose first key is a reference to string 0, which has not been sent
+        byte[] cbor = {(byte)0xD9, 0x01, 0x00, (byte)0xBF, (byte)0xD8, 0x19, 0x00, (byte)0xF6, (byte)0xFF};
+        codec.decode(CborBodyCodec.Base64.encode(cbor, cbor.length));
+    }
+}
@@ -0,0 +1,88 @@
+package net.chetch.xmpp.codecs;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageType;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+//the envelope must agree with what the messaging library itself serializes and deserializes
+public class ChetchEnvelopeTest {
+    static Message createMessage(MessageType type, String tag, String sender){
+        Message message = new Message();
+        message.Type = type;
+        message.Tag = tag;
+        message.Sender = sender;
+        return message;
+    }
+
+    static void assertAgrees(String json) throws Exception{
+        ChetchEnvelope envelope = ChetchEnvelope.scan(json);
+        assertNotNull(envelope);
+        Message message = Message.deserialize(json);
+        assertEquals(message.Type, envelope.Type);
+        assertEquals(message.Tag, envelope.Tag);
+        assertEquals(message.Sender, envelope.Sender);
+        for(String field : ChetchEnvelope.ROUTING_VALUES){
+            if(envelope.getValue(field) != null){
+                assertEquals(message.getString(field), envelope.getValue(field));
+            }
+        }
+        assertEquals(json, envelope.getJson());
+    }
+
+    @Test
+    public void envelopeMatchesTheLibrary() throws Exception{
+        Message response = createMessage(MessageType.COMMAND_RESPONSE, "t-1", "alarms@chetch");
+        response.addValue("Command", "list-alarms");
+        response.addValue("Alarms", Arrays.asList("alarm-1", "alarm-2"));
+        String json = response.serialize();
+        assertAgrees(json);
+        assertEquals("list-alarms", ChetchEnvelope.scan(json).getValue("Command"));
+
+        Message data = createMessage(MessageType.DATA, null, null);
+        data.addValue("ID", "pilot");
+        data.addValue("On", true);
+        json = data.serialize();
+        assertAgrees(json);
+        assertEquals("pilot", ChetchEnvelope.scan(json).getValue("ID"));
+
+        for(MessageType type : MessageType.values()){
+            assertAgrees(createMessage(type, "t-" + type.ordinal(), null).serialize());
+        }
+    }
+
+    @Test
+    public void nestedValuesAreSkipped() throws Exception{
+        Message message = createMessage(MessageType.NOTIFICATION, "t-2", "alarms@chetch");
+        Map<String, Object> details = new HashMap<>();
+        details.put("Command", "nested");
+        details.put("Type", "not the type");
+        message.addValue("Details", details);
+        String json = message.serialize();
+        assertAgrees(json);
+        assertNull(ChetchEnvelope.scan(json).getValue("Command"));
+    }
+
+    @Test
+    public void survivesTheCborCodec() throws Exception{
+        Message message = createMessage(MessageType.ALERT, "t-3", "alarms@chetch");
+        message.addValue("ID", "alarm-1");
+        CborBodyCodec codec = new CborBodyCodec();
+        String json = codec.decodeToJson(codec.encode(message));
+        assertAgrees(json);
+        assertEquals("alarm-1", ChetchEnvelope.scan(json).getValue("ID"));
+    }
+
+    @Test
+    public void unreadableEnvelopeIsNull(){
+        assertNull(ChetchEnvelope.scan("not json"));
+        assertNull(ChetchEnvelope.scan("[1, 2]"));
+        assertNull(ChetchEnvelope.scan("{\"Tag\":\"no type\"}"));
+    }
+}
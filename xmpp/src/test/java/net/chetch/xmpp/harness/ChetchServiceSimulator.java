@@ -0,0 +1,361 @@
+package net.chetch.xmpp.harness;
+
+import net.chetch.messaging.Message;
+import net.chetch.messaging.MessageType;
+import net.chetch.xmpp.ChetchXMPPConnection;
+import net.chetch.xmpp.ChetchXMPPViewModel;
+import net.chetch.xmpp.benchmark.Payloads;
+import net.chetch.xmpp.codecs.IChetchBodyCodec;
+import net.chetch.xmpp.models.AlarmsViewModel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+A chetch service (by default an alarms service) living on the loopback server. It answers subscribe (negotiating the
+body codec), ping, status requests and commands (help, version, about, list-alarms and the alarm test/silence commands)
+echoing the request tag, and pushes status updates and alerts to subscribers at scripted rates.
+Faults: a response delay, a proportion of requests ignored, a proportion of commands answered with an error and
+announcing that the service is going away (subscribers are then forgotten).
+With stamping on, alerts and status updates carry the (nano) time they were sent so clients can measure latency: the
+alarm message is STAMP_PREFIX followed by the time and the status has a STAMP_DETAIL detail
+ */
+public class ChetchServiceSimulator implements LoopbackXMPPServer.IEntity {
+    public static final int SERVICE_EVENT_DISCONNECTING = 10002;
+    public static final int SERVICE_EVENT_STATUS_UPDATE = 10004;
+    public static final String STAMP_PREFIX = "sent@";
+    public static final String STAMP_DETAIL = "SentOn";
+
+    static class Subscriber{
+        final String jid; //full jid
+        final IChetchBodyCodec codec;
+
+        Subscriber(String jid, IChetchBodyCodec codec){
+            this.jid = jid;
+            this.codec = codec;
+        }
+    }
+
+    final private String jid;
+    final private String serviceName;
+    final private LoopbackXMPPServer server;
+    final private Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    final private ScheduledExecutorService scheduler;
+    final private Random random = new Random();
+    final private Object alarmsLock = new Object();
+    final private AlarmsViewModel.Alarm[] alarms;
+    private volatile String preferredCodec = null; //null to use json
+    private volatile long responseDelay = 0; //in millis
+    private volatile double ignoreRate = 0; //of requests
+    private volatile double errorRate = 0; //of commands
+    private volatile boolean stamping = false;
+    private ScheduledFuture<?> statusUpdates = null;
+    private ScheduledFuture<?> alerts = null;
+    private int statusCounter = 0;
+
+    final private AtomicLong requests = new AtomicLong();
+    final private AtomicLong responses = new AtomicLong();
+    final private AtomicLong notifications = new AtomicLong();
+    final private AtomicLong ignored = new AtomicLong();
+
+    public ChetchServiceSimulator(LoopbackXMPPServer server, String jid, String serviceName, int alarmCount){
+        this.server = server;
+        this.jid = jid.toLowerCase();
+        this.serviceName = serviceName;
+        alarms = new AlarmsViewModel.Alarm[alarmCount];
+        for(int i = 0; i < alarmCount; i++){
+            alarms[i] = Payloads.createAlarm(i);
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chetch-service-" + serviceName);
+            t.setDaemon(true);
+            return t;
+        });
+        server.addEntity(this);
+    }
+
+    //an alarms service
+    public ChetchServiceSimulator(LoopbackXMPPServer server){
+        this(server, "alarms.service@" + server.getDomain(), AlarmsViewModel.ALARMS_SERVICE_NAME, Payloads.ALARMS);
+    }
+
+    @Override
+    public String getJid() {
+        return jid;
+    }
+
+    public int getSubscriberCount(){ return subscribers.size(); }
+    public long getRequests(){ return requests.get(); }
+    public long getResponses(){ return responses.get(); }
+    public long getNotifications(){ return notifications.get(); }
+    public long getIgnored(){ return ignored.get(); }
+
+    //region Script and faults
+    public void setPreferredCodec(String codecName){
+        preferredCodec = codecName;
+    }
+
+    public String getPreferredCodec(){
+        return preferredCodec == null ? ChetchXMPPConnection.DEFAULT_BODY_CODEC.getName() : preferredCodec;
+    }
+
+    public void setResponseDelay(long millis){
+        responseDelay = Math.max(0, millis);
+    }
+
+    public void setIgnoreRate(double rate){
+        ignoreRate = Math.max(0, Math.min(1, rate));
+    }
+
+    public void setErrorRate(double rate){
+        errorRate = Math.max(0, Math.min(1, rate));
+    }
+
+    public void setStamping(boolean stamping){
+        this.stamping = stamping;
+    }
+
+    //a status update (with one detail changed) to every subscriber, 0 to stop
+    public synchronized void setStatusUpdateInterval(long millis){
+        if(statusUpdates != null)statusUpdates.cancel(false);
+        statusUpdates = millis <= 0 ? null : scheduler.scheduleAtFixedRate(this::sendStatusUpdate, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    //alerts (a random alarm changing state) to every subscriber, 0 to stop
+    public synchronized void setAlertRate(double perSecond){
+        if(alerts != null)alerts.cancel(false);
+        if(perSecond <= 0){
+            alerts = null;
+            return;
+        }
+        long period = Math.max(1, (long)(1000000 / perSecond));
+        alerts = scheduler.scheduleAtFixedRate(this::sendAlert, period, period, TimeUnit.MICROSECONDS);
+    }
+
+    //count alerts as fast as possible (e.g. a board reconnecting and re-raising everything)
+    public void alertBurst(int count){
+        scheduler.execute(() -> {
+            for(int i = 0; i < count; i++){
+                sendAlert();
+            }
+        });
+    }
+
+    //tells subscribers the service is going away and forgets them (they should resubscribe)
+    public void goAway(){
+        scheduler.execute(() -> {
+            Message message = new Message();
+            message.Type = MessageType.NOTIFICATION;
+            message.addValue(ChetchXMPPViewModel.MESSAGE_FIELD_SERVICE_EVENT, SERVICE_EVENT_DISCONNECTING);
+            broadcast(message);
+            subscribers.clear();
+        });
+    }
+
+    public void shutdown(){
+        server.removeEntity(this);
+        scheduler.shutdownNow();
+    }
+    //endregion
+
+    //region Handling requests
+    @Override
+    public void onMessage(LoopbackXMPPServer server, XmlElement stanza) {
+        String from = stanza.getAttribute("from");
+        String subject = stanza.getChildText("subject");
+        String body = stanza.getChildText("body");
+        if(from == null || subject == null || body == null || !subject.startsWith(ChetchXMPPConnection.CHETCH_MESSAGE_SUBJECT))return;
+
+        final List<Message> messages;
+        try {
+            IChetchBodyCodec codec = ChetchXMPPConnection.DEFAULT_BODY_CODEC;
+            int idx = subject.indexOf(ChetchXMPPConnection.CHETCH_SUBJECT_CODEC_SEPARATOR);
+            if(idx > 0){
+                codec = ChetchXMPPConnection.getBodyCodec(subject.substring(idx + 1));
+                subject = subject.substring(0, idx);
+            }
+            if(ChetchXMPPConnection.CHETCH_MESSAGE_BATCH_SUBJECT.equals(subject)){
+                messages = codec.decodeBatch(body);
+            } else {
+                messages = Collections.singletonList(codec.decode(body));
+            }
+        } catch (Exception e){
+            return;
+        }
+
+        for(Message message : messages){
+            requests.incrementAndGet();
+            if(ignoreRate > 0 && random.nextDouble() < ignoreRate){
+                ignored.incrementAndGet();
+                continue;
+            }
+            if(responseDelay > 0){
+                scheduler.schedule(() -> handle(from, message), responseDelay, TimeUnit.MILLISECONDS);
+            } else {
+                handle(from, message);
+            }
+        }
+    }
+
+    @Override
+    public void onUnavailable(LoopbackXMPPServer server, String fullJid) {
+        subscribers.remove(fullJid);
+    }
+
+    private void handle(String from, Message request){
+        Message response = new Message();
+        response.Tag = request.Tag;
+        switch(request.Type){
+            case SUBSCRIBE:
+                IChetchBodyCodec codec = ChetchXMPPConnection.DEFAULT_BODY_CODEC;
+                if(preferredCodec != null && request.hasValue(ChetchXMPPViewModel.MESSAGE_FIELD_BODY_CODECS)
+                        && request.getList(ChetchXMPPViewModel.MESSAGE_FIELD_BODY_CODECS, String.class).contains(preferredCodec)){
+                    codec = ChetchXMPPConnection.getBodyCodec(preferredCodec);
+                }
+                response.Type = MessageType.SUBSCRIBE_RESPONSE;
+                response.addValue(ChetchXMPPViewModel.MESSAGE_FIELD_BODY_CODEC, codec.getName());
+                send(from, response, ChetchXMPPConnection.DEFAULT_BODY_CODEC); //the client switches codec on receiving this
+                responses.incrementAndGet();
+                subscribers.put(from, new Subscriber(from, codec));
+                return;
+
+            case PING:
+                response.Type = MessageType.PING_RESPONSE;
+                break;
+
+            case STATUS_REQUEST:
+                response = createStatus(MessageType.STATUS_RESPONSE);
+                response.Tag = request.Tag;
+                break;
+
+            case COMMAND:
+                response = onCommand(request);
+                break;
+
+            default:
+                return;
+        }
+        send(from, response, getCodec(from));
+        responses.incrementAndGet();
+    }
+
+    private Message onCommand(Message request){
+        String command = request.getString(ChetchXMPPViewModel.MESSAGE_FIELD_COMMAND);
+        Message response = new Message();
+        response.Tag = request.Tag;
+        if(errorRate > 0 && random.nextDouble() < errorRate){
+            response.Type = MessageType.ERROR;
+            response.addValue("Message", "Simulated error for " + command);
+            return response;
+        }
+
+        response.Type = MessageType.COMMAND_RESPONSE;
+        response.addValue(ChetchXMPPViewModel.MESSAGE_FIELD_COMMAND, command);
+        switch(command == null ? "" : command){
+            case ChetchXMPPViewModel.COMMAND_HELP:
+                response.addValue("Help", Payloads.createHelp().getAsClass("Help", Map.class));
+                break;
+            case ChetchXMPPViewModel.COMMAND_VERSION:
+                response.addValue("Version", "1.0.0-loopback");
+                break;
+            case ChetchXMPPViewModel.COMMAND_ABOUT:
+                response.addValue("About", serviceName + " (simulated)");
+                break;
+            case AlarmsViewModel.COMMAND_LIST_ALARMS:
+                synchronized (alarmsLock) {
+                    response.addValue(AlarmsViewModel.MESSAGE_FIELD_ALARMS_LIST, Arrays.asList(alarms.clone()));
+                }
+                break;
+            case AlarmsViewModel.COMMAND_TEST_ALARM:
+            case AlarmsViewModel.COMMAND_TEST_BUZZER:
+            case AlarmsViewModel.COMMAND_TEST_PILOT:
+            case AlarmsViewModel.COMMAND_SILENCE:
+            case AlarmsViewModel.COMMAND_UNSILENCE:
+            case AlarmsViewModel.COMMAND_ENABLE_ALARM:
+            case AlarmsViewModel.COMMAND_DISABLE_ALARM:
+            case AlarmsViewModel.COMMAND_REFRESH_ALARM:
+                break; //acknowledged
+            default:
+                response.Type = MessageType.ERROR;
+                response.addValue("Message", "Unknown command " + command);
+                break;
+        }
+        return response;
+    }
+    //endregion
+
+    //region Sending
+    private Message createStatus(MessageType type){
+        Message status = Payloads.createStatus(Payloads.STATUS_DETAILS);
+        status.Type = type;
+        status.addValue("ServiceName", serviceName);
+        return status;
+    }
+
+    private void sendStatusUpdate(){
+        Message update = createStatus(MessageType.NOTIFICATION);
+        update.addValue(ChetchXMPPViewModel.MESSAGE_FIELD_SERVICE_EVENT, SERVICE_EVENT_STATUS_UPDATE);
+        update.addValue("StatusCode", statusCounter++ % 2);
+        if(stamping){
+            Map<String, Object> details = new LinkedHashMap<>(update.getAsClass("StatusDetails", Map.class));
+            details.put(STAMP_DETAIL, String.valueOf(System.nanoTime()));
+            update.addValue("StatusDetails", details);
+        }
+        broadcast(update);
+    }
+
+    private void sendAlert(){
+        if(alarms.length == 0)return;
+        AlarmsViewModel.Alarm alarm;
+        synchronized (alarmsLock) {
+            int idx = random.nextInt(alarms.length);
+            alarm = Payloads.createAlarm(idx);
+            alarm.State = alarms[idx].isRaised() ? AlarmsViewModel.AlarmState.LOWERED : AlarmsViewModel.AlarmState.SEVERE;
+            alarms[idx] = alarm;
+        }
+        if(stamping){
+            alarm.Message = STAMP_PREFIX + System.nanoTime();
+        }
+        broadcast(Payloads.createAlert(alarm));
+    }
+
+    private void broadcast(Message message){
+        for(Subscriber subscriber : subscribers.values()){
+            send(subscriber.jid, message, subscriber.codec);
+            notifications.incrementAndGet();
+        }
+    }
+
+    private IChetchBodyCodec getCodec(String to){
+        Subscriber subscriber = subscribers.get(to);
+        return subscriber == null ? ChetchXMPPConnection.DEFAULT_BODY_CODEC : subscriber.codec;
+    }
+
+    private void send(String to, Message message, IChetchBodyCodec codec){
+        try {
+            message.Sender = jid;
+            String subject = ChetchXMPPConnection.CHETCH_MESSAGE_SUBJECT;
+            if(codec != ChetchXMPPConnection.DEFAULT_BODY_CODEC){
+                subject += ChetchXMPPConnection.CHETCH_SUBJECT_CODEC_SEPARATOR + codec.getName();
+            }
+            XmlElement stanza = new XmlElement("message");
+            stanza.setAttribute("from", jid).setAttribute("to", to).setAttribute("type", "normal");
+            stanza.addChild("subject").setText(subject);
+            stanza.addChild("body").setText(codec.encode(message));
+            server.route(stanza);
+        } catch (Exception e){
+            //the subscriber will time out
+        }
+    }
+    //endregion
+}
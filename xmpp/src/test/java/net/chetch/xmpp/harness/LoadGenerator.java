@@ -0,0 +1,382 @@
+package net.chetch.xmpp.harness;
+
+import net.chetch.xmpp.ChetchXMPPViewModel;
+import net.chetch.xmpp.benchmark.Headless;
+import net.chetch.xmpp.models.AlarmsViewModel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Runs many headless AlarmsViewModels (one connection each) against the loopback server and a stamping alarms service
+and measures end to end latency: from the service sending an alert or status update to the value being posted to the
+view model's LiveData (alertedAlarm and status are observed, the headless poster sets values immediately).
+A run is one or more phases, each setting the number of clients (clients are only ever added), the alert rate and the
+status interval, then waiting for every client to be subscribed, warming up and measuring. New clients are started one
+per connectInterval with at most maxConnecting of them not yet subscribed, so start up doesn't hit the server all at once.
+Each phase reports:
+    clients added, how many of those failed to connect (connect threw or not subscribed within the ready timeout) and
+    connect attempts that failed (including retries) across all clients during the phase
+    alert and status latency percentiles (micros), values posted per second, client cpu per client (process cpu less
+    the server and service threads, as a percentage of one core) and heap per client (after a gc, less the heap before
+    any clients were added)
+Results are printed and appended (one json object per phase, with the label) to the out file so capacity can be tracked
+across versions.
+Arguments are name=value (see DEFAULTS) and give a single phase, or script=<file> where each line is a phase written the
+same way (lines starting with # are ignored), values not given carrying over from the previous phase (codec, label and
+out apply to the whole run), e.g.
+    clients=50 alertRate=2 statusInterval=1000 seconds=60
+    clients=200
+    clients=400 alertRate=5
+ */
+public class LoadGenerator {
+    static final String PASSWORD = "load";
+    static final long READY_TIMEOUT = 120000; //in millis, for all clients to subscribe at the start of a phase
+    static final long CONNECT_TIMEOUT = 10000; //in millis, after which a client still not subscribed no longer holds up starting others
+    static final String[] HARNESS_THREADS = new String[]{"loopback-xmpp", "chetch-service-"};
+    static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+    static {
+        DEFAULTS.put("clients", "100");
+        DEFAULTS.put("alertRate", "2"); //per second (to every subscriber)
+        DEFAULTS.put("statusInterval", "1000"); //in millis, 0 for none
+        DEFAULTS.put("connectInterval", "20"); //in millis between starting each new client
+        DEFAULTS.put("maxConnecting", "10"); //new clients started but not yet subscribed
+        DEFAULTS.put("seconds", "60"); //measured
+        DEFAULTS.put("warmup", "10"); //in seconds, not measured
+        DEFAULTS.put("codec", "json");
+        DEFAULTS.put("label", "");
+        DEFAULTS.put("out", "build/reports/load/results.jsonl");
+        DEFAULTS.put("script", "");
+    }
+
+    //latencies in micros, cleared at the start of each measurement
+    static class LatencyRecorder{
+        private long[] values = new long[4096];
+        private int count = 0;
+
+        synchronized void record(long micros){
+            if(count == values.length)values = Arrays.copyOf(values, count * 2);
+            values[count++] = micros;
+        }
+
+        synchronized long[] drain(){
+            long[] sorted = Arrays.copyOf(values, count);
+            count = 0;
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        static long percentile(long[] sorted, double p){
+            if(sorted.length == 0)return -1;
+            int idx = (int)Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+        }
+    }
+
+    final LoopbackXMPPServer server;
+    final ChetchServiceSimulator service;
+    final List<AlarmsViewModel> clients = new ArrayList<>();
+    final LatencyRecorder alertLatencies = new LatencyRecorder();
+    final LatencyRecorder statusLatencies = new LatencyRecorder();
+    final AtomicLong malformed = new AtomicLong(); //posted values without a readable stamp
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    final com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean();
+    long baseHeap;
+
+    public LoadGenerator(LoopbackXMPPServer server, ChetchServiceSimulator service){
+        this.server = server;
+        this.service = service;
+        if(threads.isThreadCpuTimeSupported())threads.setThreadCpuTimeEnabled(true);
+        baseHeap = heapUsed();
+    }
+
+    static long micros(long sentOn){
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentOn);
+    }
+
+    //returns the new clients whose connect threw
+    public List<AlarmsViewModel> addClients(int count, long connectInterval, int maxConnecting) throws Exception{
+        List<AlarmsViewModel> connectErrors = new ArrayList<>();
+        List<AlarmsViewModel> connecting = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            AlarmsViewModel viewModel = new AlarmsViewModel();
+            viewModel.init(null, "load" + clients.size(), PASSWORD);
+            viewModel.setServiceEndpoint(service.getJid(), server.getHost(), server.getPort());
+
+            viewModel.alertedAlarm.observeForever(alarm -> {
+                if(alarm == null)return;
+                if(alarm.Message != null && alarm.Message.startsWith(ChetchServiceSimulator.STAMP_PREFIX)){
+                    alertLatencies.record(micros(Long.parseLong(alarm.Message.substring(ChetchServiceSimulator.STAMP_PREFIX.length()))));
+                } else {
+                    malformed.incrementAndGet();
+                }
+            });
+            viewModel.status.observeForever(status -> {
+                if(status == null || status.StatusDetails == null)return;
+                Object sentOn = status.StatusDetails.get(ChetchServiceSimulator.STAMP_DETAIL);
+                if(sentOn != null){
+                    statusLatencies.record(micros(Long.parseLong(sentOn.toString())));
+                } else {
+                    malformed.incrementAndGet();
+                }
+            });
+
+            clients.add(viewModel);
+            waitToConnect(connecting, maxConnecting);
+            try {
+                viewModel.connect(o -> {});
+                connecting.add(viewModel);
+            } catch (Exception e){
+                connectErrors.add(viewModel);
+            }
+            if(connectInterval > 0)Thread.sleep(connectInterval);
+        }
+        return connectErrors;
+    }
+
+    //until fewer than max are still connecting ... if one hasn't subscribed within the connect timeout it is left to waitForReady
+    static void waitToConnect(List<AlarmsViewModel> connecting, int max) throws InterruptedException{
+        long startedOn = System.nanoTime();
+        while(true){
+            connecting.removeIf(ChetchXMPPViewModel::isSubscribed);
+            if(connecting.size() < Math.max(1, max))return;
+            if(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedOn) > CONNECT_TIMEOUT){
+                connecting.remove(0);
+                startedOn = System.nanoTime();
+            } else {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    //failed connect attempts (each retry counts) across all clients so far
+    long connectFailures(){
+        long n = 0;
+        for(ChetchXMPPViewModel client : clients){
+            if(client.getConnection() != null)n += client.getConnection().getMetrics().getSnapshot().connectFailures;
+        }
+        return n;
+    }
+
+    public int getReadyCount(){
+        int n = 0;
+        for(ChetchXMPPViewModel client : clients){
+            if(client.isSubscribed())n++;
+        }
+        return n;
+    }
+
+    public boolean waitForReady(long timeout) throws InterruptedException{
+        long startedOn = System.nanoTime();
+        while(getReadyCount() < clients.size()){
+            if(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedOn) > timeout)return false;
+            Thread.sleep(100);
+        }
+        return true;
+    }
+
+    static long heapUsed(){
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    //cpu (nanos) used so far by the server and service threads that are still alive
+    long harnessCpuTime(){
+        long total = 0;
+        for(ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())){
+            if(info == null)continue;
+            for(String prefix : HARNESS_THREADS){
+                if(info.getThreadName().startsWith(prefix)){
+                    long cpu = threads.getThreadCpuTime(info.getThreadId());
+                    if(cpu > 0)total += cpu;
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    //applies the phase then measures it, returning the results
+    public Map<String, Object> runPhase(Map<String, String> phase) throws Exception{
+        int target = Integer.parseInt(phase.get("clients"));
+        int existing = clients.size();
+        long connectFailures = connectFailures();
+        List<AlarmsViewModel> connectErrors = new ArrayList<>();
+        if(target > existing){
+            connectErrors = addClients(target - existing, Long.parseLong(phase.get("connectInterval")), Integer.parseInt(phase.get("maxConnecting")));
+        }
+        service.setAlertRate(Double.parseDouble(phase.get("alertRate")));
+        service.setStatusUpdateInterval(Long.parseLong(phase.get("statusInterval")));
+
+        boolean ready = waitForReady(READY_TIMEOUT);
+        int failedToConnect = 0;
+        for(int i = existing; i < clients.size(); i++){
+            AlarmsViewModel client = clients.get(i);
+            if(connectErrors.contains(client) || !client.isSubscribed())failedToConnect++;
+        }
+        connectFailures = connectFailures() - connectFailures;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(Long.parseLong(phase.get("warmup"))));
+
+        alertLatencies.drain();
+        statusLatencies.drain();
+        malformed.set(0);
+        long routed = server.getMessagesRouted();
+        long dropped = server.getMessagesDropped();
+        long processCpu = os.getProcessCpuTime();
+        long harnessCpu = harnessCpuTime();
+        long startedOn = System.nanoTime();
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(Long.parseLong(phase.get("seconds"))));
+
+        double seconds = (System.nanoTime() - startedOn) / 1e9;
+        long[] alerts = alertLatencies.drain();
+        long[] statuses = statusLatencies.drain();
+        long clientCpu = Math.max(0, (os.getProcessCpuTime() - processCpu) - (harnessCpuTime() - harnessCpu));
+        int readyCount = getReadyCount();
+        long heap = heapUsed();
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("label", phase.get("label"));
+        results.put("time", System.currentTimeMillis());
+        results.put("clients", clients.size());
+        results.put("added", clients.size() - existing);
+        results.put("failedToConnect", failedToConnect);
+        results.put("connectFailures", connectFailures);
+        results.put("ready", readyCount);
+        results.put("allReady", ready);
+        results.put("codec", service.getPreferredCodec());
+        results.put("alertRate", Double.parseDouble(phase.get("alertRate")));
+        results.put("statusInterval", Long.parseLong(phase.get("statusInterval")));
+        results.put("seconds", Math.round(seconds));
+        results.put("alerts", latencies(alerts, seconds));
+        results.put("status", latencies(statuses, seconds));
+        results.put("malformed", malformed.get());
+        results.put("routedPerSecond", round((server.getMessagesRouted() - routed) / seconds));
+        results.put("dropped", server.getMessagesDropped() - dropped);
+        results.put("cpuPerClient", round(clients.isEmpty() ? 0 : 100.0 * clientCpu / (seconds * 1e9) / clients.size())); //percent of a core
+        results.put("heapPerClientKB", clients.isEmpty() ? 0 : Math.max(0, heap - baseHeap) / 1024 / clients.size());
+        results.put("heapMB", heap / (1024 * 1024));
+        results.put("threads", Thread.activeCount());
+        return results;
+    }
+
+    static Map<String, Object> latencies(long[] sorted, double seconds){
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("n", sorted.length);
+        stats.put("perSecond", round(sorted.length / seconds));
+        stats.put("p50", LatencyRecorder.percentile(sorted, 0.5));
+        stats.put("p90", LatencyRecorder.percentile(sorted, 0.9));
+        stats.put("p99", LatencyRecorder.percentile(sorted, 0.99));
+        stats.put("p999", LatencyRecorder.percentile(sorted, 0.999));
+        stats.put("max", LatencyRecorder.percentile(sorted, 1));
+        return stats;
+    }
+
+    static double round(double value){
+        return Math.round(value * 100) / 100.0;
+    }
+
+    static String toJson(Object value){
+        if(value instanceof Map){
+            StringBuilder sb = new StringBuilder("{");
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()){
+                if(sb.length() > 1)sb.append(',');
+                sb.append(toJson(entry.getKey().toString())).append(':').append(toJson(entry.getValue()));
+            }
+            return sb.append('}').toString();
+        } else if(value instanceof String){
+            return "\"" + ((String)value).replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        } else {
+            return String.valueOf(value);
+        }
+    }
+
+    static Map<String, String> parse(String[] args, Map<String, String> into){
+        for(String arg : args){
+            if(arg.isEmpty())continue;
+            int idx = arg.indexOf('=');
+            if(idx == -1 || !DEFAULTS.containsKey(arg.substring(0, idx))){
+                throw new IllegalArgumentException("Unknown argument " + arg + ", options are " + DEFAULTS.keySet());
+            }
+            into.put(arg.substring(0, idx), arg.substring(idx + 1));
+        }
+        return into;
+    }
+
+    static List<Map<String, String>> readPhases(Map<String, String> options) throws Exception{
+        List<Map<String, String>> phases = new ArrayList<>();
+        String script = options.get("script");
+        if(script.isEmpty()){
+            phases.add(options);
+            return phases;
+        }
+
+        Map<String, String> previous = options;
+        try(BufferedReader reader = new BufferedReader(new FileReader(script))){
+            String line;
+            while((line = reader.readLine()) != null){
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))continue;
+                previous = parse(line.split("\\s+"), new HashMap<>(previous));
+                phases.add(previous);
+            }
+        }
+        return phases;
+    }
+
+    public static void main(String[] args) throws Exception{
+        final Map<String, String> options;
+        final List<Map<String, String>> phases;
+        try {
+            options = parse(args, new HashMap<>(DEFAULTS));
+            phases = readPhases(options);
+        } catch (IllegalArgumentException e){
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        Headless.initialise();
+        LoopbackXMPPServer server = new LoopbackXMPPServer();
+        server.setDefaultPassword(PASSWORD);
+        server.start();
+
+        ChetchServiceSimulator service = new ChetchServiceSimulator(server);
+        service.setPreferredCodec(options.get("codec"));
+        service.setStamping(true);
+
+        LoadGenerator generator = new LoadGenerator(server, service);
+        File out = new File(options.get("out"));
+        if(out.getParentFile() != null)out.getParentFile().mkdirs();
+        System.out.println("Load started on port " + server.getPort() + " with " + phases.size() + " phase(s), results to " + out.getAbsolutePath());
+
+        for(Map<String, String> phase : phases){
+            Map<String, Object> results = generator.runPhase(phase);
+            String json = toJson(results);
+            System.out.println(json);
+            try(PrintWriter writer = new PrintWriter(new FileWriter(out, true))){
+                writer.println(json);
+            }
+        }
+
+        service.shutdown();
+        server.stop();
+        System.out.println("Load finished");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,80 @@
+package net.chetch.xmpp.harness;
+
+import net.chetch.messaging.Message;
+import net.chetch.xmpp.ChetchXMPPViewModel;
+import net.chetch.xmpp.benchmark.Headless;
+import net.chetch.xmpp.benchmark.Payloads;
+import net.chetch.xmpp.models.AlarmsViewModel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/*
+End to end: a headless AlarmsViewModel connecting to the loopback server and talking to a simulated alarms service
+ */
+public class LoopbackServerTest {
+    static final long TIMEOUT = 30000;
+
+    LoopbackXMPPServer server;
+    ChetchServiceSimulator service;
+    AlarmsViewModel viewModel;
+
+    static void waitFor(String what, BooleanSupplier condition) throws Exception{
+        long startedOn = System.nanoTime();
+        while(!condition.getAsBoolean()){
+            if(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedOn) > TIMEOUT){
+                fail("Timed out waiting for " + what);
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    @Before
+    public void setup() throws Exception{
+        Headless.initialise();
+        server = new LoopbackXMPPServer();
+        server.addUser("tester", "password");
+        server.start();
+        service = new ChetchServiceSimulator(server);
+
+        viewModel = new AlarmsViewModel();
+        viewModel.init(null, "tester", "password");
+        viewModel.setServiceEndpoint(service.getJid(), server.getHost(), server.getPort());
+        viewModel.connect(o -> {});
+    }
+
+    @After
+    public void tearDown(){
+        service.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void subscribesAndLoadsAlarms() throws Exception{
+        waitFor("subscribe", viewModel::isSubscribed);
+        waitFor("alarms list", () -> viewModel.getAlarmStore().size() == Payloads.ALARMS);
+        assertEquals(1, service.getSubscriberCount());
+    }
+
+    @Test
+    public void commandRoundTrip() throws Exception{
+        waitFor("subscribe", viewModel::isSubscribed);
+        Message response = viewModel.sendCommandAsync(ChetchXMPPViewModel.COMMAND_VERSION).get(5, TimeUnit.SECONDS);
+        assertEquals("1.0.0-loopback", response.getString("Version"));
+    }
+
+    @Test
+    public void resubscribesAfterConnectionDropped() throws Exception{
+        waitFor("subscribe", viewModel::isSubscribed);
+        server.dropConnections();
+        waitFor("unsubscribed", () -> !viewModel.isSubscribed());
+        waitFor("resubscribe", viewModel::isSubscribed);
+        assertTrue(server.getConnections() >= 2);
+    }
+}
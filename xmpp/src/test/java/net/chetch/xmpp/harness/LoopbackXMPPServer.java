@@ -0,0 +1,559 @@
+package net.chetch.xmpp.harness;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/*
+An in-process stand in for the XMPP server, listening on loopback, for end to end, load and soak tests. It does just
+what ChetchXMPPConnection (i.e. Smack) needs: stream negotiation without TLS, SASL (SCRAM-SHA-1 and PLAIN), resource
+binding, an empty roster and ping. Message stanzas are routed to in-process entities (e.g. ChetchServiceSimulator)
+or to other connected clients by bare jid. Stream management is not offered so every reconnect is a fresh session.
+Faults: dropped stanzas, delayed stanzas and abruptly closed connections (see dropConnections).
+Each client has a reader thread (stanzas are parsed with StAX) and writes are synchronized per client.
+ */
+public class LoopbackXMPPServer {
+    public static final String DEFAULT_DOMAIN = "chetch.net";
+
+    static final String NS_STREAMS = "http://etherx.jabber.org/streams";
+    static final String NS_CLIENT = "jabber:client";
+    static final String NS_SASL = "urn:ietf:params:xml:ns:xmpp-sasl";
+    static final String NS_BIND = "urn:ietf:params:xml:ns:xmpp-bind";
+    static final String NS_SESSION = "urn:ietf:params:xml:ns:xmpp-session";
+    static final String NS_ROSTER = "jabber:iq:roster";
+    static final String NS_PING = "urn:xmpp:ping";
+    static final String NS_STANZAS = "urn:ietf:params:xml:ns:xmpp-stanzas";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //something in process that has a jid on this server (e.g. a simulated chetch service)
+    public interface IEntity{
+        String getJid(); //bare jid
+        void onMessage(LoopbackXMPPServer server, XmlElement message);
+        default void onUnavailable(LoopbackXMPPServer server, String fullJid){}
+    }
+
+    public class Session implements Runnable{
+        final Socket socket;
+        final OutputStream out;
+        final int id;
+        volatile boolean authenticated = false;
+        volatile String username = null;
+        volatile String fullJid = null;
+        volatile boolean closed = false;
+        ScramSha1 scram = null;
+
+        Session(Socket socket, int id) throws IOException{
+            this.socket = socket;
+            this.id = id;
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        public String getFullJid(){ return fullJid; }
+        public String getBareJid(){ return username == null ? null : username + "@" + domain; }
+        public boolean isBound(){ return fullJid != null; }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = new DeclarationFilter(new BufferedInputStream(socket.getInputStream()));
+                XMLStreamReader reader = inputFactory.createXMLStreamReader(in, "UTF-8");
+                List<XmlElement> stack = new ArrayList<>();
+                int streamDepth = -1;
+                int depth = 0;
+                while(!closed && reader.hasNext()){
+                    int event = reader.next();
+                    switch(event){
+                        case XMLStreamConstants.START_ELEMENT:
+                            depth++;
+                            if("stream".equals(reader.getLocalName()) && NS_STREAMS.equals(reader.getNamespaceURI())){
+                                streamDepth = depth; //a restart (after auth) is nested in the original stream
+                                onStreamOpen();
+                                break;
+                            }
+                            XmlElement element = new XmlElement(reader.getLocalName(), reader.getNamespaceURI());
+                            for(int i = 0; i < reader.getAttributeCount(); i++){
+                                String prefix = reader.getAttributePrefix(i);
+                                String name = prefix == null || prefix.isEmpty() ? reader.getAttributeLocalName(i) : prefix + ":" + reader.getAttributeLocalName(i);
+                                element.attributes.put(name, reader.getAttributeValue(i));
+                            }
+                            if(!stack.isEmpty())stack.get(stack.size() - 1).children.add(element);
+                            stack.add(element);
+                            break;
+
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                            if(!stack.isEmpty())stack.get(stack.size() - 1).text.append(reader.getText());
+                            break;
+
+                        case XMLStreamConstants.END_ELEMENT:
+                            if(stack.isEmpty()){
+                                close(); //end of stream
+                                break;
+                            }
+                            XmlElement completed = stack.remove(stack.size() - 1);
+                            depth--;
+                            if(depth == streamDepth){
+                                onStanza(completed);
+                            }
+                            break;
+                    }
+                }
+            } catch (Exception e){
+                if(!closed)errors.incrementAndGet();
+            } finally {
+                close();
+            }
+        }
+
+        void onStreamOpen() throws IOException{
+            StringBuilder header = new StringBuilder();
+            header.append("<?xml version='1.0' encoding='UTF-8'?>");
+            header.append("<stream:stream xmlns='").append(NS_CLIENT).append("' xmlns:stream='").append(NS_STREAMS).append("'");
+            header.append(" id='").append(id).append('-').append(System.nanoTime()).append("' from='").append(domain).append("' version='1.0' xml:lang='en'>");
+
+            XmlElement features = new XmlElement("stream:features");
+            if(!authenticated){
+                XmlElement mechanisms = features.addChild("mechanisms", NS_SASL);
+                mechanisms.addChild("mechanism").setText(ScramSha1.MECHANISM);
+                mechanisms.addChild("mechanism").setText("PLAIN");
+            } else {
+                features.addChild("bind", NS_BIND);
+            }
+            header.append(features.toXml());
+            write(header.toString());
+        }
+
+        void onStanza(XmlElement stanza) throws IOException{
+            stanzasReceived.incrementAndGet();
+            if(NS_SASL.equals(stanza.namespace)){
+                onSasl(stanza);
+                return;
+            }
+            if(!authenticated){
+                close();
+                return;
+            }
+
+            switch(stanza.name){
+                case "iq":
+                    onIQ(stanza);
+                    break;
+                case "message":
+                    if(fullJid != null)stanza.attributes.put("from", fullJid);
+                    route(stanza);
+                    break;
+                case "presence":
+                    break; //no presence handling required
+            }
+        }
+
+        void onSasl(XmlElement stanza) throws IOException{
+            switch(stanza.name){
+                case "auth":
+                    String mechanism = stanza.getAttribute("mechanism");
+                    String data = decode(stanza.getText());
+                    if("PLAIN".equals(mechanism)){
+                        String[] parts = data == null ? new String[0] : data.split("\u0000", -1);
+                        if(parts.length == 3 && parts[2].equals(getPassword(parts[1]))){
+                            onAuthenticated(parts[1], null);
+                        } else {
+                            onAuthFailed();
+                        }
+                    } else if(ScramSha1.MECHANISM.equals(mechanism)){
+                        scram = new ScramSha1(LoopbackXMPPServer.this::getPassword);
+                        String serverFirst = data == null ? null : scram.onClientFirst(data);
+                        if(serverFirst == null){
+                            onAuthFailed();
+                        } else {
+                            write(new XmlElement("challenge", NS_SASL).setText(encode(serverFirst)).toXml());
+                        }
+                    } else {
+                        onAuthFailed();
+                    }
+                    break;
+
+                case "response":
+                    String serverFinal = scram == null ? null : scram.onClientFinal(decode(stanza.getText()));
+                    if(serverFinal == null){
+                        onAuthFailed();
+                    } else {
+                        onAuthenticated(scram.getUsername(), serverFinal);
+                    }
+                    break;
+
+                case "abort":
+                    onAuthFailed();
+                    break;
+            }
+        }
+
+        void onAuthenticated(String username, String additionalData) throws IOException{
+            this.username = username;
+            authenticated = true;
+            scram = null;
+            write(new XmlElement("success", NS_SASL).setText(additionalData == null ? null : encode(additionalData)).toXml());
+        }
+
+        void onAuthFailed() throws IOException{
+            authFailures.incrementAndGet();
+            scram = null;
+            XmlElement failure = new XmlElement("failure", NS_SASL);
+            failure.addChild("not-authorized");
+            write(failure.toXml());
+        }
+
+        void onIQ(XmlElement iq) throws IOException{
+            String type = iq.getAttribute("type");
+            if(!"get".equals(type) && !"set".equals(type))return; //results from the client (e.g. to a ping) need nothing
+
+            XmlElement payload = iq.getPayload();
+            XmlElement result = new XmlElement("iq");
+            result.setAttribute("type", "result").setAttribute("id", iq.getAttribute("id"));
+            result.setAttribute("from", iq.getAttribute("to")); //smack matches replies on this
+            if(fullJid != null)result.setAttribute("to", fullJid);
+
+            String ns = payload == null ? null : payload.namespace;
+            if(NS_BIND.equals(ns)){
+                String resource = payload.getChildText("resource");
+                if(resource == null || resource.isEmpty())resource = "res" + id;
+                fullJid = getBareJid() + "/" + resource;
+                bind(this);
+                result.addChild("bind", NS_BIND).addChild("jid").setText(fullJid);
+            } else if(NS_SESSION.equals(ns) || NS_PING.equals(ns)){
+                //empty result
+            } else if(NS_ROSTER.equals(ns)){
+                result.addChild("query", NS_ROSTER);
+            } else {
+                result.attributes.put("type", "error");
+                XmlElement error = result.addChild("error");
+                error.setAttribute("type", "cancel");
+                error.addChild("service-unavailable", NS_STANZAS);
+            }
+            write(result.toXml());
+        }
+
+        public void write(String xml) throws IOException{
+            if(closed)throw new IOException("Session " + id + " is closed");
+            byte[] bytes = xml.getBytes(UTF8);
+            synchronized (out) {
+                out.write(bytes);
+                out.flush();
+            }
+            stanzasSent.incrementAndGet();
+        }
+
+        //an orderly close sends the end of stream, otherwise the socket is just closed (as if the network dropped)
+        public void close(boolean orderly){
+            if(closed)return;
+            if(orderly){
+                try {
+                    write("</stream:stream>");
+                } catch (IOException e){
+                    //closing anyway
+                }
+            }
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e){
+                //nothing to do
+            }
+            unbind(this);
+        }
+
+        public void close(){
+            close(true);
+        }
+    }
+
+    //drops any <?...?> (e.g. an xml declaration repeated on a stream restart) so the parser sees one document
+    static class DeclarationFilter extends FilterInputStream{
+        final PushbackInputStream pin;
+
+        DeclarationFilter(InputStream in){
+            super(new PushbackInputStream(in, 1));
+            pin = (PushbackInputStream)this.in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = pin.read();
+            if(c != '<')return c;
+            int next = pin.read();
+            if(next != '?'){
+                if(next != -1)pin.unread(next);
+                return c;
+            }
+            int prev = -1;
+            while((c = pin.read()) != -1){
+                if(prev == '?' && c == '>')break;
+                prev = c;
+            }
+            return read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0)return 0;
+            int c = read();
+            if(c == -1)return -1;
+            b[off] = (byte)c;
+            int n = 1;
+            while(n < len && pin.available() > 0){
+                c = read();
+                if(c == -1)break;
+                b[off + n++] = (byte)c;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    final private String domain;
+    final private XMLInputFactory inputFactory;
+    final private Map<String, String> users = new ConcurrentHashMap<>();
+    private volatile String defaultPassword = null;
+    final private Map<String, IEntity> entities = new ConcurrentHashMap<>();
+    final private Map<String, List<Session>> boundSessions = new ConcurrentHashMap<>(); //by bare jid
+    final private List<Session> sessions = new CopyOnWriteArrayList<>();
+    final private Random random = new Random();
+    private ServerSocket serverSocket = null;
+    private Thread acceptThread = null;
+    private volatile boolean running = false;
+    private volatile double dropRate = 0; //of routed messages
+    private volatile long routeDelay = 0; //in millis, added to each routed message
+
+    final private AtomicInteger sessionCount = new AtomicInteger();
+    final private AtomicLong connections = new AtomicLong();
+    final private AtomicLong stanzasReceived = new AtomicLong();
+    final private AtomicLong stanzasSent = new AtomicLong();
+    final private AtomicLong messagesRouted = new AtomicLong();
+    final private AtomicLong messagesDropped = new AtomicLong();
+    final private AtomicLong authFailures = new AtomicLong();
+    final private AtomicLong errors = new AtomicLong();
+
+    public LoopbackXMPPServer(String domain){
+        this.domain = domain;
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    }
+
+    public LoopbackXMPPServer(){
+        this(DEFAULT_DOMAIN);
+    }
+
+    public String getDomain(){ return domain; }
+
+    public String getHost(){ return InetAddress.getLoopbackAddress().getHostAddress(); }
+
+    public int getPort(){ return serverSocket == null ? -1 : serverSocket.getLocalPort(); }
+
+    //port 0 for any free port
+    public synchronized void start(int port) throws IOException{
+        if(running)return;
+        serverSocket = new ServerSocket(port, 256, InetAddress.getLoopbackAddress());
+        running = true;
+        acceptThread = new Thread(() -> {
+            while(running){
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    Session session = new Session(socket, sessionCount.incrementAndGet());
+                    sessions.add(session);
+                    connections.incrementAndGet();
+                    Thread t = new Thread(session, "loopback-xmpp-" + session.id);
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e){
+                    if(running)errors.incrementAndGet();
+                }
+            }
+        }, "loopback-xmpp-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public void start() throws IOException{
+        start(0);
+    }
+
+    public synchronized void stop(){
+        running = false;
+        try {
+            if(serverSocket != null)serverSocket.close();
+        } catch (IOException e){
+            //nothing to do
+        }
+        for(Session session : sessions){
+            session.close();
+        }
+    }
+
+    //region Users and entities
+    public void addUser(String username, String password){
+        users.put(username, password);
+    }
+
+    //any username is accepted with this password (e.g. for load tests with many clients)
+    public void setDefaultPassword(String password){
+        defaultPassword = password;
+    }
+
+    String getPassword(String username){
+        String password = users.get(username);
+        return password == null ? defaultPassword : password;
+    }
+
+    public void addEntity(IEntity entity){
+        entities.put(entity.getJid().toLowerCase(), entity);
+    }
+
+    public void removeEntity(IEntity entity){
+        entities.remove(entity.getJid().toLowerCase());
+    }
+
+    private void bind(Session session){
+        boundSessions.computeIfAbsent(session.getBareJid().toLowerCase(), k -> new CopyOnWriteArrayList<>()).add(session);
+    }
+
+    private void unbind(Session session){
+        sessions.remove(session);
+        if(session.fullJid == null)return;
+
+        List<Session> bound = boundSessions.get(session.getBareJid().toLowerCase());
+        if(bound != null)bound.remove(session);
+        for(IEntity entity : entities.values()){
+            entity.onUnavailable(this, session.fullJid);
+        }
+    }
+    //endregion
+
+    //region Routing
+    static public String bareJid(String jid){
+        if(jid == null)return null;
+        int idx = jid.indexOf('/');
+        return (idx == -1 ? jid : jid.substring(0, idx)).toLowerCase();
+    }
+
+    //delivers a message stanza to an entity or client session(s) according to its 'to' attribute
+    public void route(XmlElement message){
+        if(dropRate > 0 && random.nextDouble() < dropRate){
+            messagesDropped.incrementAndGet();
+            return;
+        }
+        if(routeDelay > 0){
+            try {
+                Thread.sleep(routeDelay);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        String to = message.getAttribute("to");
+        String bare = bareJid(to);
+        IEntity entity = bare == null ? null : entities.get(bare);
+        if(entity != null){
+            messagesRouted.incrementAndGet();
+            entity.onMessage(this, message);
+            return;
+        }
+
+        List<Session> bound = bare == null ? null : boundSessions.get(bare);
+        if(bound == null || bound.isEmpty()){
+            messagesDropped.incrementAndGet();
+            return;
+        }
+        String xml = message.toXml();
+        for(Session session : bound){
+            if(to.indexOf('/') != -1 && !to.equals(session.fullJid))continue;
+            try {
+                session.write(xml);
+                messagesRouted.incrementAndGet();
+            } catch (IOException e){
+                messagesDropped.incrementAndGet();
+            }
+        }
+    }
+
+    public void setDropRate(double dropRate){
+        this.dropRate = Math.max(0, Math.min(1, dropRate));
+    }
+
+    public void setRouteDelay(long millis){
+        routeDelay = Math.max(0, millis);
+    }
+    //endregion
+
+    //region Faults
+    //closes every client socket without ending the stream (clients see a connection error and reconnect)
+    public int dropConnections(){
+        int dropped = 0;
+        for(Session session : sessions){
+            session.close(false);
+            dropped++;
+        }
+        return dropped;
+    }
+
+    public boolean dropConnection(String bareJid){
+        List<Session> bound = boundSessions.get(bareJid.toLowerCase());
+        if(bound == null || bound.isEmpty())return false;
+        for(Session session : bound){
+            session.close(false);
+        }
+        return true;
+    }
+    //endregion
+
+    //region Stats
+    public int getSessionCount(){ return sessions.size(); }
+    public long getConnections(){ return connections.get(); }
+    public long getStanzasReceived(){ return stanzasReceived.get(); }
+    public long getStanzasSent(){ return stanzasSent.get(); }
+    public long getMessagesRouted(){ return messagesRouted.get(); }
+    public long getMessagesDropped(){ return messagesDropped.get(); }
+    public long getAuthFailures(){ return authFailures.get(); }
+    public long getErrors(){ return errors.get(); }
+    //endregion
+
+    static String encode(String s){
+        return s == null || s.isEmpty() ? "=" : Base64.getEncoder().encodeToString(s.getBytes(UTF8));
+    }
+
+    static String decode(String s){
+        if(s == null)return null;
+        s = s.trim();
+        if(s.isEmpty() || s.equals("="))return "";
+        try {
+            return new String(Base64.getDecoder().decode(s), UTF8);
+        } catch (IllegalArgumentException e){
+            return null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package net.chetch.xmpp.harness;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+Server side of SCRAM-SHA-1 (RFC 5802) for one authentication exchange. No channel binding (the loopback server has no
+TLS) so the gs2 header must be 'n,,' (or 'y,,').
+ */
+public class ScramSha1 {
+    public static final String MECHANISM = "SCRAM-SHA-1";
+    public static final int ITERATIONS = 4096;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final SecureRandom random = new SecureRandom();
+
+    public interface IPasswordLookup{
+        String getPassword(String username); //null if the user is unknown
+    }
+
+    final private IPasswordLookup passwords;
+    private String username = null;
+    private String clientFirstBare = null;
+    private String serverFirst = null;
+    private String nonce = null;
+    private byte[] saltedPassword = null;
+
+    public ScramSha1(IPasswordLookup passwords){
+        this.passwords = passwords;
+    }
+
+    public String getUsername(){ return username; }
+
+    //returns the server-first-message or null if the user is unknown or the message malformed
+    public String onClientFirst(String message){
+        String bare;
+        if(message.startsWith("n,,") || message.startsWith("y,,")){
+            bare = message.substring(3);
+        } else {
+            return null;
+        }
+
+        String clientNonce = null;
+        for(String attribute : bare.split(",")){
+            if(attribute.startsWith("n=")){
+                username = attribute.substring(2).replace("=2C", ",").replace("=3D", "=");
+            } else if(attribute.startsWith("r=")){
+                clientNonce = attribute.substring(2);
+            }
+        }
+        if(username == null || clientNonce == null)return null;
+
+        String password = passwords.getPassword(username);
+        if(password == null)return null;
+
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        byte[] serverNonce = new byte[18];
+        random.nextBytes(serverNonce);
+        nonce = clientNonce + Base64.getEncoder().encodeToString(serverNonce);
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            saltedPassword = factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, 160)).getEncoded();
+        } catch (Exception e){
+            return null;
+        }
+
+        clientFirstBare = bare;
+        serverFirst = "r=" + nonce + ",s=" + Base64.getEncoder().encodeToString(salt) + ",i=" + ITERATIONS;
+        return serverFirst;
+    }
+
+    //returns the server-final-message (v=...) or null if the proof is wrong
+    public String onClientFinal(String message){
+        if(serverFirst == null)return null;
+
+        int idx = message.lastIndexOf(",p=");
+        if(idx == -1)return null;
+        String withoutProof = message.substring(0, idx);
+        byte[] proof = Base64.getDecoder().decode(message.substring(idx + 3));
+        if(!withoutProof.contains("r=" + nonce))return null;
+
+        try {
+            String authMessage = clientFirstBare + "," + serverFirst + "," + withoutProof;
+            byte[] clientKey = hmac(saltedPassword, "Client Key");
+            byte[] storedKey = MessageDigest.getInstance("SHA-1").digest(clientKey);
+            byte[] clientSignature = hmac(storedKey, authMessage);
+            if(proof.length != clientSignature.length)return null;
+
+            byte[] recoveredKey = new byte[proof.length];
+            for(int i = 0; i < proof.length; i++){
+                recoveredKey[i] = (byte)(proof[i] ^ clientSignature[i]);
+            }
+            if(!MessageDigest.isEqual(storedKey, MessageDigest.getInstance("SHA-1").digest(recoveredKey))){
+                return null;
+            }
+
+            byte[] serverKey = hmac(saltedPassword, "Server Key");
+            return "v=" + Base64.getEncoder().encodeToString(hmac(serverKey, authMessage));
+        } catch (Exception e){
+            return null;
+        }
+    }
+
+    static private byte[] hmac(byte[] key, String data) throws Exception{
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(key, "HmacSHA1"));
+        return mac.doFinal(data.getBytes(UTF8));
+    }
+}
@@ -0,0 +1,193 @@
+package net.chetch.xmpp.harness;
+
+import net.chetch.messaging.Message;
+import net.chetch.xmpp.IChetchIncomingMessageListener;
+import net.chetch.xmpp.benchmark.Headless;
+import net.chetch.xmpp.models.AlarmsViewModel;
+
+import org.jivesoftware.smack.chat2.Chat;
+import org.jxmpp.jid.EntityBareJid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Runs headless AlarmsViewModels (one connection each) against the loopback server and a simulated alarms service for
+a long time, reporting periodically:
+    connect to ready (connect or reconnect until subscribed) percentiles, messages per second received by the clients
+    and routed by the server, reconnects, errors and heap used (after a gc)
+Arguments are name=value (see DEFAULTS), e.g. minutes=180 clients=20 alertRate=5 statusInterval=2000 dropEvery=600
+ */
+public class SoakRunner {
+    static final String PASSWORD = "soak";
+    static final Map<String, String> DEFAULTS = new HashMap<>();
+    static {
+        DEFAULTS.put("minutes", "10");
+        DEFAULTS.put("clients", "10");
+        DEFAULTS.put("alertRate", "2"); //per second (to every subscriber)
+        DEFAULTS.put("statusInterval", "5000"); //in millis, 0 for none
+        DEFAULTS.put("reportEvery", "30"); //in seconds
+        DEFAULTS.put("dropEvery", "0"); //in seconds, drops all connections, 0 for never
+        DEFAULTS.put("goAwayEvery", "0"); //in seconds, service announces it's going away, 0 for never
+        DEFAULTS.put("dropRate", "0"); //proportion of routed messages the server drops
+        DEFAULTS.put("responseDelay", "0"); //in millis
+        DEFAULTS.put("codec", "json");
+    }
+
+    static class Client{
+        final AlarmsViewModel viewModel;
+        long startedOn = System.nanoTime(); //of the current connect (or reconnect)
+        boolean ready = false;
+
+        Client(AlarmsViewModel viewModel){
+            this.viewModel = viewModel;
+        }
+    }
+
+    final LoopbackXMPPServer server;
+    final ChetchServiceSimulator service;
+    final List<Client> clients = new ArrayList<>();
+    final List<Long> readyTimes = new ArrayList<>(); //millis, since last report
+    final AtomicLong received = new AtomicLong();
+    long reconnects = 0;
+
+    public SoakRunner(LoopbackXMPPServer server, ChetchServiceSimulator service){
+        this.server = server;
+        this.service = service;
+    }
+
+    public void addClients(int count) throws Exception{
+        IChetchIncomingMessageListener counter = new IChetchIncomingMessageListener() {
+            @Override
+            public void onIncomingMessage(EntityBareJid from, Message message, org.jivesoftware.smack.packet.Message originalMessage, Chat chat) {
+                received.incrementAndGet();
+            }
+        };
+
+        for(int i = 0; i < count; i++){
+            AlarmsViewModel viewModel = new AlarmsViewModel();
+            viewModel.init(null, "soak" + clients.size(), PASSWORD);
+            viewModel.setServiceEndpoint(service.getJid(), server.getHost(), server.getPort());
+            viewModel.addMessageListener(counter);
+
+            Client client = new Client(viewModel);
+            clients.add(client);
+            viewModel.connect(o -> {});
+        }
+    }
+
+    //called regularly to spot clients becoming ready (or losing their subscription)
+    public void poll(){
+        long now = System.nanoTime();
+        for(Client client : clients){
+            boolean ready = client.viewModel.isSubscribed();
+            if(ready && !client.ready){
+                readyTimes.add(TimeUnit.NANOSECONDS.toMillis(now - client.startedOn));
+            } else if(!ready && client.ready){
+                reconnects++;
+                client.startedOn = now;
+            }
+            client.ready = ready;
+        }
+    }
+
+    public int getReadyCount(){
+        int n = 0;
+        for(Client client : clients){
+            if(client.ready)n++;
+        }
+        return n;
+    }
+
+    static long percentile(List<Long> sorted, double p){
+        if(sorted.isEmpty())return -1;
+        int idx = (int)Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, idx)));
+    }
+
+    public static void main(String[] args) throws Exception{
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for(String arg : args){
+            int idx = arg.indexOf('=');
+            if(idx == -1 || !DEFAULTS.containsKey(arg.substring(0, idx))){
+                System.err.println("Unknown argument " + arg + ", options are " + DEFAULTS.keySet());
+                System.exit(1);
+            }
+            options.put(arg.substring(0, idx), arg.substring(idx + 1));
+        }
+
+        Headless.initialise();
+        LoopbackXMPPServer server = new LoopbackXMPPServer();
+        server.setDefaultPassword(PASSWORD);
+        server.setDropRate(Double.parseDouble(options.get("dropRate")));
+        server.start();
+
+        ChetchServiceSimulator service = new ChetchServiceSimulator(server);
+        service.setPreferredCodec(options.get("codec"));
+        service.setResponseDelay(Long.parseLong(options.get("responseDelay")));
+        service.setStatusUpdateInterval(Long.parseLong(options.get("statusInterval")));
+        service.setAlertRate(Double.parseDouble(options.get("alertRate")));
+
+        SoakRunner runner = new SoakRunner(server, service);
+        runner.addClients(Integer.parseInt(options.get("clients")));
+        System.out.println("Soak started on port " + server.getPort() + " with " + options);
+
+        long startedOn = System.nanoTime();
+        long endsOn = startedOn + TimeUnit.MINUTES.toNanos(Long.parseLong(options.get("minutes")));
+        long reportEvery = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("reportEvery")));
+        long dropEvery = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("dropEvery")));
+        long goAwayEvery = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("goAwayEvery")));
+        long lastReport = startedOn, lastDrop = startedOn, lastGoAway = startedOn;
+        long lastReceived = 0, lastRouted = 0;
+
+        while(System.nanoTime() < endsOn){
+            Thread.sleep(100);
+            runner.poll();
+
+            long now = System.nanoTime();
+            if(dropEvery > 0 && now - lastDrop >= dropEvery){
+                System.out.println("Dropping " + server.dropConnections() + " connections");
+                lastDrop = now;
+            }
+            if(goAwayEvery > 0 && now - lastGoAway >= goAwayEvery){
+                System.out.println("Service going away");
+                service.goAway();
+                lastGoAway = now;
+            }
+            if(now - lastReport >= reportEvery){
+                double seconds = (now - lastReport) / 1e9;
+                long received = runner.received.get();
+                long routed = server.getMessagesRouted();
+                List<Long> readyTimes = new ArrayList<>(runner.readyTimes);
+                runner.readyTimes.clear();
+                Collections.sort(readyTimes);
+
+                System.gc();
+                Runtime rt = Runtime.getRuntime();
+                long heapUsed = (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+
+                System.out.println(String.format("%6ds ready=%d/%d sessions=%d connectToReady(ms) n=%d p50=%d p99=%d max=%d received/s=%.1f routed/s=%.1f dropped=%d reconnects=%d authFailures=%d serverErrors=%d heap=%dMB threads=%d",
+                        TimeUnit.NANOSECONDS.toSeconds(now - startedOn),
+                        runner.getReadyCount(), runner.clients.size(), server.getSessionCount(),
+                        readyTimes.size(), percentile(readyTimes, 0.5), percentile(readyTimes, 0.99), percentile(readyTimes, 1),
+                        (received - lastReceived) / seconds, (routed - lastRouted) / seconds,
+                        server.getMessagesDropped(), runner.reconnects, server.getAuthFailures(), server.getErrors(),
+                        heapUsed, Thread.activeCount()));
+
+                lastReceived = received;
+                lastRouted = routed;
+                lastReport = now;
+            }
+        }
+
+        service.shutdown();
+        server.stop();
+        System.out.println("Soak finished");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,123 @@
+package net.chetch.xmpp.harness;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Just enough of an element tree for stanzas read by the loopback server (and for writing the ones it sends)
+ */
+public class XmlElement {
+    final public String name;
+    final public String namespace;
+    final public Map<String, String> attributes = new LinkedHashMap<>();
+    final public List<XmlElement> children = new ArrayList<>();
+    final StringBuilder text = new StringBuilder();
+
+    public XmlElement(String name, String namespace){
+        this.name = name;
+        this.namespace = namespace;
+    }
+
+    public XmlElement(String name){
+        this(name, null);
+    }
+
+    public String getText(){
+        return text.toString();
+    }
+
+    public XmlElement setText(String text){
+        this.text.setLength(0);
+        if(text != null)this.text.append(text);
+        return this;
+    }
+
+    public String getAttribute(String name){
+        return attributes.get(name);
+    }
+
+    public XmlElement setAttribute(String name, String value){
+        if(value != null)attributes.put(name, value);
+        return this;
+    }
+
+    public XmlElement getChild(String name){
+        for(XmlElement child : children){
+            if(child.name.equals(name))return child;
+        }
+        return null;
+    }
+
+    public String getChildText(String name){
+        XmlElement child = getChild(name);
+        return child == null ? null : child.getText();
+    }
+
+    public XmlElement addChild(XmlElement child){
+        children.add(child);
+        return child;
+    }
+
+    public XmlElement addChild(String name, String namespace){
+        return addChild(new XmlElement(name, namespace));
+    }
+
+    public XmlElement addChild(String name){
+        return addChild(name, null);
+    }
+
+    //the first child (e.g. the payload of an iq)
+    public XmlElement getPayload(){
+        return children.isEmpty() ? null : children.get(0);
+    }
+
+    public String toXml(){
+        StringBuilder builder = new StringBuilder();
+        append(builder, null);
+        return builder.toString();
+    }
+
+    private void append(StringBuilder builder, String parentNamespace){
+        builder.append('<').append(name);
+        if(namespace != null && !namespace.equals(parentNamespace)){
+            builder.append(" xmlns='").append(escape(namespace)).append('\'');
+        }
+        for(Map.Entry<String, String> attribute : attributes.entrySet()){
+            builder.append(' ').append(attribute.getKey()).append("='").append(escape(attribute.getValue())).append('\'');
+        }
+        if(children.isEmpty() && text.length() == 0){
+            builder.append("/>");
+            return;
+        }
+        builder.append('>');
+        builder.append(escape(text));
+        String ns = namespace == null ? parentNamespace : namespace;
+        for(XmlElement child : children){
+            child.append(builder, ns);
+        }
+        builder.append("</").append(name).append('>');
+    }
+
+    static public String escape(CharSequence s){
+        StringBuilder builder = new StringBuilder(s.length() + 16);
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            switch(c){
+                case '<': builder.append("&lt;"); break;
+                case '>': builder.append("&gt;"); break;
+                case '&': builder.append("&amp;"); break;
+                case '\'': builder.append("&apos;"); break;
+                case '"': builder.append("&quot;"); break;
+                default: builder.append(c); break;
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toXml();
+    }
+}
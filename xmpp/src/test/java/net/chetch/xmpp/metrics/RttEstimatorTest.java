@@ -0,0 +1,105 @@
+package net.chetch.xmpp.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RttEstimatorTest {
+    static long millis(long ms){
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    @Test
+    public void startsWithTheInitialRto(){
+        RttEstimator estimator = new RttEstimator();
+        assertEquals(RttEstimator.INITIAL_RTO, estimator.getRto());
+        assertEquals(0, estimator.getSamples());
+    }
+
+    @Test
+    public void firstSampleSetsSrttAndHalvesForVariance(){
+        RttEstimator estimator = new RttEstimator();
+        estimator.sample(millis(2000));
+        assertEquals(2000, estimator.getSmoothedRtt());
+        assertEquals(1000, estimator.getRttVariance());
+        assertEquals(2000 + 4*1000, estimator.getRto()); //SRTT + K*RTTVAR
+        assertEquals(2000, estimator.getLastSample());
+    }
+
+    @Test
+    public void laterSamplesAreSmoothed(){
+        RttEstimator estimator = new RttEstimator();
+        estimator.sample(millis(2000));
+        estimator.sample(millis(4000));
+        //RTTVAR = 3/4*1000 + 1/4*|2000 - 4000| = 1250, SRTT = 7/8*2000 + 1/8*4000 = 2250
+        assertEquals(1250, estimator.getRttVariance());
+        assertEquals(2250, estimator.getSmoothedRtt());
+        assertEquals(2250 + 4*1250, estimator.getRto());
+
+        //variance is updated with the SRTT from before this sample
+        estimator.sample(millis(10000));
+        //RTTVAR = 3/4*1250 + 1/4*7750 = 2875, SRTT = 7/8*2250 + 1/8*10000 = 3218.75
+        assertEquals(2875, estimator.getRttVariance());
+        assertEquals(3219, estimator.getSmoothedRtt());
+        assertEquals((long)Math.ceil(3218.75 + 4*2875), estimator.getRto());
+    }
+
+    @Test
+    public void rtoIsClampedToTheMinimum(){
+        RttEstimator estimator = new RttEstimator();
+        estimator.sample(millis(100));
+        assertEquals(RttEstimator.MIN_RTO, estimator.getRto()); //100 + 4*50 is below it
+    }
+
+    @Test
+    public void rtoIsClampedToTheMaximum(){
+        RttEstimator estimator = new RttEstimator();
+        estimator.sample(millis(100*1000));
+        assertEquals(RttEstimator.MAX_RTO, estimator.getRto());
+    }
+
+    @Test
+    public void varianceIsFlooredAtClockGranularity(){
+        RttEstimator estimator = new RttEstimator();
+        for(int i = 0; i < 40; i++){
+            estimator.sample(millis(1500));
+        }
+        //RTTVAR has decayed to almost nothing so G takes over from K*RTTVAR
+        assertEquals(0, estimator.getRttVariance());
+        assertEquals(1500 + RttEstimator.CLOCK_GRANULARITY, estimator.getRto());
+    }
+
+    @Test
+    public void samplesOverTheRtoAreLate(){
+        RttEstimator estimator = new RttEstimator();
+        estimator.sample(millis(5000)); //over the initial RTO but the first sample is never late
+        assertEquals(0, estimator.getLateSamples());
+        assertEquals(1, estimator.getConsecutiveOnTime());
+
+        estimator.sample(millis(5000));
+        assertEquals(2, estimator.getConsecutiveOnTime());
+
+        long rto = estimator.getRto();
+        estimator.sample(millis(rto + 1));
+        assertEquals(1, estimator.getLateSamples());
+        assertEquals(0, estimator.getConsecutiveOnTime());
+        assertEquals(3, estimator.getSamples());
+    }
+
+    @Test
+    public void resetStartsOver(){
+        RttEstimator estimator = new RttEstimator();
+        estimator.sample(millis(2000));
+        estimator.sample(millis(20000));
+        estimator.reset();
+        assertEquals(RttEstimator.INITIAL_RTO, estimator.getRto());
+        assertEquals(0, estimator.getSamples());
+        assertEquals(0, estimator.getLateSamples());
+
+        estimator.sample(millis(300));
+        assertEquals(300, estimator.getSmoothedRtt());
+        assertEquals(150, estimator.getRttVariance());
+    }
+}